@@ -1,15 +1,14 @@
 package MachineLearning;
 
-import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
 import weka.classifiers.trees.J48;
-import weka.core.*;
 import weka.core.converters.ConverterUtils;
 
-class DecisionTrees {
+class DecisionTrees extends WekaModel {
     private String filename;
-    private  Instances data;
-    private Classifier cl;
+
+    private DecisionTrees() {
+    }
 
     DecisionTrees(String filename) throws Exception {
         this.filename = filename;
@@ -34,4 +33,9 @@ class DecisionTrees {
         System.out.println(eval.toMatrixString());
     }
 
+    static DecisionTrees load(String filename) throws Exception {
+        DecisionTrees loaded = new DecisionTrees();
+        loaded.readModel(filename);
+        return loaded;
+    }
 }
@@ -1,97 +1,519 @@
 package MachineLearning;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import core.*;
 import libsvm.*;
 
 class Libsvm implements Classifier {
+    // Kernel types for linear models trained with dual coordinate descent
+    // (LinearClassifier) instead of LIBSVM, for large datasets
+    static final int LINEAR_SVM = 100;
+    static final int LINEAR_LOGISTIC = 101;
+
+    // Kernel cache in MB when a single model is trained at a time
+    static final double CACHE_SIZE = 20000;
+
     private String filename;
+    private double C = 100;
+    private double gamma = 0.5;
+    private int kernel_type = svm_parameter.RBF;
+    private double cache_size = CACHE_SIZE;
     private Dataset data;
+    // Schema of a loaded model, so it can be saved again
+    private ModelFile schema;
     private svm_problem prob;
     private svm_model model;
+    private LinearClassifier linear;
+    private DistinctValues class_values;
+    private int[] labels;
+    private boolean skip_zeros;
+    private ThreadLocal<Buffers> buffers;
+
+    // Libsvm keeps the print function in a static field, so it must not refer to a model
+    private static final svm_print_interface NO_OUTPUT = s -> {};
+
+    // Converted rows of each source dataset, dropped when the dataset is unused
+    private static final Map<Dataset, NodeRows> node_cache = new WeakHashMap<>();
 
-    Libsvm(String filename) throws Exception {
+    Libsvm(String filename) {
         this.filename = filename;
     }
 
+    Libsvm(double C, double gamma, int kernel_type) {
+        this(null, C, gamma, kernel_type);
+    }
+
+    Libsvm(String filename, double C, double gamma, int kernel_type) {
+        this.filename = filename;
+        this.C = C;
+        this.gamma = gamma;
+        this.kernel_type = kernel_type;
+    }
+
+    // Models trained concurrently should share the cache size between them
+    Libsvm(double C, double gamma, int kernel_type, double cache_size) {
+        this(null, C, gamma, kernel_type);
+        this.cache_size = cache_size;
+    }
+
     void init() throws Exception {
         File file = new File(filename);
         String absolutePath = file.getAbsolutePath();
-        Evaluator evaluator = new Evaluator(new Libsvm(filename), absolutePath);
+        Evaluator evaluator = new Evaluator(copy(), absolutePath, true);
         evaluator.evaluateWholeSet();
         evaluator.evaluateCV();
     }
 
-    private void convertData() {
+    static svm_problem toProblem(Dataset data) {
+        return toProblem(data, nodeRows(data));
+    }
+
+    private static svm_problem toProblem(Dataset data, NodeRows rows) {
+        // Rows are shared with all views of the same dataset, class value
+        // codes are used as labels
         int n = data.noInstances();
 
-        prob = new svm_problem();
-        prob.y = new double[n];
+        svm_problem prob = new svm_problem();
         prob.l = n;
-        prob.x = new svm_node[n][data.noAttributes() -1];
+        prob.y = new double[n];
+        prob.x = new svm_node[n][];
+        for (int i = 0; i < n; i++) {
+            prob.x[i] = rows.rows[data.rowIndex(i)];
+            prob.y[i] = data.getClassCode(i);
+        }
+        return prob;
+    }
+
+    private static NodeRows nodeRows(Dataset data) {
+        // Converted rows are cached per source dataset, so cross validation
+        // folds and repeated training only convert the data once
+        Dataset source = data.getSource();
+        synchronized (node_cache) {
+            NodeRows cached = node_cache.get(source);
+            if (cached == null || cached.mod_count != source.modCount()) {
+                cached = convertRows(source);
+                node_cache.put(source, cached);
+            }
+            return cached;
+        }
+    }
 
-        for (int i = 0; i < data.noInstances(); i++) {
-            Instance inst = data.getInstance(i);
+    private static NodeRows convertRows(Dataset data) {
+        int n = data.noInstances();
+        int no_attr = data.noAttributes() - 1;
+        svm_node[][] rows = new svm_node[n][];
 
-            double[] vals = inst.getAttributeArrayNumerical();
-            prob.x[i] = new svm_node[data.noAttributes() - 1];
+        if (data.isSparse()) {
+            int[] indexes = data.getSparseIndexes();
+            double[] values = data.getSparseValues();
+            for (int i = 0; i < n; i++) {
+                int start = data.sparseStart(i);
+                svm_node[] nodes = new svm_node[data.sparseEnd(i) - start];
+                for (int j = 0; j < nodes.length; j++) {
+                    nodes[j] = new svm_node();
+                    nodes[j].index = indexes[start + j];
+                    nodes[j].value = values[start + j];
+                }
+                rows[i] = nodes;
+            }
+            return new NodeRows(rows, true, data.modCount());
+        }
 
+        // Nominal attributes have no numerical value and are left out
+        double[][] cols = new double[no_attr][];
+        long no_values = 0;
+        long no_zeros = 0;
+        for (int a = 0; a < no_attr; a++) {
+            if (data.isNumerical(a)) {
+                cols[a] = data.getNumericalColumn(a);
+                for (int i = 0; i < n; i++) {
+                    if (cols[a][i] == 0) no_zeros++;
+                }
+                no_values += n;
+            }
+        }
 
-            for (int a = 0; a < data.noAttributes() - 1; a++) {
-                svm_node node = new svm_node();
-                node.index = a;
-                node.value = vals[a];
-                prob.x[i][a] = node;
+        // Zero values are left out when most values are zero, so kernel
+        // evaluation is proportional to the number of non-zero values. For
+        // mostly non-zero data, rows with the same indexes are faster to merge
+        boolean skip_zeros = no_zeros * 2 > no_values;
+        for (int i = 0; i < n; i++) {
+            int size = 0;
+            for (int a = 0; a < no_attr; a++) {
+                if (cols[a] != null && (cols[a][i] != 0 || !skip_zeros)) size++;
+            }
+            svm_node[] nodes = new svm_node[size];
+            size = 0;
+            for (int a = 0; a < no_attr; a++) {
+                if (cols[a] != null && (cols[a][i] != 0 || !skip_zeros)) {
+                    nodes[size] = new svm_node();
+                    nodes[size].index = a;
+                    nodes[size].value = cols[a][i];
+                    size++;
+                }
             }
+            rows[i] = nodes;
+        }
+        return new NodeRows(rows, skip_zeros, data.modCount());
+    }
 
-            prob.y[i] = inst.getClassAttribute().numericalValue();
+    // A problem read directly from a LIBSVM file. Labels are class value codes
+    // in the schema, which holds the attribute names and class values
+    static class Problem {
+        final svm_problem prob;
+        final Dataset schema;
+
+        Problem(svm_problem prob, Dataset schema) {
+            this.prob = prob;
+            this.schema = schema;
+        }
+    }
+
+    static Problem readProblem(String filename) {
+        // The nodes are created from the rows of the reader, without creating
+        // a dataset
+        LibSVMreader reader = new LibSVMreader();
+        reader.readFile(filename);
+        int n = reader.noRows();
+        double[] labels = reader.getLabels();
+        int[] starts = reader.getRowStarts();
+        int[] indexes = reader.getIndexes();
+        double[] values = reader.getValues();
+        Dataset schema = reader.getSchema();
+        DistinctValues class_values = schema.getDistinctClassValues();
+
+        svm_problem prob = new svm_problem();
+        prob.l = n;
+        prob.y = new double[n];
+        prob.x = new svm_node[n][];
+        for (int i = 0; i < n; i++) {
+            // Zero values are left out, as in a sparse dataset
+            int size = 0;
+            for (int j = starts[i]; j < starts[i + 1]; j++) {
+                if (values[j] != 0) size++;
+            }
+            svm_node[] nodes = new svm_node[size];
+            size = 0;
+            for (int j = starts[i]; j < starts[i + 1]; j++) {
+                if (values[j] != 0) {
+                    nodes[size] = new svm_node();
+                    nodes[size].index = indexes[j];
+                    nodes[size].value = values[j];
+                    size++;
+                }
+            }
+            prob.x[i] = nodes;
+            prob.y[i] = class_values.indexOf(labels[i]);
         }
+        return new Problem(prob, schema);
     }
 
     public void train(Dataset train) {
         data = train;
+        if (kernel_type == LINEAR_SVM || kernel_type == LINEAR_LOGISTIC) {
+            linear = new LinearClassifier(kernel_type == LINEAR_SVM ? LinearClassifier.HINGE : LinearClassifier.LOGISTIC, C);
+            linear.train(train);
+            return;
+        }
+        NodeRows rows = nodeRows(data);
+        prob = toProblem(data, rows);
+        skip_zeros = rows.skip_zeros;
+        model = svm.svm_train(prob, parameters());
+        initModel(data.getDistinctClassValues());
+    }
 
-        convertData();
+    void train(Problem problem) {
+        // Linear models are trained by LinearClassifier, which reads a dataset
+        if (kernel_type == LINEAR_SVM || kernel_type == LINEAR_LOGISTIC) {
+            throw new RuntimeException("Linear models must be trained on a dataset");
+        }
+        data = problem.schema;
+        prob = problem.prob;
+        skip_zeros = true;
+        model = svm.svm_train(prob, parameters());
+        initModel(data.getDistinctClassValues());
+    }
 
+    private svm_parameter parameters() {
         svm_parameter param = new svm_parameter();
 
         param.probability = 1;
-        param.gamma = 0.5;
+        param.gamma = gamma;
         param.nu = 0.5;
-        param.C = 100;
+        param.C = C;
         param.svm_type = svm_parameter.C_SVC;
-        param.kernel_type = svm_parameter.RBF;
-        param.cache_size = 20000;
+        param.kernel_type = kernel_type;
+        param.degree = 3;
+        param.cache_size = cache_size;
         param.eps = 0.001;
 
         // Disable output from Libsvm
-        svm.svm_set_print_string_function(new libsvm.svm_print_interface(){
-            @Override public void print(String s) {} // Disables svm output
-        });
+        svm.svm_set_print_string_function(NO_OUTPUT);
+        return param;
+    }
+
+    private void initModel(DistinctValues class_values) {
+        this.class_values = class_values;
+        labels = new int[svm.svm_get_nr_class(model)];
+        svm.svm_get_labels(model, labels);
+        // The initializer must not capture this, or each thread would keep the model alive
+        int no_labels = labels.length;
+        buffers = ThreadLocal.withInitial(() -> new Buffers(no_labels));
+    }
+
+    void save(String filename) throws IOException {
+        ModelFile file = ModelFile.create("libsvm", data, schema);
+        DataOutputStream out = file.out();
+        out.writeDouble(C);
+        out.writeDouble(gamma);
+        out.writeInt(kernel_type);
+        out.writeBoolean(skip_zeros);
+        if (linear != null) {
+            linear.write(file);
+            file.save(filename);
+            return;
+        }
+
+        // The parameters used by prediction
+        out.writeInt(model.param.svm_type);
+        out.writeInt(model.param.kernel_type);
+        out.writeInt(model.param.degree);
+        out.writeDouble(model.param.gamma);
+        out.writeDouble(model.param.coef0);
+
+        out.writeInt(model.nr_class);
+        file.writeDoubles(model.rho);
+        file.writeDoubles(model.probA != null ? model.probA : new double[0]);
+        file.writeDoubles(model.probB != null ? model.probB : new double[0]);
+        file.writeInts(model.label);
+        file.writeInts(model.nSV);
+        for (double[] coef : model.sv_coef) {
+            file.writeDoubles(coef);
+        }
+
+        // Support vectors as row lengths followed by all indexes and values
+        int[] lengths = new int[model.l];
+        int size = 0;
+        for (int i = 0; i < model.l; i++) {
+            lengths[i] = model.SV[i].length;
+            size += lengths[i];
+        }
+        int[] indexes = new int[size];
+        double[] values = new double[size];
+        size = 0;
+        for (svm_node[] sv : model.SV) {
+            for (svm_node node : sv) {
+                indexes[size] = node.index;
+                values[size] = node.value;
+                size++;
+            }
+        }
+        file.writeInts(lengths);
+        file.writeInts(indexes);
+        file.writeDoubles(values);
+        file.save(filename);
+    }
+
+    static Libsvm load(String filename) throws IOException {
+        ModelFile file = ModelFile.load(filename, "libsvm");
+        ByteBuffer in = file.in();
+        double C = in.getDouble();
+        double gamma = in.getDouble();
+        Libsvm ls = new Libsvm(C, gamma, in.getInt());
+        ls.skip_zeros = in.get() != 0;
+        ls.schema = file.schema();
+        if (ls.kernel_type == LINEAR_SVM || ls.kernel_type == LINEAR_LOGISTIC) {
+            ls.linear = LinearClassifier.read(file);
+            return ls;
+        }
+
+        svm_model model = new svm_model();
+        model.param = new svm_parameter();
+        model.param.svm_type = in.getInt();
+        model.param.kernel_type = in.getInt();
+        model.param.degree = in.getInt();
+        model.param.gamma = in.getDouble();
+        model.param.coef0 = in.getDouble();
+
+        model.nr_class = in.getInt();
+        model.rho = file.readDoubles();
+        model.probA = file.readDoubles();
+        model.probB = file.readDoubles();
+        if (model.probA.length == 0) model.probA = null;
+        if (model.probB.length == 0) model.probB = null;
+        model.label = file.readInts();
+        model.nSV = file.readInts();
+        model.sv_coef = new double[model.nr_class - 1][];
+        for (int k = 0; k < model.nr_class - 1; k++) {
+            model.sv_coef[k] = file.readDoubles();
+        }
+
+        int[] lengths = file.readInts();
+        int[] indexes = file.readInts();
+        double[] values = file.readDoubles();
+        model.l = lengths.length;
+        model.SV = new svm_node[model.l][];
+        int pos = 0;
+        for (int i = 0; i < model.l; i++) {
+            svm_node[] sv = new svm_node[lengths[i]];
+            for (int j = 0; j < sv.length; j++) {
+                sv[j] = new svm_node();
+                sv[j].index = indexes[pos];
+                sv[j].value = values[pos];
+                pos++;
+            }
+            model.SV[i] = sv;
+        }
+
+        ls.model = model;
+        ls.initModel(file.getDistinctClassValues());
+        return ls;
+    }
+
+    public void classifyBatch(Dataset test, int from, int to, int[] out) {
+        if (linear != null) {
+            linear.classifyBatch(test, from, to, out);
+            return;
+        }
+
+        // Views of a converted dataset use the cached rows, other
+        // datasets are converted row by row into the thread buffers
+        Buffers buf = buffers.get();
+        svm_node[][] rows = null;
+        synchronized (node_cache) {
+            NodeRows cached = node_cache.get(test.getSource());
+            if (cached != null && cached.mod_count == test.modCount() && cached.skip_zeros == skip_zeros) {
+                rows = cached.rows;
+            }
+        }
+
+        for (int r = from; r < to; r++) {
+            svm_node[] nodes = rows != null ? rows[test.rowIndex(r)] : buf.toNodes(test.getInstance(r), skip_zeros);
+            int code = (int) svm.svm_predict_probability(model, nodes, buf.prob_estimates);
+            out[r] = toIndex(code, test.getDistinctClassValues());
+        }
+    }
+
+    private int toIndex(int code, DistinctValues target) {
+        // Translate a class value code to the class values of another dataset
+        if (target == class_values) {
+            return code;
+        }
+        if (class_values.isNumerical()) {
+            return target.indexOf(class_values.getNumericalValue(code));
+        }
+        return target.indexOf(class_values.getNominalValue(code));
+    }
 
-        model = svm.svm_train(prob, param);
+    public Classifier copy() {
+        Libsvm copy = new Libsvm(filename, C, gamma, kernel_type);
+        copy.cache_size = cache_size;
+        return copy;
+    }
+
+    public boolean isThreadSafe() {
+        // svm_predict only reads the model
+        return true;
     }
 
     public Result classify(Instance inst) {
-        double[] vals = inst.getAttributeArrayNumerical();
-        int no_classes = data.noClassValues();
-        svm_node[] nodes = new svm_node[vals.length];
+        if (linear != null) {
+            return linear.classify(inst);
+        }
+        int code = classifyIndex(inst);
+        if (class_values.isNumerical()) {
+            return new Result(class_values.getNumericalValue(code));
+        }
+        return new Result(class_values.getNominalValue(code));
+    }
 
-        for (int a = 0; a < vals.length; a++) {
-            svm_node node = new svm_node();
-            node.index = a;
-            node.value = vals[a];
-            nodes[a] = node;
+    public int classifyIndex(Instance inst) {
+        if (linear != null) {
+            return linear.classifyIndex(inst);
         }
+        Buffers buf = buffers.get();
+        return (int) svm.svm_predict_probability(model, buf.toNodes(inst, skip_zeros), buf.prob_estimates);
+    }
 
-        int[] labels = new int[no_classes];
-        double[] prob_estimates = new double[no_classes];
+    public int classifyIndex(Instance inst, double[] probs) {
+        if (linear != null) {
+            return linear.classifyIndex(inst, probs);
+        }
+        Buffers buf = buffers.get();
+        int code = (int) svm.svm_predict_probability(model, buf.toNodes(inst, skip_zeros), buf.prob_estimates);
 
-        svm.svm_get_labels(model, labels);
+        // Probabilities are ordered by model label, labels are class value codes
+        Arrays.fill(probs, 0);
+        for (int i = 0; i < labels.length; i++) {
+            probs[labels[i]] = buf.prob_estimates[i];
+        }
+        return code;
+    }
 
-        double cVal = svm.svm_predict_probability(model, nodes, prob_estimates);
+    private static class Buffers {
+        // Node arrays must have the exact number of values, so there is one
+        // array per row length, all sharing the same nodes
+        private svm_node[] pool = new svm_node[0];
+        private svm_node[][] by_length = new svm_node[1][];
+        private final double[] prob_estimates;
 
-        return new Result(cVal);
+        private Buffers(int no_labels) {
+            prob_estimates = new double[no_labels];
+        }
+
+        private svm_node[] toNodes(Instance inst, boolean skip_zeros) {
+            int no_attr = inst.noAttributes() - 1;
+            if (pool.length < no_attr) {
+                int old = pool.length;
+                pool = Arrays.copyOf(pool, no_attr);
+                for (int a = old; a < no_attr; a++) {
+                    pool[a] = new svm_node();
+                }
+                by_length = Arrays.copyOf(by_length, no_attr + 1);
+            }
+
+            int size = 0;
+            if (inst instanceof SparseInstance) {
+                SparseInstance si = (SparseInstance) inst;
+                for (int i = 0; i < si.noValues(); i++) {
+                    pool[size].index = si.getIndex(i);
+                    pool[size].value = si.getValue(i);
+                    size++;
+                }
+            } else {
+                for (int a = 0; a < no_attr; a++) {
+                    double v = inst.getNumericalValue(a);
+                    if (v != 0 || !skip_zeros) {
+                        pool[size].index = a;
+                        pool[size].value = v;
+                        size++;
+                    }
+                }
+            }
+
+            if (by_length[size] == null) {
+                by_length[size] = Arrays.copyOf(pool, size);
+            }
+            return by_length[size];
+        }
+    }
+
+    private static class NodeRows {
+        private final svm_node[][] rows;
+        private final boolean skip_zeros;
+        private final int mod_count;
+
+        private NodeRows(svm_node[][] rows, boolean skip_zeros, int mod_count) {
+            this.rows = rows;
+            this.skip_zeros = skip_zeros;
+            this.mod_count = mod_count;
+        }
     }
 }
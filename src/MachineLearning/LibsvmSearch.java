@@ -0,0 +1,184 @@
+package MachineLearning;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import core.*;
+import libsvm.svm_parameter;
+
+// Searches for Libsvm parameters with successive halving: all configurations
+// are evaluated with cross validation on a small sample of the data, the best
+// 1/eta of them are evaluated again on an eta times larger sample, and so on
+// until the last round, which uses all rows. Every (configuration, fold) pair
+// of a round is a separate task, so all cores are used.
+class LibsvmSearch {
+    private String filename;
+    private int no_folds = 5;
+    private int eta = 3;
+    private int min_rows = 100;
+    private long seed = 1;
+
+    static class Config {
+        final double C;
+        final double gamma;
+        final int kernel_type;
+        double accuracy;
+
+        Config(double C, double gamma, int kernel_type) {
+            this.C = C;
+            this.gamma = gamma;
+            this.kernel_type = kernel_type;
+        }
+
+        Libsvm classifier() {
+            return new Libsvm(C, gamma, kernel_type);
+        }
+
+        Libsvm classifier(double cache_size) {
+            return new Libsvm(C, gamma, kernel_type, cache_size);
+        }
+
+        @Override
+        public String toString() {
+            String kernel = kernel_type == svm_parameter.LINEAR ? "linear" : kernel_type == svm_parameter.POLY ? "poly" : kernel_type == svm_parameter.SIGMOID ? "sigmoid" : "rbf";
+            if (kernel_type == Libsvm.LINEAR_SVM) kernel = "linear svm (dual cd)";
+            if (kernel_type == Libsvm.LINEAR_LOGISTIC) kernel = "logistic (dual cd)";
+            return "C=" + C + " gamma=" + gamma + " kernel=" + kernel + " (" + String.format("%.2f", accuracy) + "%)";
+        }
+    }
+
+    LibsvmSearch(String filename) {
+        this.filename = filename;
+    }
+
+    LibsvmSearch(String filename, int no_folds, int eta, int min_rows, long seed) {
+        this.filename = filename;
+        this.no_folds = no_folds;
+        this.eta = eta;
+        this.min_rows = min_rows;
+        this.seed = seed;
+    }
+
+    void init() throws Exception {
+        DataReader reader = new CachedReader(new ARFFreader());
+        reader.readFile(new File(filename).getAbsolutePath());
+        Dataset data = reader.getData();
+
+        double[] c_values = {0.1, 1, 10, 100, 1000};
+        double[] gamma_values = {0.01, 0.05, 0.1, 0.5, 1, 5};
+        int[] kernel_types = {svm_parameter.RBF, svm_parameter.LINEAR};
+        Config best = search(data, grid(c_values, gamma_values, kernel_types), ForkJoinPool.commonPool());
+        System.out.println("Best parameters: " + best);
+
+        Evaluator evaluator = new Evaluator(best.classifier(), data);
+        evaluator.evaluateCV();
+    }
+
+    static List<Config> grid(double[] c_values, double[] gamma_values, int[] kernel_types) {
+        // Linear models do not use gamma
+        List<Config> configs = new ArrayList<>();
+        for (int kernel_type : kernel_types) {
+            for (double c : c_values) {
+                if (kernel_type == svm_parameter.LINEAR || kernel_type == Libsvm.LINEAR_SVM || kernel_type == Libsvm.LINEAR_LOGISTIC) {
+                    configs.add(new Config(c, 0, kernel_type));
+                    continue;
+                }
+                for (double gamma : gamma_values) {
+                    configs.add(new Config(c, gamma, kernel_type));
+                }
+            }
+        }
+        return configs;
+    }
+
+    static List<Config> random(int n, double c_min, double c_max, double gamma_min, double gamma_max, int[] kernel_types, long seed) {
+        // C and gamma are sampled uniformly on a log scale
+        Random rnd = new Random(seed);
+        List<Config> configs = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            double c = Math.exp(Math.log(c_min) + rnd.nextDouble() * (Math.log(c_max) - Math.log(c_min)));
+            double gamma = Math.exp(Math.log(gamma_min) + rnd.nextDouble() * (Math.log(gamma_max) - Math.log(gamma_min)));
+            configs.add(new Config(c, gamma, kernel_types[rnd.nextInt(kernel_types.length)]));
+        }
+        return configs;
+    }
+
+    Config search(Dataset data, List<Config> configs, ExecutorService executor) {
+        // Number of rounds needed to get down to one configuration
+        int no_rounds = 1;
+        for (int k = configs.size(); k > eta; k = (k + eta - 1) / eta) {
+            no_rounds++;
+        }
+
+        // Samples are prefixes of the same permutation, so each round
+        // uses the rows of the previous round and some more
+        int n = data.noInstances();
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Random rnd = new Random(seed);
+        for (int i = n - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+
+        List<Config> alive = new ArrayList<>(configs);
+        for (int round = 0; round < no_rounds; round++) {
+            double scale = Math.pow(eta, no_rounds - 1 - round);
+            int size = round == no_rounds - 1 ? n : (int) Math.min(n, Math.max(min_rows, n / scale));
+            Dataset sample = size == n ? data : data.subset(Arrays.copyOf(order, size));
+            evaluate(sample, alive, executor);
+
+            alive.sort(Comparator.comparingDouble((Config c) -> c.accuracy).reversed());
+            int keep = round == no_rounds - 1 ? 1 : (alive.size() + eta - 1) / eta;
+            alive = new ArrayList<>(alive.subList(0, keep));
+        }
+        return alive.get(0);
+    }
+
+    private void evaluate(Dataset sample, List<Config> configs, ExecutorService executor) {
+        // All configurations use the same folds
+        CrossValidation cv = new CrossValidation(sample, no_folds, 1, seed, true);
+
+        // Each concurrent task gets its share of the kernel cache
+        int no_threads = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism() : Runtime.getRuntime().availableProcessors();
+        double cache_size = Libsvm.CACHE_SIZE / Math.max(1, no_threads);
+        List<Future<Double>> tasks = new ArrayList<>(configs.size() * cv.noFolds());
+        for (Config config : configs) {
+            for (int f = 0; f < cv.noFolds(); f++) {
+                Fold fold = cv.getFold(f);
+                tasks.add(executor.submit(() -> {
+                    Classifier c = config.classifier(cache_size);
+                    c.train(fold.getTrainingSet());
+                    return Evaluator.accuracy(c, fold.getTestData(), false);
+                }));
+            }
+        }
+
+        try {
+            for (int i = 0; i < configs.size(); i++) {
+                double sum = 0;
+                for (int f = 0; f < cv.noFolds(); f++) {
+                    sum += tasks.get(i * cv.noFolds() + f).get();
+                }
+                configs.get(i).accuracy = sum / cv.noFolds();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Parameter search was interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Error evaluating parameters: " + ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+}
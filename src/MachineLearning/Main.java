@@ -11,9 +11,28 @@ public class Main {
 //        dt.train();
 //        dt.test();
 
+//        core.Evaluator tree = new core.Evaluator(new core.DecisionTree(), "./resources/FIFA_skill.arff");
+//        tree.evaluateCVParallel(10);
+
+//        core.Evaluator forest = new core.Evaluator(new core.RandomForest(100), "./resources/matchmaker_fixed.arff");
+//        forest.evaluateCVParallel(10);
+
+//        core.Evaluator mlp = new core.Evaluator(new core.MultilayerPerceptron(), "./resources/matchmaker_fixed.arff");
+//        mlp.evaluateCVParallel(10);
+
 //        Libsvm ls = new Libsvm("./resources/matchmaker_fixed.arff");
 //        ls.init();
 
+//        Libsvm svm = new Libsvm(100, 0.5, libsvm.svm_parameter.RBF);
+//        svm.train(Libsvm.readProblem("./resources/data.libsvm"));
+//        svm.save("./resources/data.model");
+
+//        LibsvmSearch search = new LibsvmSearch("./resources/matchmaker_fixed.arff");
+//        search.init();
+
+//        core.Evaluator knn = new core.Evaluator(new core.NearestNeighbours(5), "./resources/matchmaker_fixed.arff");
+//        knn.evaluateCVParallel(10);
+
         NeuralNetwork nn = new NeuralNetwork("./resources/matchmaker_fixed.arff");
         nn.train();
         nn.test();
@@ -1,6 +1,5 @@
 package MachineLearning;
 
-import weka.classifiers.Classifier;
 import weka.core.*;
 import weka.core.converters.ConverterUtils;
 import weka.filters.Filter;
@@ -8,10 +7,13 @@ import weka.filters.unsupervised.attribute.StringToWordVector;
 import weka.classifiers.bayes.NaiveBayesMultinomial;
 import weka.classifiers.*;
 
-class NaiveBayes {
+class NaiveBayes extends WekaModel {
     private String filename;
-    private  Instances data;
-    private Classifier cl;
+    private StringToWordVector stw;
+    private Instances raw_header;
+
+    private NaiveBayes() {
+    }
 
     NaiveBayes(String filename) throws Exception {
         this.filename = filename;
@@ -21,8 +23,9 @@ class NaiveBayes {
     private void readData() throws Exception {
         ConverterUtils.DataSource source = new ConverterUtils.DataSource(filename);
         Instances raw = source.getDataSet();
+        raw_header = new Instances(raw, 0);
 
-        StringToWordVector stw = new StringToWordVector(10000);
+        stw = new StringToWordVector(10000);
         stw.setLowerCaseTokens(true);
         stw.setInputFormat(raw);
 
@@ -42,4 +45,34 @@ class NaiveBayes {
         System.out.println(eval.toMatrixString());
     }
 
+    @Override
+    void save(String filename) throws Exception {
+        // The filter turns new text instances into word vectors
+        SerializationHelper.writeAll(filename, new Object[]{cl, new Instances(data, 0), stw, raw_header});
+    }
+
+    @Override
+    Object[] readModel(String filename) throws Exception {
+        Object[] model = super.readModel(filename);
+        stw = (StringToWordVector) model[2];
+        raw_header = (Instances) model[3];
+        return model;
+    }
+
+    static NaiveBayes load(String filename) throws Exception {
+        NaiveBayes loaded = new NaiveBayes();
+        loaded.readModel(filename);
+        return loaded;
+    }
+
+    @Override
+    Instances header() {
+        return new Instances(raw_header, 0);
+    }
+
+    @Override
+    String classify(Instance raw) throws Exception {
+        stw.input(raw);
+        return super.classify(stw.output());
+    }
 }
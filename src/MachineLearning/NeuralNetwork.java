@@ -1,16 +1,15 @@
 package MachineLearning;
 
-import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
 import weka.classifiers.functions.MultilayerPerceptron;
-import weka.core.Instances;
 import weka.core.converters.ConverterUtils;
 import java.util.Random;
 
-class NeuralNetwork {
+class NeuralNetwork extends WekaModel {
     private String filename;
-    private Instances data;
-    private Classifier cl;
+
+    private NeuralNetwork() {
+    }
 
     NeuralNetwork(String filename) throws Exception {
         this.filename = filename;
@@ -34,4 +33,10 @@ class NeuralNetwork {
         System.out.println(eval.toSummaryString());
         System.out.println(eval.toMatrixString());
     }
+
+    static NeuralNetwork load(String filename) throws Exception {
+        NeuralNetwork loaded = new NeuralNetwork();
+        loaded.readModel(filename);
+        return loaded;
+    }
 }
@@ -0,0 +1,38 @@
+package MachineLearning;
+
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+// Saving, loading and scoring shared by the Weka classifiers. A model is saved
+// with the header of its training data, which holds the attributes and class
+// values needed to score new instances.
+abstract class WekaModel {
+    Instances data;
+    Classifier cl;
+
+    void save(String filename) throws Exception {
+        SerializationHelper.writeAll(filename, new Object[]{cl, new Instances(data, 0)});
+    }
+
+    // Returns all saved objects, so subclasses can read what they added to the file
+    Object[] readModel(String filename) throws Exception {
+        Object[] model = SerializationHelper.readAll(filename);
+        cl = (Classifier) model[0];
+        data = (Instances) model[1];
+        return model;
+    }
+
+    Instances header() {
+        return new Instances(data, 0);
+    }
+
+    String classify(Instance inst) throws Exception {
+        double value = cl.classifyInstance(inst);
+        if (data.classAttribute().isNominal()) {
+            return data.classAttribute().value((int) value);
+        }
+        return String.valueOf(value);
+    }
+}
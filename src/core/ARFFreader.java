@@ -1,11 +1,20 @@
 
 package core;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * This class reads a dataset from an ARFF file.
+ * This class reads a dataset from an ARFF file. The attribute types declared
+ * in the header are used to parse each column, so numeric attributes are
+ * always numerical and nominal and string attributes are always nominal.
+ * Sparse ARFF files, where all attributes except the class attribute are
+ * numerical, are read into a sparse dataset.
+ * Large files can optionally be parsed in parallel.
  * 
  * @author Johan Hagelbäck (johan.hagelback@gmail.com)
  */
@@ -13,6 +22,16 @@ public class ARFFreader implements DataReader
 {
     /** The dataset */
     private Dataset data;
+    /** If large files are parsed in parallel */
+    private boolean parallel;
+    /** Attribute names from the header */
+    private ArrayList<String> names = new ArrayList<>();
+    /** Attribute types from the header */
+    private ArrayList<Integer> types = new ArrayList<>();
+    /** Declared values of nominal attributes (null for other types) */
+    private ArrayList<String[]> nominal_values = new ArrayList<>();
+    /** Date formats of date attributes (null for other types) */
+    private ArrayList<String> date_formats = new ArrayList<>();
     
     /**
      * Constructor.
@@ -22,6 +41,16 @@ public class ARFFreader implements DataReader
         
     }
     
+    /**
+     * Constructor.
+     * 
+     * @param parallel If true, large files are memory mapped and parsed in parallel
+     */
+    public ARFFreader(boolean parallel)
+    {
+        this.parallel = parallel;
+    }
+    
     /**
      * Reads the dataset file and generates dataset.
      * 
@@ -42,7 +71,8 @@ public class ARFFreader implements DataReader
     }
     
     /**
-     * Reads the dataset file and generates dataset.
+     * Reads the dataset file and generates dataset. The data section is
+     * parsed directly from bytes into the dataset storage.
      * 
      * @param filename Path to the dataset file
      * @param separator Separator char that separates columns in the dataset file
@@ -50,90 +80,215 @@ public class ARFFreader implements DataReader
     @Override
     public void readFile(String filename, String separator)
     {
-        try (BufferedReader in = new BufferedReader(new FileReader(filename))) 
+        try (FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) 
         {
-            String line;
-            ArrayList<String> n_list = new ArrayList<>();
-            String[] names = null;
-            boolean dataSection = false;
-
-            while ((line = in.readLine()) != null)
+            TextParser parser = new TextParser(in, TextParser.separatorChar(separator), true);
+            data = readHeader(parser);
+            
+            //Read all rows in the data section
+            if (parallel)
             {
-                if (line.startsWith("@attribute"))
-                {
-                    //Attribute description row
-                    String[] tokens = line.split(" ");
-                    n_list.add(tokens[1]);
-                }
-                else if (line.startsWith("@data"))
+                parser.readParallel(in, data, ForkJoinPool.commonPool());
+            }
+            else
+            {
+                while (parser.readRow(data))
                 {
-                    //Done with all attributes.
-                    //Copy data to array
-                    names = new String[n_list.size()];
-                    for (int i = 0; i < n_list.size(); i++)
-                    {
-                        names[i] = n_list.get(i);
-                    }
-                    //Create the empty dataset
-                    data = new Dataset(names.length);
-                    data.setAttributeNames(names);
-                    dataSection = true;
                 }
-                else if (dataSection && !line.equals(""))
+            }
+        }
+        catch (Exception ex)
+        {
+            System.out.println("Error reading data file: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Reads the header of an ARFF file, up to and including the @data line.
+     * The returned dataset has no rows, but the columns are declared with the
+     * types from the header, and the parser is set to parse rows with
+     * the same types.
+     * 
+     * @param parser Parser reading the file
+     * @return Empty dataset
+     * @throws IOException If an error occurs when reading
+     */
+    Dataset readHeader(TextParser parser) throws IOException
+    {
+        names.clear();
+        types.clear();
+        nominal_values.clear();
+        date_formats.clear();
+        
+        String line;
+        while ((line = parser.readLine()) != null)
+        {
+            line = line.trim();
+            String keyword = line.toLowerCase();
+            if (keyword.startsWith("@attribute"))
+            {
+                //Attribute description row
+                parseAttribute(line.substring(10).trim());
+            }
+            else if (keyword.startsWith("@data"))
+            {
+                //Done with all attributes.
+                //Create the empty dataset
+                int no_attr = names.size();
+                Dataset empty = new Dataset(no_attr);
+                empty.setAttributeNames(names.toArray(new String[no_attr]));
+                
+                //Set the type of each column from the schema
+                int[] col_types = new int[no_attr];
+                for (int a = 0; a < no_attr; a++)
                 {
-                    String[] values = line.split(separator);
-                    if (values.length != data.noAttributes())
+                    col_types[a] = types.get(a);
+                    if (col_types[a] == TextParser.NOMINAL)
                     {
-                        throw new RuntimeException("Invalid number of attributes: " + values.length + "/" + data.noAttributes());
+                        empty.column(a).declareNominal(nominal_values.get(a));
                     }
-                    
-                    Instance i = new Instance(values.length);
-
-                    //Iterate over each value
-                    for (int a = 0; a < values.length; a++)
+                    if (col_types[a] == TextParser.NUMERIC || col_types[a] == TextParser.DATE)
                     {
-                        String val = values[a];
-
-                        //Check the type of attribute
-                        if (isNumber(val))
-                        {
-                            double num_val = Double.parseDouble(val);
-                            i.setAttributeValue(num_val, a);
-                        }
-                        else
-                        {
-                            i.setAttributeValue(val, a);
-                        }
+                        empty.column(a).declareNumerical();
                     }
-
-                    data.addInstance(i);
                 }
-            }               
+                parser.setSchema(col_types, date_formats.toArray(new String[no_attr]));
+                
+                //Sparse data with only numerical attributes (except the class
+                //attribute) is stored as sparse rows
+                boolean numerical = true;
+                for (int a = 0; a < no_attr - 1; a++)
+                {
+                    numerical &= col_types[a] == TextParser.NUMERIC || col_types[a] == TextParser.DATE;
+                }
+                if (numerical && no_attr > 1 && parser.peekSparse())
+                {
+                    empty.makeSparse();
+                }
+                return empty;
+            }
         }
-        catch (Exception ex)
+        throw new RuntimeException("Missing @data section");
+    }
+    
+    /**
+     * Parses an attribute declaration: the name (possibly quoted) followed by
+     * the type. Supported types are numeric, real, integer, nominal ({a,b,c}),
+     * string and date (with an optional date format).
+     * 
+     * @param def The declaration, without the @attribute keyword
+     */
+    private void parseAttribute(String def)
+    {
+        //Attribute name
+        String name;
+        String type;
+        char q = def.isEmpty() ? ' ' : def.charAt(0);
+        if (q == '\'' || q == '"')
         {
-            System.out.println("Error reading data file: " + ex.getMessage());
-            System.exit(1);
+            int e = def.indexOf(q, 1);
+            if (e < 0)
+            {
+                throw new RuntimeException("Invalid attribute declaration: " + def);
+            }
+            name = def.substring(1, e);
+            type = def.substring(e + 1).trim();
         }
+        else
+        {
+            String[] tokens = def.split("\\s+", 2);
+            name = tokens[0];
+            type = tokens.length > 1 ? tokens[1].trim() : "";
+        }
+        
+        //Attribute type
+        String[] values = null;
+        String format = null;
+        int col_type;
+        if (type.startsWith("{"))
+        {
+            int e = type.lastIndexOf('}');
+            if (e < 0)
+            {
+                throw new RuntimeException("Invalid nominal values for attribute " + name + ": " + type);
+            }
+            values = splitValues(type.substring(1, e));
+            col_type = TextParser.NOMINAL;
+        }
+        else
+        {
+            String[] tokens = type.split("\\s+", 2);
+            switch (tokens[0].toLowerCase())
+            {
+                case "numeric":
+                case "real":
+                case "integer":
+                    col_type = TextParser.NUMERIC;
+                    break;
+                case "string":
+                    col_type = TextParser.STRING;
+                    break;
+                case "date":
+                    col_type = TextParser.DATE;
+                    if (tokens.length > 1) format = unquote(tokens[1].trim());
+                    break;
+                default:
+                    throw new RuntimeException("Unsupported type for attribute " + name + ": " + type);
+            }
+        }
+        
+        names.add(name);
+        types.add(col_type);
+        nominal_values.add(values);
+        date_formats.add(format);
     }
     
     /**
-     * Checks if a string is a number.
+     * Splits a comma separated list of nominal values. Values can be quoted.
      * 
-     * @param v The string
-     * @return True if the string is a number, false otherwise
+     * @param list The list
+     * @return Values
      */
-    private boolean isNumber(String v)
+    private String[] splitValues(String list)
     {
-        try
+        ArrayList<String> values = new ArrayList<>();
+        int start = 0;
+        char quote = 0;
+        for (int i = 0; i <= list.length(); i++)
         {
-            Double.parseDouble(v);
-            return true;
+            char c = i < list.length() ? list.charAt(i) : ',';
+            if (quote != 0)
+            {
+                if (c == '\\') i++;
+                else if (c == quote) quote = 0;
+            }
+            else if (c == '\'' || c == '"')
+            {
+                quote = c;
+            }
+            else if (c == ',')
+            {
+                values.add(unquote(list.substring(start, Math.min(i, list.length())).trim()));
+                start = i + 1;
+            }
         }
-        catch (NumberFormatException ex)
+        return values.toArray(new String[values.size()]);
+    }
+    
+    /**
+     * Removes quotes around a value.
+     * 
+     * @param v The value
+     * @return Value without quotes
+     */
+    private String unquote(String v)
+    {
+        if (v.length() >= 2 && (v.charAt(0) == '\'' || v.charAt(0) == '"') && v.charAt(v.length() - 1) == v.charAt(0))
         {
-            return false;
+            return v.substring(1, v.length() - 1);
         }
+        return v;
     }
     
     /**
@@ -1,10 +1,16 @@
 
 package core;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
 
 /**
- * This class reads a dataset from a CSV file.
+ * This class reads a dataset from a CSV file. Large files can optionally
+ * be parsed in parallel.
  * 
  * @author Johan Hagelbäck (johan.hagelback@gmail.com)
  */
@@ -12,6 +18,8 @@ public class CSVreader implements DataReader
 {
     /** The dataset */
     private Dataset data;
+    /** If large files are parsed in parallel */
+    private boolean parallel;
     
     /**
      * Constructor.
@@ -21,6 +29,16 @@ public class CSVreader implements DataReader
         
     }
     
+    /**
+     * Constructor.
+     * 
+     * @param parallel If true, large files are memory mapped and parsed in parallel
+     */
+    public CSVreader(boolean parallel)
+    {
+        this.parallel = parallel;
+    }
+    
     /**
      * Reads the dataset file and generates dataset.
      * 
@@ -41,7 +59,8 @@ public class CSVreader implements DataReader
     }
     
     /**
-     * Reads the dataset file and generates dataset.
+     * Reads the dataset file and generates dataset. The rows are parsed
+     * directly from bytes into the dataset storage.
      * 
      * @param filename Path to the dataset file
      * @param separator Separator char that separates columns in the dataset file
@@ -49,42 +68,22 @@ public class CSVreader implements DataReader
     @Override
     public void readFile(String filename, String separator)
     {
-        //Read header line (with attribute names)
-        try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
-            //Read header line (with attribute names)
-            String line = in.readLine();
-            String[] names = line.split(separator);
-            data.setAttributeNames(names);
-            data = new Dataset(names.length);
-
-            while ((line = in.readLine()) != null)
+        try (FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
+        {
+            TextParser parser = new TextParser(in, TextParser.separatorChar(separator), false);
+            
+            data = readHeader(parser, separator);
+            
+            //Read all rows
+            if (parallel)
             {
-                String[] values = line.split(separator);
-                if (values.length != data.noAttributes())
-                {
-                    throw new RuntimeException("Invalid number of attributes: " + values.length + "/" + data.noAttributes());
-                }
-                
-                Instance i = new Instance(values.length);
-
-                //Iterate over each value
-                for (int a = 0; a < values.length; a++)
+                parser.readParallel(in, data, ForkJoinPool.commonPool());
+            }
+            else
+            {
+                while (parser.readRow(data))
                 {
-                    String val = values[a];
-
-                    //Check the type of attribute
-                    if (isNumber(val))
-                    {
-                        double num_val = Double.parseDouble(val);
-                        i.setAttributeValue(num_val, a);
-                    }
-                    else
-                    {
-                        i.setAttributeValue(val, a);
-                    }
                 }
-
-                data.addInstance(i);
             }
         }
         catch (Exception ex)
@@ -95,22 +94,24 @@ public class CSVreader implements DataReader
     }
     
     /**
-     * Checks if a string is a number.
+     * Reads the header line (with attribute names) of a CSV file.
      * 
-     * @param v The string
-     * @return True if the string is a number, false otherwise
+     * @param parser Parser reading the file
+     * @param separator Separator char that separates columns in the dataset file
+     * @return Empty dataset
+     * @throws IOException If an error occurs when reading
      */
-    private boolean isNumber(String v)
+    static Dataset readHeader(TextParser parser, String separator) throws IOException
     {
-        try
-        {
-            Double.parseDouble(v);
-            return true;
-        }
-        catch (NumberFormatException ex)
+        String line = parser.readLine();
+        if (line == null)
         {
-            return false;
+            throw new RuntimeException("Missing header line");
         }
+        String[] names = line.split(Pattern.quote(separator));
+        Dataset empty = new Dataset(names.length);
+        empty.setAttributeNames(names);
+        return empty;
     }
     
     /**
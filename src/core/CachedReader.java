@@ -0,0 +1,351 @@
+
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * This class reads a dataset through a binary cache. The first time a dataset
+ * file is read, it is parsed by another reader and written to a cache file
+ * next to it. Later reads memory map the cache file and copy the columns
+ * directly into the dataset storage, which is much faster than parsing text.
+ * The cache is rebuilt if the size or modification time of the dataset
+ * file has changed, or if it was written by another reader or with another
+ * separator.
+ * 
+ * The cache file starts with a header holding the schema: attribute names,
+ * the type of each column, the values of nominal columns and the class values.
+ * The header is followed by one block per column (doubles for numerical columns,
+ * int codes for nominal columns) and a block of class value codes. All blocks
+ * start at positions that are multiples of 8. Sparse datasets are not cached.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class CachedReader implements DataReader
+{
+    /** Reader used when the cache is missing or stale */
+    private DataReader reader;
+    /** The dataset */
+    private Dataset data;
+    
+    /** Identifies a cache file */
+    private static final int MAGIC = 0x4D4C4443;
+    /** Version of the cache format */
+    private static final int VERSION = 3;
+    /** Size of the buffer used when writing column blocks */
+    private static final int BLOCK_BUFFER_SIZE = 1 << 16;
+    
+    /**
+     * Constructor.
+     * 
+     * @param reader Reader used when the cache is missing or stale
+     */
+    public CachedReader(DataReader reader)
+    {
+        this.reader = reader;
+    }
+    
+    /**
+     * Reads the dataset file and generates dataset.
+     * 
+     * @param filename Path to the dataset file
+     */
+    @Override
+    public void readFile(String filename)
+    {
+        readFile(filename, null);
+    }
+    
+    /**
+     * Reads the dataset file and generates dataset.
+     * 
+     * @param filename Path to the dataset file
+     * @param separator Separator char that separates columns in the dataset file
+     */
+    @Override
+    public void readFile(String filename, String separator)
+    {
+        Path source = Paths.get(filename);
+        File cache = cacheFile(filename);
+        String reader_name = reader.getClass().getName();
+        long size = 0;
+        long modified = 0;
+        try
+        {
+            size = Files.size(source);
+            modified = Files.getLastModifiedTime(source).toMillis();
+            data = read(cache, size, modified, reader_name, separator);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            //Missing or broken cache, parse the dataset file instead
+            data = null;
+        }
+        if (data != null)
+        {
+            return;
+        }
+        
+        if (separator == null) reader.readFile(filename);
+        else reader.readFile(filename, separator);
+        data = reader.getData();
+        
+        try
+        {
+            write(data, cache, size, modified, reader_name, separator);
+        }
+        catch (IOException ex)
+        {
+            //The cache is optional, for example if the directory is read-only
+        }
+    }
+    
+    /**
+     * Returns the cache file for a dataset file.
+     * 
+     * @param filename Path to the dataset file
+     * @return The cache file
+     */
+    public static File cacheFile(String filename)
+    {
+        return new File(filename + ".cache");
+    }
+    
+    /**
+     * Writes a dataset to a cache file. The file is first written to a temporary
+     * file, so a cache file is never partly written. Sparse datasets cannot
+     * be written.
+     * 
+     * @param data The dataset
+     * @param file The cache file
+     * @param source_size Size of the dataset file
+     * @param source_modified Modification time of the dataset file
+     * @param reader_name Class name of the reader that parsed the dataset file
+     * @param separator Separator used when parsing (can be null)
+     * @throws IOException If an error occurs when writing
+     */
+    public static void write(Dataset data, File file, long source_size, long source_modified, String reader_name, String separator) throws IOException
+    {
+        if (data.isSparse())
+        {
+            throw new IOException("Sparse datasets are not cached");
+        }
+        int no_attr = data.noAttributes();
+        int no_rows = data.noInstances();
+        
+        //Header
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(source_size);
+        out.writeLong(source_modified);
+        Schema.writeString(out, reader_name);
+        Schema.writeString(out, separator);
+        out.writeInt(no_rows);
+        new Schema(data).write(out);
+        out.flush();
+        
+        Path tmp = Paths.get(file.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            //Fixed start: magic, version and the position of the first block
+            ByteBuffer start = ByteBuffer.allocate(16);
+            start.putInt(MAGIC);
+            start.putInt(VERSION);
+            start.putLong(align(16 + bytes.size()));
+            start.flip();
+            writeFully(ch, start);
+            writeFully(ch, ByteBuffer.wrap(bytes.toByteArray()));
+            pad(ch);
+            
+            //Column blocks
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_BUFFER_SIZE);
+            for (int a = 0; a < no_attr; a++)
+            {
+                if (data.isNumerical(a))
+                {
+                    double[] values = data.getNumericalColumn(a);
+                    for (int r = 0; r < no_rows; r++)
+                    {
+                        if (block.remaining() < 8) flush(ch, block);
+                        block.putDouble(values[data.rowIndex(r)]);
+                    }
+                }
+                else if (data.isNominal(a))
+                {
+                    int[] codes = data.getNominalColumn(a);
+                    for (int r = 0; r < no_rows; r++)
+                    {
+                        if (block.remaining() < 4) flush(ch, block);
+                        block.putInt(codes[data.rowIndex(r)]);
+                    }
+                }
+                flush(ch, block);
+                pad(ch);
+            }
+            
+            //Class value codes
+            int[] class_codes = data.getClassCodes();
+            for (int r = 0; r < no_rows; r++)
+            {
+                if (block.remaining() < 4) flush(ch, block);
+                block.putInt(class_codes[data.rowIndex(r)]);
+            }
+            flush(ch, block);
+        }
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Reads a dataset from a cache file. A damaged cache file can also cause
+     * a RuntimeException, such as BufferUnderflowException.
+     * 
+     * @param file The cache file
+     * @param source_size Size of the dataset file
+     * @param source_modified Modification time of the dataset file
+     * @param reader_name Class name of the reader that parses the dataset file
+     * @param separator Separator used when parsing (can be null)
+     * @return The dataset, or null if the cache file is missing or stale
+     * @throws IOException If an error occurs when reading
+     */
+    public static Dataset read(File file, long source_size, long source_modified, String reader_name, String separator) throws IOException
+    {
+        if (!file.isFile())
+        {
+            return null;
+        }
+        
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            if (ch.size() < 16)
+            {
+                return null;
+            }
+            ByteBuffer start = ch.map(FileChannel.MapMode.READ_ONLY, 0, 16);
+            if (start.getInt() != MAGIC || start.getInt() != VERSION)
+            {
+                return null;
+            }
+            long pos = start.getLong();
+            
+            //Header
+            ByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 16, pos - 16);
+            if (in.getLong() != source_size || in.getLong() != source_modified)
+            {
+                return null;
+            }
+            if (!reader_name.equals(Schema.readString(in)) || !Objects.equals(separator, Schema.readString(in)))
+            {
+                return null;
+            }
+            int no_rows = in.getInt();
+            Schema schema = Schema.read(in);
+            int no_attr = schema.noAttributes();
+            
+            //Column blocks are copied directly to the column storage
+            Column[] cols = new Column[no_attr];
+            for (int a = 0; a < no_attr; a++)
+            {
+                if (schema.types[a] == Schema.NUMERICAL)
+                {
+                    double[] values = new double[Math.max(no_rows, 1)];
+                    if (no_rows > 0) ch.map(FileChannel.MapMode.READ_ONLY, pos, 8L * no_rows).asDoubleBuffer().get(values, 0, no_rows);
+                    cols[a] = Column.numerical(values, no_rows);
+                    pos += 8L * no_rows;
+                }
+                else if (schema.types[a] == Schema.NOMINAL)
+                {
+                    int[] codes = new int[Math.max(no_rows, 1)];
+                    if (no_rows > 0) ch.map(FileChannel.MapMode.READ_ONLY, pos, 4L * no_rows).asIntBuffer().get(codes, 0, no_rows);
+                    cols[a] = Column.nominal(codes, schema.symbols[a], no_rows);
+                    pos += align(4L * no_rows);
+                }
+                else
+                {
+                    cols[a] = new Column();
+                }
+            }
+            int[] class_codes = new int[Math.max(no_rows, 1)];
+            if (no_rows > 0) ch.map(FileChannel.MapMode.READ_ONLY, pos, 4L * no_rows).asIntBuffer().get(class_codes, 0, no_rows);
+            
+            Dataset data = new Dataset(cols, no_rows, schema.class_values, class_codes);
+            data.setAttributeNames(schema.names);
+            return data;
+        }
+    }
+    
+    /**
+     * Rounds a position up to a multiple of 8.
+     * 
+     * @param pos The position
+     * @return Aligned position
+     */
+    private static long align(long pos)
+    {
+        return (pos + 7) & ~7L;
+    }
+    
+    /**
+     * Writes zeros until the file position is a multiple of 8.
+     * 
+     * @param ch The file
+     * @throws IOException If an error occurs when writing
+     */
+    private static void pad(FileChannel ch) throws IOException
+    {
+        int n = (int)(align(ch.position()) - ch.position());
+        if (n > 0)
+        {
+            writeFully(ch, ByteBuffer.allocate(n));
+        }
+    }
+    
+    /**
+     * Writes the contents of a buffer and clears it.
+     * 
+     * @param ch The file
+     * @param block The buffer
+     * @throws IOException If an error occurs when writing
+     */
+    private static void flush(FileChannel ch, ByteBuffer block) throws IOException
+    {
+        block.flip();
+        writeFully(ch, block);
+        block.clear();
+    }
+    
+    /**
+     * Writes all remaining bytes in a buffer.
+     * 
+     * @param ch The file
+     * @param b The buffer
+     * @throws IOException If an error occurs when writing
+     */
+    private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException
+    {
+        while (b.hasRemaining())
+        {
+            ch.write(b);
+        }
+    }
+    
+    /**
+     * Returns the dataset.
+     * 
+     * @return The dataset
+     */
+    @Override
+    public Dataset getData()
+    {
+        return data;
+    }
+}
@@ -1,9 +1,20 @@
 
 package core;
 
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
 /**
  * Interface for classifiers.
  * 
+ * A trained classifier is not required to be thread safe. Code that trains
+ * or classifies from several threads should use copy() to get a separate
+ * classifier for each thread, or check isThreadSafe() before sharing a
+ * trained classifier.
+ * 
+ * Predictions are available as Result objects from classify(), or without
+ * allocation as class value indexes from classifyIndex() and classifyBatch().
+ * 
  * @author Johan Hagelbäck (johan.hagelback@gmail.com)
  */
 public interface Classifier 
@@ -22,4 +33,126 @@ public interface Classifier
      * @return Predicted class value for the instance
      */
     public Result classify(Instance inst);
+    
+    /**
+     * Classifies an instance and returns the predicted class value as an index
+     * into the distinct class values of the training dataset. Classifiers on
+     * latency sensitive paths should override this to avoid creating a Result.
+     * The default implementation calls classify() and looks up the result in
+     * the class values of the dataset the instance is a view of, which share
+     * class values with the training dataset when both are views of the same
+     * dataset.
+     * 
+     * @param inst The instance
+     * @return Index of the predicted class value, or -1 if unknown
+     */
+    public default int classifyIndex(Instance inst)
+    {
+        Result res = classify(inst);
+        Dataset data = inst.dataset();
+        if (data == null)
+        {
+            return -1;
+        }
+        return data.getDistinctClassValues().indexOf(res);
+    }
+    
+    /**
+     * Classifies an instance and writes the probability of each class value
+     * to probs, indexed like the distinct class values of the training dataset.
+     * The default implementation gives the predicted class value probability 1.
+     * 
+     * @param inst The instance
+     * @param probs Class value probabilities (at least one per class value)
+     * @return Index of the predicted class value, or -1 if unknown
+     */
+    public default int classifyIndex(Instance inst, double[] probs)
+    {
+        int index = classifyIndex(inst);
+        Arrays.fill(probs, 0);
+        if (index >= 0)
+        {
+            probs[index] = 1;
+        }
+        return index;
+    }
+    
+    /**
+     * Classifies an instance and returns the predicted numerical value.
+     * 
+     * @param inst The instance
+     * @return Predicted value
+     */
+    public default double classifyValue(Instance inst)
+    {
+        return classify(inst).numericalValue();
+    }
+    
+    /**
+     * Creates a new untrained classifier with the same settings as this
+     * classifier. Used to train several classifiers at the same time, for
+     * example one per fold in parallel cross validation.
+     * 
+     * @return A new untrained classifier
+     */
+    public Classifier copy();
+    
+    /**
+     * Classifies the rows from (inclusive) and to (exclusive) in a dataset.
+     * The predicted class value of row r is written to out[r], as an index into
+     * the distinct class values of the dataset (-1 if the predicted value is
+     * not one of them). The default implementation calls classifyIndex() for
+     * each row; classifiers can override it to share setup between rows.
+     * 
+     * @param data The dataset
+     * @param from First row to classify
+     * @param to Row after the last row to classify
+     * @param out Predicted class value codes, indexed by row
+     */
+    public default void classifyBatch(Dataset data, int from, int to, int[] out)
+    {
+        for (int r = from; r < to; r++)
+        {
+            out[r] = classifyIndex(data.getInstance(r));
+        }
+    }
+    
+    /**
+     * Classifies all rows in a dataset. The predicted class value of row r
+     * is written to out[r], as an index into the distinct class values of
+     * the dataset. If parallel is set and the classifier is thread safe,
+     * the rows are split in ranges that are classified on all cores.
+     * 
+     * @param data The dataset
+     * @param out Predicted class value codes, indexed by row
+     * @param parallel If true, classify ranges of rows in parallel
+     */
+    public default void classifyBatch(Dataset data, int[] out, boolean parallel)
+    {
+        int n = data.noInstances();
+        int no_ranges = Math.min(n / 256, 4 * Runtime.getRuntime().availableProcessors());
+        if (!parallel || !isThreadSafe() || no_ranges < 2)
+        {
+            classifyBatch(data, 0, n, out);
+            return;
+        }
+        
+        IntStream.range(0, no_ranges).parallel().forEach((i) -> {
+            int from = (int)((long)n * i / no_ranges);
+            int to = (int)((long)n * (i + 1) / no_ranges);
+            classifyBatch(data, from, to, out);
+        });
+    }
+    
+    /**
+     * Checks if this classifier, once trained, can classify instances from
+     * several threads at the same time. Training is never thread safe; use
+     * copy() to get one classifier per thread.
+     * 
+     * @return True if classify() is thread safe after training
+     */
+    public default boolean isThreadSafe()
+    {
+        return false;
+    }
 }
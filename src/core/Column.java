@@ -0,0 +1,445 @@
+
+package core;
+
+import java.util.Arrays;
+
+/**
+ * This class holds all values of one attribute (column) in a dataset.
+ * Numerical columns are stored in a primitive double array and nominal
+ * columns as int codes into a symbol table of the distinct values in the column.
+ * The type of a column is set by the first value added to it. If a nominal
+ * value is added to a numerical column, the column is converted to nominal.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+class Column
+{
+    /** Numerical values */
+    private double[] num_values;
+    /** Nominal values, stored as codes */
+    private int[] nom_codes;
+    /** Nominal values, indexed by code */
+    private SymbolTable symbols;
+    /** Number of values in the column */
+    private int size;
+    /** Number of values added before the column was converted to nominal */
+    private int nominal_from;
+    
+    /** Column type */
+    private int type = UNKNOWN;
+    /** No values added yet */
+    private static final int UNKNOWN = -1;
+    /** Nominal (string) column */
+    private static final int NOMINAL = 0;
+    /** Numerical column */
+    private static final int NUMERICAL = 1;
+    
+    /** Initial capacity of the value arrays */
+    private static final int INITIAL_CAPACITY = 16;
+    
+    /**
+     * Creates a new empty column.
+     */
+    public Column()
+    {
+        size = 0;
+    }
+    
+    /**
+     * Creates a numerical column from an array of values.
+     * 
+     * @param values The values (used as storage, not copied)
+     * @param size Number of values
+     * @return The column
+     */
+    static Column numerical(double[] values, int size)
+    {
+        Column col = new Column();
+        col.num_values = values;
+        col.size = size;
+        col.type = NUMERICAL;
+        return col;
+    }
+    
+    /**
+     * Creates a nominal column from an array of codes.
+     * 
+     * @param codes The codes (used as storage, not copied)
+     * @param symbols Symbol table for the codes
+     * @param size Number of values
+     * @return The column
+     */
+    static Column nominal(int[] codes, SymbolTable symbols, int size)
+    {
+        Column col = new Column();
+        col.nom_codes = codes;
+        col.symbols = symbols;
+        col.size = size;
+        col.type = NOMINAL;
+        return col;
+    }
+    
+    /**
+     * Creates a new empty column with the same type and nominal values
+     * as this column.
+     * 
+     * @return The empty column
+     */
+    public Column emptyCopy()
+    {
+        Column col = new Column();
+        if (type == NUMERICAL)
+        {
+            col.declareNumerical();
+        }
+        if (type == NOMINAL)
+        {
+            String[] values = new String[symbols.size()];
+            for (int c = 0; c < values.length; c++)
+            {
+                values[c] = symbols.decode(c);
+            }
+            col.declareNominal(values);
+        }
+        return col;
+    }
+    
+    /**
+     * Declares an empty column as numerical.
+     */
+    public void declareNumerical()
+    {
+        if (type == UNKNOWN)
+        {
+            num_values = new double[INITIAL_CAPACITY];
+            type = NUMERICAL;
+        }
+    }
+    
+    /**
+     * Declares an empty column as nominal. The declared values get the codes
+     * 0 to values.length - 1, in the declared order.
+     * 
+     * @param values Declared values
+     */
+    public void declareNominal(String[] values)
+    {
+        if (type == UNKNOWN)
+        {
+            symbols = new SymbolTable(values.length);
+            for (String v : values)
+            {
+                symbols.encode(v);
+            }
+            nom_codes = new int[INITIAL_CAPACITY];
+            type = NOMINAL;
+        }
+    }
+    
+    /**
+     * Adds a numerical value to the end of the column.
+     * 
+     * @param value The value
+     */
+    public void add(double value)
+    {
+        if (type == UNKNOWN)
+        {
+            num_values = new double[INITIAL_CAPACITY];
+            type = NUMERICAL;
+        }
+        if (type == NOMINAL)
+        {
+            add(value + "");
+            return;
+        }
+        if (size == num_values.length)
+        {
+            num_values = Arrays.copyOf(num_values, size * 2);
+        }
+        num_values[size++] = value;
+    }
+    
+    /**
+     * Adds a nominal value to the end of the column.
+     * 
+     * @param value The value
+     * @return Code for the value
+     */
+    public int add(String value)
+    {
+        if (type != NOMINAL)
+        {
+            toNominal();
+        }
+        int code = symbols.encode(value);
+        addCode(code);
+        return code;
+    }
+    
+    /**
+     * Adds a nominal value, given by its code, to the end of a nominal column.
+     * 
+     * @param code Code for the value
+     */
+    public void addCode(int code)
+    {
+        if (size == nom_codes.length)
+        {
+            nom_codes = Arrays.copyOf(nom_codes, size * 2);
+        }
+        nom_codes[size++] = code;
+    }
+    
+    /**
+     * Adds all values in another column to the end of this column. The result
+     * is the same as adding the values one by one, including conversion to
+     * nominal if the other column is nominal.
+     * 
+     * @param other The other column
+     */
+    public void addAll(Column other)
+    {
+        int n = other.size;
+        if (other.type == NUMERICAL)
+        {
+            if (type == NOMINAL)
+            {
+                for (int r = 0; r < n; r++)
+                {
+                    add(other.num_values[r]);
+                }
+                return;
+            }
+            if (type == UNKNOWN)
+            {
+                num_values = new double[Math.max(INITIAL_CAPACITY, n)];
+                type = NUMERICAL;
+            }
+            if (size + n > num_values.length)
+            {
+                num_values = Arrays.copyOf(num_values, Math.max(num_values.length * 2, size + n));
+            }
+            System.arraycopy(other.num_values, 0, num_values, size, n);
+            size += n;
+        }
+        else if (other.type == NOMINAL)
+        {
+            if (type != NOMINAL)
+            {
+                toNominal();
+            }
+            
+            //Translate the codes of the other column to codes in this column
+            int[] map = new int[other.symbols.size()];
+            for (int c = 0; c < map.length; c++)
+            {
+                map[c] = symbols.encode(other.symbols.decode(c));
+            }
+            if (size + n > nom_codes.length)
+            {
+                nom_codes = Arrays.copyOf(nom_codes, Math.max(nom_codes.length * 2, size + n));
+            }
+            for (int r = 0; r < n; r++)
+            {
+                nom_codes[size + r] = map[other.nom_codes[r]];
+            }
+            size += n;
+        }
+    }
+    
+    /**
+     * Removes all values from the column. The type, the symbol table and the
+     * storage arrays are kept, so codes stay the same when values are added again.
+     */
+    public void clear()
+    {
+        size = 0;
+        nominal_from = 0;
+    }
+    
+    /**
+     * Removes all values from the column and replaces the symbol table of a
+     * nominal column with an empty one, for columns where most values are
+     * unique and keeping them would use memory for every value ever added.
+     * The previous symbol table is not changed.
+     */
+    void clearSymbols()
+    {
+        clear();
+        if (type == NOMINAL)
+        {
+            symbols = new SymbolTable();
+        }
+    }
+    
+    /**
+     * Sets a numerical value.
+     * 
+     * @param row Row index
+     * @param value The value
+     */
+    public void set(int row, double value)
+    {
+        if (type == NOMINAL)
+        {
+            set(row, value + "");
+            return;
+        }
+        num_values[row] = value;
+    }
+    
+    /**
+     * Sets a nominal value.
+     * 
+     * @param row Row index
+     * @param value The value
+     */
+    public void set(int row, String value)
+    {
+        if (type != NOMINAL)
+        {
+            toNominal();
+        }
+        nom_codes[row] = symbols.encode(value);
+    }
+    
+    /**
+     * Returns the numerical value at the specified row. Nominal columns
+     * return 0.
+     * 
+     * @param row Row index
+     * @return The value
+     */
+    public double numericalValue(int row)
+    {
+        if (type == NUMERICAL) return num_values[row];
+        else return 0;
+    }
+    
+    /**
+     * Returns the nominal value at the specified row. Numerical columns
+     * return null.
+     * 
+     * @param row Row index
+     * @return The value
+     */
+    public String nominalValue(int row)
+    {
+        if (type == NOMINAL) return symbols.decode(nom_codes[row]);
+        else return null;
+    }
+    
+    /**
+     * Returns the value at the specified row as an attribute object.
+     * 
+     * @param row Row index
+     * @return The attribute
+     */
+    public Attribute getAttribute(int row)
+    {
+        if (type == NOMINAL) return new Attribute(nominalValue(row));
+        else return new Attribute(numericalValue(row));
+    }
+    
+    /**
+     * Returns the backing array for a numerical column. Only the first
+     * size() values are valid.
+     * 
+     * @return Numerical values
+     */
+    public double[] numericalValues()
+    {
+        return num_values;
+    }
+    
+    /**
+     * Returns the backing array of codes for a nominal column. Only the
+     * first size() values are valid.
+     * 
+     * @return Nominal value codes
+     */
+    public int[] nominalCodes()
+    {
+        return nom_codes;
+    }
+    
+    /**
+     * Returns the nominal value for a code.
+     * 
+     * @param code The code
+     * @return Nominal value
+     */
+    public String decode(int code)
+    {
+        return symbols.decode(code);
+    }
+    
+    /**
+     * Returns the symbol table for a nominal column.
+     * 
+     * @return Symbol table
+     */
+    public SymbolTable symbols()
+    {
+        return symbols;
+    }
+    
+    /**
+     * Returns the number of values in the column.
+     * 
+     * @return Number of values
+     */
+    public int size()
+    {
+        return size;
+    }
+    
+    /**
+     * Returns the number of values that were added as numerical values before
+     * the column was converted to nominal.
+     * 
+     * @return Number of values
+     */
+    public int nominalFrom()
+    {
+        return nominal_from;
+    }
+    
+    /**
+     * Checks if this column is numerical.
+     * 
+     * @return True if numerical, false otherwise
+     */
+    public boolean isNumerical()
+    {
+        return type == NUMERICAL;
+    }
+    
+    /**
+     * Checks if this column is nominal.
+     * 
+     * @return True if nominal, false otherwise
+     */
+    public boolean isNominal()
+    {
+        return type == NOMINAL;
+    }
+    
+    /**
+     * Converts this column to a nominal column. Numerical values already
+     * in the column are converted to strings.
+     */
+    private void toNominal()
+    {
+        symbols = new SymbolTable();
+        nom_codes = new int[Math.max(INITIAL_CAPACITY, size)];
+        for (int r = 0; r < size; r++)
+        {
+            nom_codes[r] = symbols.encode(num_values[r] + "");
+        }
+        num_values = null;
+        nominal_from = size;
+        type = NOMINAL;
+    }
+}
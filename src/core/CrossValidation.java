@@ -6,13 +6,24 @@ import java.util.Random;
 
 /**
  * This class generates the folds (training and test sets) used
- * in 10-fold cross validation. The class only separates the data
+ * in k-fold cross validation. The class only separates the data
  * set into folds, it does not run the actual training and evaluation
  * of the folds.
  * 
+ * The rows are shuffled with a single seeded Fisher-Yates permutation,
+ * so building the folds takes linear time. Folds can optionally be
+ * stratified (each fold gets about the same class distribution as the
+ * full dataset), and the whole procedure can be repeated with a new
+ * permutation for each repetition (for example 5x2 or 10x10 CV).
+ * 
+ * The folds are views of the full dataset. All test sets of a repetition
+ * are stored after each other in one array of row indexes, so the test set
+ * of a fold is a range in the array and the training set is the rest of
+ * the array.
+ * 
  * @author Johan Hagelbäck (johan.hagelback@gmail.com)
  */
-public class CrossValidation 
+public class CrossValidation
 {
     /** The full dataset */
     private Dataset data;
@@ -20,11 +31,12 @@ public class CrossValidation
     private Random rnd;
     /** List of folds */
     private ArrayList<Fold> folds;
-    
-    /** Internal: flags the instances that have been used in test sets */
-    private boolean[] used;
-    /** Internal: flags the instances in the current test set */
-    private boolean[] usedInFold;
+    /** Number of folds in each repetition */
+    private int no_folds;
+    /** Number of repetitions */
+    private int no_repeats;
+    /** If the folds are stratified by class value */
+    private boolean stratified;
     
     /**
      * Builds a new cross validation model with 10 folds from the
@@ -34,103 +46,191 @@ public class CrossValidation
      */
     public CrossValidation(Dataset data)
     {
+        this(data, 10);
+    }
+    
+    /**
+     * Builds a new cross validation model from the specified dataset.
+     * 
+     * @param data The full dataset
+     * @param no_folds Number of folds
+     */
+    public CrossValidation(Dataset data, int no_folds)
+    {
+        this(data, no_folds, 1, 1, false);
+    }
+    
+    /**
+     * Builds a new repeated cross validation model from the specified dataset.
+     * 
+     * @param data The full dataset
+     * @param no_folds Number of folds in each repetition
+     * @param no_repeats Number of repetitions
+     * @param seed Random seed
+     * @param stratified If true, each fold gets the same class distribution as the dataset
+     */
+    public CrossValidation(Dataset data, int no_folds, int no_repeats, long seed, boolean stratified)
+    {
+        if (no_folds < 2 || no_folds > data.noInstances())
+        {
+            throw new IllegalArgumentException("Number of folds must be between 2 and the number of instances");
+        }
+        if (no_repeats < 1)
+        {
+            throw new IllegalArgumentException("Number of repetitions must be at least 1");
+        }
+        
         this.data = data;
-        folds = new ArrayList<>();
-        rnd = new Random(1);
-        buildModel();
+        this.no_folds = no_folds;
+        this.no_repeats = no_repeats;
+        this.stratified = stratified;
+        folds = new ArrayList<>(no_folds * no_repeats);
+        rnd = new Random(seed);
+        
+        for (int r = 0; r < no_repeats; r++)
+        {
+            //Each repetition gets its own seed
+            buildModel(new Random(rnd.nextLong()));
+        }
     }
     
     /**
-     * Builds the cross validation folds.
+     * Builds the cross validation folds for one repetition.
+     * 
+     * @param rnd Randomizer for this repetition
      */
-    private void buildModel()
+    private void buildModel(Random rnd)
     {
-        //Keeps track of which instances that have been
-        //used in test sets so far
-        used = new boolean[data.noInstances()];
+        int n = data.noInstances();
+        
+        //Step 1: Shuffle the rows (Fisher-Yates)
+        int[] perm = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            perm[i] = data.rowIndex(i);
+        }
+        for (int i = n - 1; i > 0; i--)
+        {
+            int j = rnd.nextInt(i + 1);
+            int tmp = perm[i];
+            perm[i] = perm[j];
+            perm[j] = tmp;
+        }
         
-        //Step 1: Calculate sizes of test sets
-        int base = data.noInstances() / 10;
-        int rest = data.noInstances() % 10;
+        //Step 2: Order the rows so each test set is a range in the array
+        int[] order = stratified ? stratify(perm) : perm;
         
-        //Step 2: Create the folds
-        for (int f = 0; f < 10; f++)
+        //Step 3: Calculate sizes of test sets and create the folds
+        int base = n / no_folds;
+        int rest = n % no_folds;
+        int start = 0;
+        for (int f = 0; f < no_folds; f++)
         {
             //Base size
             int no = base;
             //Spread out the rest
-            if (rest > 0)
+            if (f < rest)
             {
                 no++;
-                rest--;
-            }
-            
-            //Create test set
-            ArrayList<Instance> test = new ArrayList<>();
-            //Keep track of which instances used in the test set
-            usedInFold = new boolean[data.noInstances()];
-            //Fill the test set
-            for (int i = 0; i < no; i++)
-            {
-                test.add(findTestInstance());
-            }
-            
-            //Create and fill train set with the rest
-            //of the instances
-            ArrayList<Instance> train = new ArrayList<>();
-            for (int i = 0; i < data.noInstances(); i++)
-            {
-                if (!usedInFold[i])
-                {
-                    train.add(data.getInstance(i));
-                }
             }
             
+            //The test set is a range of the array, and the
+            //train set is all other rows
+            Dataset test = new Dataset(data, order, start, no, no, 0);
+            Dataset train = new Dataset(data, order, 0, n - no, start, no);
             folds.add(new Fold(train, test));
+            start += no;
         }
     }
     
     /**
-     * Finds an instance to be used in the current test set.
+     * Orders shuffled rows so that each fold gets the same class distribution
+     * as the full dataset. The rows are grouped by class value, dealt to the
+     * folds in turn, and finally grouped by fold.
      * 
-     * @return The instance
+     * @param perm Shuffled row indexes (storage positions)
+     * @return Row indexes grouped by fold
      */
-    private Instance findTestInstance()
+    private int[] stratify(int[] perm)
     {
-        Instance inst = null;
-        boolean found = false;
+        int n = perm.length;
+        int[] class_codes = data.getClassCodes();
+        int no_classes = data.getDistinctClassValues().noValues();
+        
+        //Group rows by class value (counting sort keeps the shuffled order)
+        int[] start = new int[no_classes + 1];
+        for (int i = 0; i < n; i++)
+        {
+            start[class_codes[perm[i]] + 1]++;
+        }
+        for (int c = 0; c < no_classes; c++)
+        {
+            start[c + 1] += start[c];
+        }
+        int[] by_class = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            by_class[start[class_codes[perm[i]]]++] = perm[i];
+        }
         
-        //Iterate until we find an instance that has not already
-        //been used in a test set
-        while (!found)
+        //Deal the rows to the folds in turn. Fold f gets the rows at
+        //positions f, f + k, f + 2k, ...
+        int[] order = new int[n];
+        int pos = 0;
+        for (int f = 0; f < no_folds; f++)
         {
-            int index = rnd.nextInt(data.noInstances());
-            if (!used[index])
+            for (int i = f; i < n; i += no_folds)
             {
-                //Instance found
-                inst = data.getInstance(index);
-                //Update flags
-                used[index] = true;
-                usedInFold[index] = true;
-                found = true;
+                order[pos++] = by_class[i];
             }
         }
-        
-        return inst;
+        return order;
+    }
+    
+    /**
+     * Returns the total number of folds (folds in each repetition times
+     * the number of repetitions).
+     * 
+     * @return Number of folds
+     */
+    public int noFolds()
+    {
+        return folds.size();
+    }
+    
+    /**
+     * Returns the number of folds in each repetition.
+     * 
+     * @return Number of folds
+     */
+    public int noFoldsPerRepeat()
+    {
+        return no_folds;
+    }
+    
+    /**
+     * Returns the number of repetitions.
+     * 
+     * @return Number of repetitions
+     */
+    public int noRepeats()
+    {
+        return no_repeats;
     }
     
     /**
      * Returns a fold with the specified index. Each fold holds a training
-     * and a test dataset.
+     * and a test dataset. The folds of repetition r have indexes
+     * r * k to r * k + k - 1.
      * 
-     * @param index Index of the fold (0-9)
+     * @param index Index of the fold (0 to noFolds() - 1)
      * @return The fold
      */
     public Fold getFold(int index) throws IndexOutOfBoundsException
     {
-        if (index < 0 || index > 9)
+        if (index < 0 || index >= folds.size())
         {
-            throw new IndexOutOfBoundsException("Fold index must be between 0 and 9");
+            throw new IndexOutOfBoundsException("Fold index must be between 0 and " + (folds.size() - 1));
         }
         return folds.get(index);
     }
@@ -2,23 +2,62 @@
 package core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.stream.Collectors;
 
 /**
- * This class holds the dataset, a inst of instance objects.
+ * This class holds the dataset. Values are stored column by column, with one
+ * primitive array per attribute, and instances are views of a row in
+ * the dataset.
+ * 
+ * A dataset can also be a view of a subset of the rows in another dataset,
+ * for example the training and test sets in cross validation. Views share
+ * the storage and the class values of the dataset they are created from.
+ * 
+ * Sparse datasets store the attributes (except the class attribute) as sparse
+ * rows: the attribute indexes and values of all non-zero values, in row order,
+ * with the start of each row in a separate array. All attributes except
+ * the class attribute must then be numerical.
  * 
  * @author Johan Hagelbäck (johan.hagelback@gmail.com)
  */
 public class Dataset 
 {
-    /** The dataset */
-    private ArrayList<Instance> inst;
+    /** Attribute values, one column per attribute */
+    private Column[] cols;
+    /** Number of instances in the dataset */
+    private int num_rows;
     /** List of distinct class values */
     private DistinctValues class_values;
+    /** Class value of each row, as an index into the distinct class values */
+    private int[] class_codes;
     /** Number of attributes (including class attribute) */
     private int num_attr;
     
+    /** Start of each row in the sparse values (null if not sparse) */
+    private int[] sp_start;
+    /** Attribute index of each sparse value */
+    private int[] sp_index;
+    /** Sparse values */
+    private double[] sp_value;
+    /** Number of sparse values */
+    private int sp_size;
+    
+    /** Dataset owning the storage (this dataset, unless it is a view) */
+    private Dataset source;
+    /** Row indexes in the source dataset, if this dataset is a view */
+    private int[] rows;
+    /** First used position in the row indexes */
+    private int offset;
+    /** Position in the view where a range of row indexes is skipped */
+    private int gap_at;
+    /** Number of skipped row indexes */
+    private int gap_len;
+    /** Number of changes to the storage, used to detect stale derived data */
+    private int mod_count;
+    
     //Used for scaling numerical inst
     private double[] min;
     private double[] max;
@@ -30,9 +69,16 @@ public class Dataset
      */
     public Dataset(int no_attr)
     {
-        inst = new ArrayList<>();
         class_values = new DistinctValues();
         num_attr = no_attr;
+        num_rows = 0;
+        class_codes = new int[16];
+        cols = new Column[num_attr];
+        for (int a = 0; a < num_attr; a++)
+        {
+            cols[a] = new Column();
+        }
+        source = this;
     }
     
     /**
@@ -42,32 +88,175 @@ public class Dataset
      */
     public Dataset(ArrayList<Instance> data)
     {
-        inst = new ArrayList<>();
-        class_values = new DistinctValues();
-        num_attr = data.get(0).noAttributes();
+        this(data.get(0).noAttributes());
        
         data.stream().forEach(this::addInstance);
     }
     
     /**
-     * Returns a list of the inst in this dataset.
+     * Creates a new dataset from column storage, for example when reading
+     * a cached dataset.
+     * 
+     * @param cols Attribute values, one column per attribute
+     * @param no_rows Number of instances
+     * @param class_values List of distinct class values
+     * @param class_codes Class value code of each row
+     */
+    Dataset(Column[] cols, int no_rows, DistinctValues class_values, int[] class_codes)
+    {
+        this.cols = cols;
+        this.num_attr = cols.length;
+        this.num_rows = no_rows;
+        this.class_values = class_values;
+        this.class_codes = class_codes;
+        source = this;
+    }
+    
+    /**
+     * Creates a new view of rows in a dataset. The view holds the rows
+     * rows[offset] to rows[offset + length + gap_len - 1], except the gap_len
+     * rows starting at position gap_at in the view.
+     * 
+     * @param source Dataset owning the storage
+     * @param rows Row indexes in the source dataset
+     * @param offset First used position in the row indexes
+     * @param length Number of rows in the view
+     * @param gap_at Position in the view where rows are skipped
+     * @param gap_len Number of skipped rows
+     */
+    Dataset(Dataset source, int[] rows, int offset, int length, int gap_at, int gap_len)
+    {
+        this.source = source.source;
+        this.cols = source.cols;
+        this.class_values = source.class_values;
+        this.num_attr = source.num_attr;
+        this.rows = rows;
+        this.offset = offset;
+        this.num_rows = length;
+        this.gap_at = gap_at;
+        this.gap_len = gap_len;
+    }
+    
+    /**
+     * Creates a new empty dataset with the same column types, nominal values
+     * and storage mode (dense or sparse) as this dataset.
+     * 
+     * @return The empty dataset
+     */
+    Dataset emptyCopy()
+    {
+        Dataset copy = new Dataset(num_attr);
+        for (int a = 0; a < num_attr; a++)
+        {
+            copy.cols[a] = cols[a].emptyCopy();
+        }
+        if (isSparse())
+        {
+            copy.makeSparse();
+        }
+        return copy;
+    }
+    
+    /**
+     * Returns a view of a subset of the rows in this dataset. No values are
+     * copied, and the view shares the class values of this dataset.
+     * 
+     * @param rows Indexes of the rows in this dataset (may contain duplicates)
+     * @return The view
+     */
+    public Dataset subset(int[] rows)
+    {
+        int[] src_rows = new int[rows.length];
+        for (int i = 0; i < rows.length; i++)
+        {
+            if (rows[i] < 0 || rows[i] >= num_rows)
+            {
+                throw new IndexOutOfBoundsException("Index: " + rows[i] + ", Size: " + num_rows);
+            }
+            src_rows[i] = rowIndex(rows[i]);
+        }
+        return new Dataset(source, src_rows, 0, src_rows.length, src_rows.length, 0);
+    }
+    
+    /**
+     * Checks if this dataset is a view of another dataset.
+     * 
+     * @return True if this dataset is a view, false otherwise
+     */
+    public boolean isView()
+    {
+        return source != this;
+    }
+    
+    /**
+     * Returns the dataset owning the storage of this dataset. Views of the
+     * same dataset have the same source, and rowIndex() gives positions in it.
+     * 
+     * @return The source dataset (this dataset, unless it is a view)
+     */
+    public Dataset getSource()
+    {
+        return source;
+    }
+    
+    /**
+     * Returns the number of changes made to the storage, by adding or setting
+     * values. Classifiers that keep data derived from the storage, for example
+     * converted rows, can compare it to detect that the data is stale.
+     * 
+     * @return Modification count of the source dataset
+     */
+    public int modCount()
+    {
+        return source.mod_count;
+    }
+    
+    /**
+     * Returns the position of a row in the column storage. The storage arrays
+     * returned by getNumericalColumn(), getNominalColumn() and getClassCodes()
+     * are indexed with this position. For datasets that are not views the
+     * position is the same as the row index.
+     * 
+     * @param row Row index in this dataset
+     * @return Position in the column storage
+     */
+    public int rowIndex(int row)
+    {
+        if (rows == null) return row;
+        if (row >= gap_at) row += gap_len;
+        return rows[offset + row];
+    }
+    
+    /**
+     * Returns a list of the inst in this dataset. The instances
+     * are views backed by the dataset.
      * 
      * @return List of inst.
      */
     public ArrayList<Instance> toList()
     {
+        ArrayList<Instance> inst = new ArrayList<>(num_rows);
+        for (int r = 0; r < num_rows; r++)
+        {
+            inst.add(new Instance(this, r));
+        }
         return inst;
     }
     
     /**
-     * Returns the instance at the specified row.
+     * Returns the instance at the specified row. The instance is a
+     * view backed by the dataset.
      * 
      * @param row Row index for the instance
      * @return An instance
      */
     public Instance getInstance(int row)
     {
-        return inst.get(row);
+        if (row < 0 || row >= num_rows)
+        {
+            throw new IndexOutOfBoundsException("Index: " + row + ", Size: " + num_rows);
+        }
+        return new Instance(this, row);
     }
     
     /**
@@ -101,6 +290,30 @@ public class Dataset
         return class_values;
     }
     
+    /**
+     * Returns the class value of the specified row, as an index into
+     * the distinct class values.
+     * 
+     * @param row Row index
+     * @return Class value code
+     */
+    public int getClassCode(int row)
+    {
+        return source.class_codes[rowIndex(row)];
+    }
+    
+    /**
+     * Returns the class value of each row, as indexes into the distinct class
+     * values. The returned array is the storage of the dataset, not a copy,
+     * and is indexed with rowIndex().
+     * 
+     * @return Class value codes
+     */
+    public int[] getClassCodes()
+    {
+        return source.class_codes;
+    }
+    
     /**
      * Returns the distinct values for the specified attribute.
      * 
@@ -109,24 +322,58 @@ public class Dataset
      */
     public DistinctValues getDistinctValues(int attr_index)
     {
-        DistinctValues vals = new DistinctValues();
-       
-        inst.stream()
-                .map((i) -> i.getAttribute(attr_index))
-                .forEach((a) -> {
-                    if (a.isNominal())
-                    {
-                        vals.addValue(a.nominalValue());
-                    }
-                    if (a.isNumerical())
-                    {
-                        vals.addValue(a.numericalValue());
-                    }
-                });
+        return getDistinctValues(attr_index, false);
+    }
+    
+    /**
+     * Returns the distinct values for the specified attribute. In approximate
+     * mode only the number of distinct values is estimated, which uses a fixed
+     * amount of memory regardless of the number of values.
+     * 
+     * @param attr_index Attribute index
+     * @param approximate If true, only estimate the number of distinct values
+     * @return Distinct values
+     */
+    public DistinctValues getDistinctValues(int attr_index, boolean approximate)
+    {
+        DistinctValues vals = new DistinctValues(approximate);
+        Column col = cols[attr_index];
+        
+        if (isSparse(attr_index))
+        {
+            for (int r = 0; r < num_rows; r++)
+            {
+                vals.addValue(sparseValue(rowIndex(r), attr_index));
+            }
+            return vals;
+        }
+        if (col.isNominal())
+        {
+            //Each code is only added once, the first time it is seen
+            int[] codes = col.nominalCodes();
+            boolean[] seen = new boolean[col.symbols().size()];
+            for (int r = 0; r < num_rows; r++)
+            {
+                int c = codes[rowIndex(r)];
+                if (!seen[c])
+                {
+                    seen[c] = true;
+                    vals.addValue(col.decode(c));
+                }
+            }
+        }
+        if (col.isNumerical())
+        {
+            double[] values = col.numericalValues();
+            for (int r = 0; r < num_rows; r++)
+            {
+                vals.addValue(values[rowIndex(r)]);
+            }
+        }
         
         return vals;
     }
-
+    
     /**
      * Returns the number of inst in this dataset.
      * 
@@ -134,7 +381,7 @@ public class Dataset
      */
     public int noInstances()
     {
-        return inst.size();
+        return num_rows;
     }
     
     /**
@@ -157,6 +404,182 @@ public class Dataset
         return class_values.noValues();
     }
     
+    /**
+     * Checks if the specified attribute is numerical.
+     * 
+     * @param attr_index Attribute index
+     * @return True if numerical, false otherwise
+     */
+    public boolean isNumerical(int attr_index)
+    {
+        if (isSparse(attr_index)) return true;
+        return cols[attr_index].isNumerical();
+    }
+    
+    /**
+     * Checks if the specified attribute is nominal.
+     * 
+     * @param attr_index Attribute index
+     * @return True if nominal, false otherwise
+     */
+    public boolean isNominal(int attr_index)
+    {
+        return cols[attr_index].isNominal();
+    }
+    
+    /**
+     * Returns the values of a numerical attribute. The returned array is the
+     * storage of the dataset, not a copy, and is indexed with rowIndex().
+     * 
+     * @param attr_index Attribute index
+     * @return Numerical values for the attribute
+     */
+    public double[] getNumericalColumn(int attr_index)
+    {
+        if (isSparse(attr_index))
+        {
+            throw new RuntimeException("Attribute " + attr_index + " is stored in sparse rows");
+        }
+        Column col = cols[attr_index];
+        if (!col.isNumerical())
+        {
+            throw new RuntimeException("Attribute " + attr_index + " is not numerical");
+        }
+        return col.numericalValues();
+    }
+    
+    /**
+     * Returns the value codes of a nominal attribute. The returned array is
+     * the storage of the dataset, not a copy, and is indexed with rowIndex().
+     * Codes are translated to values with decodeNominal().
+     * 
+     * @param attr_index Attribute index
+     * @return Nominal value codes for the attribute
+     */
+    public int[] getNominalColumn(int attr_index)
+    {
+        Column col = cols[attr_index];
+        if (!col.isNominal())
+        {
+            throw new RuntimeException("Attribute " + attr_index + " is not nominal");
+        }
+        return col.nominalCodes();
+    }
+    
+    /**
+     * Returns the symbol table that maps values to codes for a nominal
+     * attribute.
+     * 
+     * @param attr_index Attribute index
+     * @return Symbol table
+     */
+    public SymbolTable getSymbolTable(int attr_index)
+    {
+        Column col = cols[attr_index];
+        if (!col.isNominal())
+        {
+            throw new RuntimeException("Attribute " + attr_index + " is not nominal");
+        }
+        return col.symbols();
+    }
+    
+    /**
+     * Returns the nominal value for a code in a nominal attribute.
+     * 
+     * @param attr_index Attribute index
+     * @param code Value code
+     * @return Nominal value
+     */
+    public String decodeNominal(int attr_index, int code)
+    {
+        return cols[attr_index].decode(code);
+    }
+    
+    /**
+     * Returns the numerical value of an attribute in the specified row.
+     * 
+     * @param row Row index
+     * @param attr_index Attribute index
+     * @return Numerical value
+     */
+    public double getNumericalValue(int row, int attr_index)
+    {
+        if (isSparse(attr_index)) return sparseValue(rowIndex(row), attr_index);
+        return cols[attr_index].numericalValue(rowIndex(row));
+    }
+    
+    /**
+     * Returns the nominal value of an attribute in the specified row.
+     * 
+     * @param row Row index
+     * @param attr_index Attribute index
+     * @return Nominal value
+     */
+    public String getNominalValue(int row, int attr_index)
+    {
+        return cols[attr_index].nominalValue(rowIndex(row));
+    }
+    
+    /**
+     * Returns the value of an attribute in the specified row.
+     * 
+     * @param row Row index
+     * @param attr_index Attribute index
+     * @return Copy of the attribute value
+     */
+    Attribute getAttribute(int row, int attr_index)
+    {
+        if (isSparse(attr_index)) return new Attribute(sparseValue(rowIndex(row), attr_index));
+        return cols[attr_index].getAttribute(rowIndex(row));
+    }
+    
+    /**
+     * Sets the value of an attribute in the specified row.
+     * 
+     * @param row Row index
+     * @param attr_index Attribute index
+     * @param value Numerical value
+     */
+    void setValue(int row, int attr_index, double value)
+    {
+        row = rowIndex(row);
+        source.mod_count++;
+        if (isSparse(attr_index))
+        {
+            setSparse(row, attr_index, value);
+            return;
+        }
+        cols[attr_index].set(row, value);
+        if (attr_index == num_attr - 1)
+        {
+            class_values.addValue(value);
+            source.class_codes[row] = class_values.indexOf(value);
+        }
+    }
+    
+    /**
+     * Sets the value of an attribute in the specified row.
+     * 
+     * @param row Row index
+     * @param attr_index Attribute index
+     * @param value Nominal value
+     */
+    void setValue(int row, int attr_index, String value)
+    {
+        row = rowIndex(row);
+        source.mod_count++;
+        if (isSparse(attr_index))
+        {
+            throw new RuntimeException("Attribute " + attr_index + " is stored in sparse rows and must be numerical");
+        }
+        cols[attr_index].set(row, value);
+        if (attr_index == num_attr - 1)
+        {
+            class_values.addValue(value);
+            source.class_codes[row] = class_values.indexOf(value);
+        }
+    }
+    
     /**
      * Adds an instance to the dataset.
      * 
@@ -164,18 +587,18 @@ public class Dataset
      */
     public void addInstance(double[] values)
     {
-        Instance i = new Instance(num_attr);
-        //Create each attribute
+        checkNotView();
+        
+        //Add each attribute
         for (int a = 0; a < num_attr; a++)
         {
-            double v = values[a];
-            i.setAttributeValue(v, a);
+            if (isSparse(a)) addSparse(a, values[a]);
+            else cols[a].add(values[a]);
         }
-        inst.add(i);
         
         //Add to possible class values (if not already added)
-        class_values.addValue(i.getClassAttribute().numericalValue());
-        class_values.addValue(i.getClassAttribute().nominalValue());
+        class_values.addValue(values[num_attr - 1]);
+        addClassCode(class_values.indexOf(values[num_attr - 1]));
     }
     
     /**
@@ -185,49 +608,434 @@ public class Dataset
      */
     public void addInstance(String[] values)
     {
-        Instance i = new Instance(num_attr);
-        //Create each attribute
+        checkNotView();
+        if (isSparse())
+        {
+            throw new RuntimeException("Sparse datasets only support numerical attributes");
+        }
+        
+        //Add each attribute
         for (int a = 0; a < num_attr; a++)
         {
-            String v = values[a];
-            i.setAttributeValue(v, a);
+            cols[a].add(values[a]);
         }
-        inst.add(i);
         
         //Add to possible class values (if not already added)
-        class_values.addValue(i.getClassAttribute().nominalValue());
+        class_values.addValue(values[num_attr - 1]);
+        addClassCode(class_values.indexOf(values[num_attr - 1]));
     }
     
     /**
-     * Adds an instance to the dataset.
+     * Adds an instance to the dataset. The attribute values are copied
+     * to the dataset.
      * 
      * @param i The instance
      */
     public void addInstance(Instance i)
     {
+        checkNotView();
+        
+        //Sparse instances only add their non-zero values to sparse datasets
+        int first = 0;
+        if (isSparse())
+        {
+            if (i instanceof SparseInstance)
+            {
+                SparseInstance si = (SparseInstance)i;
+                for (int k = 0; k < si.noValues(); k++)
+                {
+                    addSparse(si.getIndex(k), si.getValue(k));
+                }
+            }
+            else
+            {
+                for (int a = 0; a < num_attr - 1; a++)
+                {
+                    addSparse(a, i.getNumericalValue(a));
+                }
+            }
+            first = num_attr - 1;
+        }
+        
+        //Add each attribute
+        for (int a = first; a < num_attr; a++)
+        {
+            Attribute attr = i.getAttribute(a);
+            if (attr.isNumerical())
+            {
+                cols[a].add(attr.numericalValue());
+            }
+            else
+            {
+                cols[a].add(attr.nominalValue());
+            }
+        }
+        
         //Add to possible class values (if not already added)
         Attribute class_attr = i.getClassAttribute();
         if (class_attr.isNumerical())
         {
             class_values.addValue(class_attr.numericalValue());
+            addClassCode(class_values.indexOf(class_attr.numericalValue()));
         }
         if (class_attr.isNominal())
         {
             class_values.addValue(class_attr.nominalValue());
+            addClassCode(class_values.indexOf(class_attr.nominalValue()));
+        }
+    }
+    
+    /**
+     * Returns the storage of an attribute. Used by readers that write values
+     * directly to the columns, followed by a call to commitRow().
+     * 
+     * @param attr_index Attribute index
+     * @return The column
+     */
+    Column column(int attr_index)
+    {
+        return cols[attr_index];
+    }
+    
+    /**
+     * Completes a row whose values have been added directly to the columns,
+     * and adds the class value of the row.
+     */
+    void commitRow()
+    {
+        checkNotView();
+        
+        Column col = cols[num_attr - 1];
+        if (col.isNominal())
+        {
+            String value = col.decode(col.nominalCodes()[num_rows]);
+            class_values.addValue(value);
+            addClassCode(class_values.indexOf(value));
         }
+        else
+        {
+            double value = col.numericalValue(num_rows);
+            class_values.addValue(value);
+            addClassCode(class_values.indexOf(value));
+        }
+    }
+    
+    /**
+     * Adds all rows in another dataset, with the same attributes, to this
+     * dataset. The rows are added in order, and the result is the same as
+     * adding each row with addInstance().
+     * 
+     * @param other The other dataset (not a view)
+     */
+    void append(Dataset other)
+    {
+        checkNotView();
+        
+        if (isSparse() != other.isSparse())
+        {
+            throw new RuntimeException("Cannot append a sparse and a dense dataset");
+        }
+        int n = other.num_rows;
+        int sp_base = sp_size;
+        if (isSparse())
+        {
+            ensureSparseCapacity(sp_size + other.sp_size);
+            System.arraycopy(other.sp_index, 0, sp_index, sp_size, other.sp_size);
+            System.arraycopy(other.sp_value, 0, sp_value, sp_size, other.sp_size);
+        }
+        Column other_class = other.cols[num_attr - 1];
+        boolean was_nominal = cols[num_attr - 1].isNominal();
+        for (int a = 0; a < num_attr; a++)
+        {
+            cols[a].addAll(other.cols[a]);
+        }
+        
+        //Rows added while the class attribute was numerical keep their
+        //numerical class value, as they would when added one by one
+        for (int r = 0; r < n; r++)
+        {
+            if (sp_start != null)
+            {
+                sp_size = sp_base + other.sp_start[r + 1];
+            }
+            if (was_nominal || (other_class.isNominal() && r >= other_class.nominalFrom()))
+            {
+                commitRow();
+            }
+            else
+            {
+                double value = other.class_values.getNumericalValue(other.class_codes[r]);
+                class_values.addValue(value);
+                addClassCode(class_values.indexOf(value));
+            }
+        }
+    }
+    
+    /**
+     * Removes all rows from the dataset. The column types and the distinct
+     * nominal and class values are kept, so value codes and class value codes
+     * are the same for rows added after the clear as for earlier rows.
+     */
+    void clear()
+    {
+        checkNotView();
         
-        //Add instance
-        inst.add(i);
+        for (int a = 0; a < num_attr; a++)
+        {
+            cols[a].clear();
+        }
+        num_rows = 0;
+        sp_size = 0;
+        mod_count++;
+    }
+    
+    /**
+     * Removes all rows, and the nominal values of the given attributes. Used
+     * for string attributes when the dataset holds one batch of a stream, so
+     * the values of earlier batches are not kept.
+     * 
+     * @param reset If the nominal values of an attribute are removed, for each attribute
+     */
+    void clear(boolean[] reset)
+    {
+        clear();
+        for (int a = 0; a < num_attr; a++)
+        {
+            if (reset[a]) cols[a].clearSymbols();
+        }
+    }
+    
+    /**
+     * Throws an exception if this dataset is a view, since rows cannot be
+     * added to views.
+     */
+    private void checkNotView()
+    {
+        if (isView())
+        {
+            throw new RuntimeException("Cannot add instances to a dataset view");
+        }
+    }
+    
+    /**
+     * Stores the class value code for a new row and updates the number
+     * of rows.
+     * 
+     * @param code Class value code
+     */
+    private void addClassCode(int code)
+    {
+        if (num_rows == class_codes.length)
+        {
+            class_codes = Arrays.copyOf(class_codes, num_rows * 2);
+        }
+        if (sp_start != null)
+        {
+            //End of the sparse values of the row
+            if (num_rows + 2 > sp_start.length)
+            {
+                sp_start = Arrays.copyOf(sp_start, sp_start.length * 2);
+            }
+            sp_start[num_rows + 1] = sp_size;
+        }
+        class_codes[num_rows++] = code;
+        mod_count++;
+    }
+    
+    /**
+     * Changes an empty dataset to store all attributes, except the class
+     * attribute, as sparse rows.
+     */
+    void makeSparse()
+    {
+        checkNotView();
+        if (num_rows > 0)
+        {
+            throw new RuntimeException("Only empty datasets can be made sparse");
+        }
+        sp_start = new int[16];
+        sp_index = new int[64];
+        sp_value = new double[64];
+        sp_size = 0;
+    }
+    
+    /**
+     * Adds a value to the sparse values of the row being added. Values must be
+     * added in increasing attribute order, and zeros are not stored.
+     * 
+     * @param attr_index Attribute index (not the class attribute)
+     * @param value The value
+     */
+    void addSparse(int attr_index, double value)
+    {
+        if (attr_index < 0 || attr_index >= num_attr - 1)
+        {
+            throw new IndexOutOfBoundsException("Index: " + attr_index + ", Size: " + (num_attr - 1));
+        }
+        if (sp_size > sp_start[num_rows] && sp_index[sp_size - 1] >= attr_index)
+        {
+            throw new RuntimeException("Sparse attribute indexes must be increasing: " + attr_index);
+        }
+        if (value == 0)
+        {
+            return;
+        }
+        ensureSparseCapacity(sp_size + 1);
+        sp_index[sp_size] = attr_index;
+        sp_value[sp_size] = value;
+        sp_size++;
+    }
+    
+    /**
+     * Makes room for sparse values.
+     * 
+     * @param capacity Required number of sparse values
+     */
+    private void ensureSparseCapacity(int capacity)
+    {
+        if (capacity > sp_index.length)
+        {
+            int size = Math.max(sp_index.length * 2, capacity);
+            sp_index = Arrays.copyOf(sp_index, size);
+            sp_value = Arrays.copyOf(sp_value, size);
+        }
+    }
+    
+    /**
+     * Checks if this dataset stores the attributes as sparse rows.
+     * 
+     * @return True if sparse, false otherwise
+     */
+    public boolean isSparse()
+    {
+        return source.sp_start != null;
+    }
+    
+    /**
+     * Checks if an attribute is stored in the sparse rows.
+     * 
+     * @param attr_index Attribute index
+     * @return True if stored in sparse rows
+     */
+    private boolean isSparse(int attr_index)
+    {
+        return source.sp_start != null && attr_index < num_attr - 1;
+    }
+    
+    /**
+     * Returns the attribute indexes of the sparse values. The returned array
+     * is the storage of the dataset, not a copy. The values of a row are
+     * at positions sparseStart(row) to sparseEnd(row) - 1.
+     * 
+     * @return Attribute indexes
+     */
+    public int[] getSparseIndexes()
+    {
+        return source.sp_index;
+    }
+    
+    /**
+     * Returns the sparse values. The returned array is the storage of the
+     * dataset, not a copy. The values of a row are at positions sparseStart(row)
+     * to sparseEnd(row) - 1.
+     * 
+     * @return Sparse values
+     */
+    public double[] getSparseValues()
+    {
+        return source.sp_value;
+    }
+    
+    /**
+     * Returns the position of the first sparse value of a row.
+     * 
+     * @param row Row index
+     * @return Position in the sparse values
+     */
+    public int sparseStart(int row)
+    {
+        return source.sp_start[rowIndex(row)];
+    }
+    
+    /**
+     * Returns the position after the last sparse value of a row.
+     * 
+     * @param row Row index
+     * @return Position in the sparse values
+     */
+    public int sparseEnd(int row)
+    {
+        return source.sp_start[rowIndex(row) + 1];
+    }
+    
+    /**
+     * Finds the position of a sparse value.
+     * 
+     * @param srow Position of the row in the storage
+     * @param attr_index Attribute index
+     * @return Position in the sparse values, or a negative value if the value is zero
+     */
+    private int findSparse(int srow, int attr_index)
+    {
+        return Arrays.binarySearch(source.sp_index, source.sp_start[srow], source.sp_start[srow + 1], attr_index);
+    }
+    
+    /**
+     * Returns a value stored in the sparse rows.
+     * 
+     * @param srow Position of the row in the storage
+     * @param attr_index Attribute index
+     * @return The value
+     */
+    private double sparseValue(int srow, int attr_index)
+    {
+        int i = findSparse(srow, attr_index);
+        return i >= 0 ? source.sp_value[i] : 0;
+    }
+    
+    /**
+     * Changes a value stored in the sparse rows. Only non-zero values can be
+     * changed, since the rows cannot grow.
+     * 
+     * @param srow Position of the row in the storage
+     * @param attr_index Attribute index
+     * @param value New value
+     */
+    private void setSparse(int srow, int attr_index, double value)
+    {
+        int i = findSparse(srow, attr_index);
+        if (i >= 0)
+        {
+            source.sp_value[i] = value;
+        }
+        else if (value != 0)
+        {
+            throw new RuntimeException("Cannot add a non-zero value to a sparse row");
+        }
     }
     
     /**
      * Scales an instance so all attribute values (except the class value) is between
-     * 0 and 1.
+     * 0 and 1. A sparse instance scaled with a sparse dataset keeps its zeros,
+     * and only its stored values are changed.
      * 
      * @param inst The instance to scale
      */
     public void scaleInstance(Instance inst)
     {
+        //Sparse datasets only divide by the largest absolute value, so only
+        //the stored values of a sparse instance change
+        if (inst instanceof SparseInstance && isSparse())
+        {
+            SparseInstance si = (SparseInstance)inst;
+            for (int i = 0; i < si.noValues(); i++)
+            {
+                int a = si.getIndex(i);
+                if (a < num_attr - 1) si.setValue(i, si.getValue(i) / max[a]);
+            }
+            return;
+        }
+        
         //Rescale all attributes except the class attribute
         for (int i = 0; i < num_attr - 1; i++)
         {
@@ -235,19 +1043,26 @@ public class Dataset
             if (a.isNumerical())
             {
                 double nVal = (a.numericalValue() - min[i]) / (max[i] - min[i]);
-                a.setValue(nVal);
+                inst.setAttributeValue(nVal, i);
             }
         }
     }
     
     /**
      * Scales all inst so all attribute values (except the class value) is between
- 0 and 1. Nominal values are skipped.
+     * 0 and 1. Nominal values are skipped. Views scale their rows in the shared
+     * storage, so a view must not hold the same row more than once.
      */
     public void scaleData()
     {
         min = new double[num_attr - 1];
         max = new double[num_attr - 1];
+        source.mod_count++;
+        if (isSparse())
+        {
+            scaleSparse();
+            return;
+        }
         
         //Rescale all attributes except the class attribute
         for (int a = 0; a < num_attr - 1; a++)
@@ -255,28 +1070,53 @@ public class Dataset
             //Find lowest and highest value for the attribute
             double low = 10000;
             double high = -10000;
-            for (Instance i : inst)
+            if (cols[a].isNumerical())
             {
-                Attribute attr = i.getAttribute(a);
-                if (attr.isNumerical())
+                double[] values = cols[a].numericalValues();
+                for (int r = 0; r < num_rows; r++)
                 {
-                    double v = i.getAttribute(a).numericalValue();
+                    double v = values[rowIndex(r)];
                     if (v < low) low = v;
                     if (v > high) high = v;
                 }
+                
+                //When we have found low and high, scale the attribute
+                for (int r = 0; r < num_rows; r++)
+                {
+                    int i = rowIndex(r);
+                    values[i] = (values[i] - low) / (high - low);
+                }
             }
             min[a] = low;
             max[a] = high;
-            
-            //When we have found low and high, scale the attribute
-            for (Instance i : inst)
+        }
+    }
+    
+    /**
+     * Scales sparse rows. Each attribute is divided by its largest absolute
+     * value, so zeros stay zero and values are between -1 and 1 (0 and 1 for
+     * attributes without negative values).
+     */
+    private void scaleSparse()
+    {
+        int[] index = source.sp_index;
+        double[] value = source.sp_value;
+        for (int r = 0; r < num_rows; r++)
+        {
+            for (int i = sparseStart(r); i < sparseEnd(r); i++)
             {
-                Attribute attr = i.getAttribute(a);
-                if (attr.isNumerical())
-                {
-                    double nVal = (attr.numericalValue() - low) / (high - low);
-                    attr.setValue(nVal);
-                }
+                max[index[i]] = Math.max(max[index[i]], Math.abs(value[i]));
+            }
+        }
+        for (int a = 0; a < num_attr - 1; a++)
+        {
+            if (max[a] == 0) max[a] = 1;
+        }
+        for (int r = 0; r < num_rows; r++)
+        {
+            for (int i = sparseStart(r); i < sparseEnd(r); i++)
+            {
+                value[i] = value[i] / max[index[i]];
             }
         }
     }
@@ -288,13 +1128,32 @@ public class Dataset
      */
     public Iterator<Instance> iterator()
     {
-        return inst.iterator();
+        return new Iterator<Instance>()
+        {
+            private int row = 0;
+            
+            @Override
+            public boolean hasNext()
+            {
+                return row < num_rows;
+            }
+            
+            @Override
+            public Instance next()
+            {
+                if (row >= num_rows)
+                {
+                    throw new NoSuchElementException();
+                }
+                return new Instance(Dataset.this, row++);
+            }
+        };
     }
     
     @Override
     public String toString()
     {
-        String str = inst.stream()
+        String str = toList().stream()
                 .map((i) -> i.toString())
                 .collect(Collectors.joining("\n"));
         
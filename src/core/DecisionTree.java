@@ -0,0 +1,1109 @@
+package core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * This class is a decision tree classifier (CART-style binary splits with the
+ * Gini or entropy criterion) that is trained directly on the columns of a
+ * dataset.
+ * 
+ * Before training, each numerical column is sorted once and its values are
+ * mapped to at most max_bins bins at quantiles of the values. Columns with
+ * fewer distinct values than max_bins get one bin per value, so the splits are
+ * the same as with an exact search over all thresholds. Nominal columns use
+ * their value codes as bins. The best split of a node is then found from a
+ * histogram of class value weights per bin, which takes one pass over the rows
+ * of the node and one pass over the bins, instead of sorting the rows at every
+ * node. The attributes of large nodes are evaluated in parallel.
+ * 
+ * Numerical splits send values up to a threshold to the left child. Nominal
+ * splits send a subset of the values to the left child; the values are ordered
+ * by the share of the most common class value in the node and the best prefix
+ * of that order is used, which is the best subset for two class values.
+ * 
+ * The tree is stored in flat arrays in depth-first order, with the left child
+ * of a node directly after it, so classifying is a walk over a few arrays.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class DecisionTree implements Classifier
+{
+    /** Gini impurity */
+    public static final int GINI = 0;
+    /** Entropy (information gain) */
+    public static final int ENTROPY = 1;
+    /** Smallest node (in rows) where attributes are evaluated in parallel */
+    private static final int PARALLEL_ROWS = 20000;
+    
+    /** Split criterion */
+    private int criterion;
+    /** Largest depth of the tree (0 for no limit) */
+    private int max_depth;
+    /** Smallest weight (number of rows) of a leaf */
+    private double min_leaf;
+    /** Largest number of bins of a numerical attribute */
+    private int max_bins;
+    /** Number of randomly selected attributes evaluated at each node (0 for all) */
+    private int max_features;
+    /** Seed for the selection of attributes */
+    private long seed;
+    
+    /** Number of attributes, excluding the class attribute */
+    private int no_attr;
+    /** Class values of the training dataset */
+    private DistinctValues class_values;
+    /** Number of class values */
+    private int no_classes;
+    /** Nominal values of each attribute in the training dataset (null for numerical) */
+    private SymbolTable[] symbols;
+    /** Number of nodes */
+    private int no_nodes;
+    /** Split attribute of each node, -1 for leaves */
+    private int[] split_attr;
+    /** Threshold of numerical splits */
+    private double[] split_value;
+    /** Position of the value set of nominal splits in split_sets, -1 for numerical splits */
+    private int[] split_set;
+    /** Value sets of nominal splits: number of words followed by the bits of the left values */
+    private int[] split_sets;
+    /** Number of used words in split_sets */
+    private int no_words;
+    /** Right child of each node (the left child is the next node) */
+    private int[] right;
+    /** Class value probabilities of each node, no_classes values per node */
+    private double[] dist;
+    /** The training dataset, for the schema when saving */
+    private Dataset data;
+    /** Schema of a loaded classifier, for saving it again */
+    private ModelFile schema;
+    
+    /**
+     * Creates a new tree with the Gini criterion, no depth limit, at least
+     * two rows per leaf and 256 bins.
+     */
+    public DecisionTree()
+    {
+        this(GINI, 0, 2, 256, 0, 1);
+    }
+    
+    /**
+     * Creates a new tree.
+     * 
+     * @param criterion Split criterion (GINI or ENTROPY)
+     * @param max_depth Largest depth of the tree (0 for no limit)
+     * @param min_leaf Smallest number of rows in a leaf
+     * @param max_bins Largest number of bins of a numerical attribute (at most 65535)
+     * @param max_features Number of randomly selected attributes evaluated at each node (0 for all)
+     * @param seed Seed for the selection of attributes
+     */
+    public DecisionTree(int criterion, int max_depth, double min_leaf, int max_bins, int max_features, long seed)
+    {
+        if (criterion != GINI && criterion != ENTROPY)
+        {
+            throw new IllegalArgumentException("Unknown split criterion: " + criterion);
+        }
+        if (max_bins < 2 || max_bins > Character.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Number of bins must be between 2 and " + (int)Character.MAX_VALUE);
+        }
+        this.criterion = criterion;
+        this.max_depth = max_depth;
+        this.min_leaf = Math.max(min_leaf, 1e-9);
+        this.max_bins = max_bins;
+        this.max_features = max_features;
+        this.seed = seed;
+    }
+    
+    /**
+     * Trains the classifier.
+     * 
+     * @param train Data set used for training
+     */
+    @Override
+    public void train(Dataset train)
+    {
+        grow(new Bins(train, max_bins), null, new Random(seed));
+    }
+    
+    /**
+     * Grows the tree from binned rows. Used by train(), and by ensembles that
+     * grow many trees from the same bins with different row weights.
+     * 
+     * @param bins The binned training dataset
+     * @param weight Weight (number of copies) of each row, or null for weight 1
+     * @param rnd Randomizer for the selection of attributes
+     */
+    void grow(Bins bins, int[] weight, Random rnd)
+    {
+        data = bins.data;
+        no_attr = bins.no_attr;
+        class_values = bins.class_values;
+        no_classes = class_values.noValues();
+        symbols = bins.symbols;
+        
+        //Rows with weight
+        int[] rows = new int[bins.n];
+        int m = 0;
+        for (int r = 0; r < bins.n; r++)
+        {
+            if (weight == null || weight[r] > 0) rows[m++] = r;
+        }
+        
+        no_nodes = 0;
+        no_words = 0;
+        split_attr = new int[64];
+        split_value = new double[64];
+        split_set = new int[64];
+        right = new int[64];
+        dist = new double[64 * no_classes];
+        split_sets = new int[16];
+        Grower g = new Grower(bins, weight, rows, rnd);
+        
+        //Depth-first with a stack of (start, end, depth, parent) entries. The
+        //parent is set for right children, which are pushed before the left
+        //children so a left child is always the node after its parent.
+        int[] stack = new int[64];
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = m;
+        stack[sp++] = 0;
+        stack[sp++] = -1;
+        while (sp > 0)
+        {
+            int parent = stack[--sp];
+            int depth = stack[--sp];
+            int end = stack[--sp];
+            int start = stack[--sp];
+            int node = newNode();
+            if (parent >= 0) right[parent] = node;
+            
+            Split s = g.split(node, start, end, depth);
+            if (s == null)
+            {
+                continue;
+            }
+            int mid = g.partition(start, end, s);
+            split_attr[node] = s.attr;
+            split_value[node] = s.value;
+            split_set[node] = s.set == null ? -1 : addSet(s.set);
+            
+            if (sp + 8 > stack.length) stack = Arrays.copyOf(stack, 2 * stack.length);
+            stack[sp++] = mid;
+            stack[sp++] = end;
+            stack[sp++] = depth + 1;
+            stack[sp++] = node;
+            stack[sp++] = start;
+            stack[sp++] = mid;
+            stack[sp++] = depth + 1;
+            stack[sp++] = -1;
+        }
+        
+        split_attr = Arrays.copyOf(split_attr, no_nodes);
+        split_value = Arrays.copyOf(split_value, no_nodes);
+        split_set = Arrays.copyOf(split_set, no_nodes);
+        right = Arrays.copyOf(right, no_nodes);
+        dist = Arrays.copyOf(dist, no_nodes * no_classes);
+        split_sets = Arrays.copyOf(split_sets, no_words);
+    }
+    
+    /**
+     * Adds a leaf node.
+     * 
+     * @return Index of the node
+     */
+    private int newNode()
+    {
+        if (no_nodes == split_attr.length)
+        {
+            int size = 2 * no_nodes;
+            split_attr = Arrays.copyOf(split_attr, size);
+            split_value = Arrays.copyOf(split_value, size);
+            split_set = Arrays.copyOf(split_set, size);
+            right = Arrays.copyOf(right, size);
+            dist = Arrays.copyOf(dist, size * no_classes);
+        }
+        split_attr[no_nodes] = -1;
+        split_set[no_nodes] = -1;
+        right[no_nodes] = -1;
+        return no_nodes++;
+    }
+    
+    /**
+     * Adds the value set of a nominal split.
+     * 
+     * @param set Bits of the values going to the left child
+     * @return Position of the set
+     */
+    private int addSet(int[] set)
+    {
+        if (no_words + set.length + 1 > split_sets.length)
+        {
+            split_sets = Arrays.copyOf(split_sets, Math.max(2 * split_sets.length, no_words + set.length + 1));
+        }
+        int pos = no_words;
+        split_sets[no_words++] = set.length;
+        System.arraycopy(set, 0, split_sets, no_words, set.length);
+        no_words += set.length;
+        return pos;
+    }
+    
+    /**
+     * Checks if a nominal value code is in the value set of a split.
+     * 
+     * @param pos Position of the set
+     * @param code Value code, or -1 for values not seen in training
+     * @return True if the value goes to the left child
+     */
+    private boolean inSet(int pos, int code)
+    {
+        return code >= 0 && (code >>> 5) < split_sets[pos] && (split_sets[pos + 1 + (code >>> 5)] & (1 << code)) != 0;
+    }
+    
+    /**
+     * Calculates the impurity of class value weights.
+     * 
+     * @param w Class value weights
+     * @param sub Weights subtracted from w, or null
+     * @param total Sum of the weights
+     * @return Impurity
+     */
+    private double impurity(double[] w, double[] sub, double total)
+    {
+        double sum = 0;
+        for (int c = 0; c < no_classes; c++)
+        {
+            double p = (sub == null ? w[c] : w[c] - sub[c]) / total;
+            if (p <= 0) continue;
+            sum += criterion == GINI ? p * p : -p * Math.log(p);
+        }
+        return criterion == GINI ? 1 - sum : sum;
+    }
+    
+    /**
+     * Finds the leaf of a dataset row.
+     * 
+     * @param r Column access for the dataset
+     * @param row Row index
+     * @return Leaf node
+     */
+    int leaf(Columns r, int row)
+    {
+        int node = 0;
+        while (split_attr[node] >= 0)
+        {
+            int a = split_attr[node];
+            boolean left = split_set[node] < 0 ? r.value(row, a) <= split_value[node] : inSet(split_set[node], r.code(row, a));
+            node = left ? node + 1 : right[node];
+        }
+        return node;
+    }
+    
+    /**
+     * Finds the leaf of an instance.
+     * 
+     * @param inst The instance
+     * @return Leaf node
+     */
+    int leaf(Instance inst)
+    {
+        int node = 0;
+        while (split_attr[node] >= 0)
+        {
+            int a = split_attr[node];
+            boolean left;
+            if (split_set[node] < 0) left = inst.getNumericalValue(a) <= split_value[node];
+            else left = inSet(split_set[node], symbols[a].lookup(inst.getAttribute(a).nominalValue()));
+            node = left ? node + 1 : right[node];
+        }
+        return node;
+    }
+    
+    /**
+     * Returns the class value probabilities of the tree.
+     * 
+     * @return Probabilities, no_classes values per node
+     */
+    double[] distributions()
+    {
+        return dist;
+    }
+    
+    /**
+     * Returns the nominal values of the training dataset.
+     * 
+     * @return Nominal values of each attribute (null for numerical)
+     */
+    SymbolTable[] symbols()
+    {
+        return symbols;
+    }
+    
+    /**
+     * Returns the class value with the highest probability in a node.
+     * 
+     * @param node The node
+     * @return Class value code
+     */
+    private int best(int node)
+    {
+        int off = node * no_classes;
+        int best = 0;
+        for (int c = 1; c < no_classes; c++)
+        {
+            if (dist[off + c] > dist[off + best]) best = c;
+        }
+        return best;
+    }
+    
+    /**
+     * Returns the number of nodes in the tree.
+     * 
+     * @return Number of nodes
+     */
+    public int noNodes()
+    {
+        return no_nodes;
+    }
+    
+    /**
+     * Classifiers an instance.
+     * 
+     * @param inst The instance
+     * @return Predicted class value for the instance
+     */
+    @Override
+    public Result classify(Instance inst)
+    {
+        int code = classifyIndex(inst);
+        if (class_values.isNumerical())
+        {
+            return new Result(class_values.getNumericalValue(code));
+        }
+        return new Result(class_values.getNominalValue(code));
+    }
+    
+    /**
+     * Classifies an instance and returns the predicted class value as an index
+     * into the distinct class values of the training dataset.
+     * 
+     * @param inst The instance
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst)
+    {
+        return best(leaf(inst));
+    }
+    
+    /**
+     * Classifies an instance and writes the class value probabilities of
+     * its leaf to probs.
+     * 
+     * @param inst The instance
+     * @param probs Class value probabilities (at least one per class value)
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst, double[] probs)
+    {
+        int node = leaf(inst);
+        Arrays.fill(probs, 0);
+        System.arraycopy(dist, node * no_classes, probs, 0, no_classes);
+        return best(node);
+    }
+    
+    /**
+     * Classifies the rows from (inclusive) and to (exclusive) in a dataset,
+     * reading the values directly from the column storage.
+     * 
+     * @param data The dataset
+     * @param from First row to classify
+     * @param to Row after the last row to classify
+     * @param out Predicted class value codes, indexed by row
+     */
+    @Override
+    public void classifyBatch(Dataset data, int from, int to, int[] out)
+    {
+        Columns cols = new Columns(data, symbols);
+        int[] cmap = classMap(class_values, data.getDistinctClassValues());
+        for (int r = from; r < to; r++)
+        {
+            out[r] = cmap[best(leaf(cols, r))];
+        }
+    }
+    
+    /**
+     * Translates the class value codes of a classifier to the class values
+     * of a dataset.
+     * 
+     * @param values Class values of the classifier
+     * @param target Class values of the dataset
+     * @return Code in the dataset of each class value code, -1 if not found
+     */
+    static int[] classMap(DistinctValues values, DistinctValues target)
+    {
+        int[] cmap = new int[values.noValues()];
+        for (int c = 0; c < cmap.length; c++)
+        {
+            if (target == values) cmap[c] = c;
+            else if (values.isNumerical()) cmap[c] = target.indexOf(values.getNumericalValue(c));
+            else cmap[c] = target.indexOf(values.getNominalValue(c));
+        }
+        return cmap;
+    }
+    
+    /**
+     * Creates a new untrained classifier with the same settings.
+     * 
+     * @return A new untrained classifier
+     */
+    @Override
+    public Classifier copy()
+    {
+        return new DecisionTree(criterion, max_depth, min_leaf, max_bins, max_features, seed);
+    }
+    
+    /**
+     * Checks if this classifier can classify from several threads. Classifying
+     * only reads the tree.
+     * 
+     * @return True
+     */
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
+    
+    /**
+     * Saves the trained classifier to a file.
+     * 
+     * @param filename Path to the model file
+     * @throws IOException If an error occurs when writing
+     */
+    public void save(String filename) throws IOException
+    {
+        ModelFile file = ModelFile.create("decisiontree", data, schema);
+        write(file);
+        file.save(filename);
+    }
+    
+    /**
+     * Loads a classifier saved with save().
+     * 
+     * @param filename Path to the model file
+     * @return The classifier
+     * @throws IOException If the file could not be read
+     */
+    public static DecisionTree load(String filename) throws IOException
+    {
+        return read(ModelFile.load(filename, "decisiontree"));
+    }
+    
+    /**
+     * Writes the settings and the tree to a model file, for classifiers that
+     * save trees as part of their own model.
+     * 
+     * @param file The model file
+     * @throws IOException If an error occurs when writing
+     */
+    public void write(ModelFile file) throws IOException
+    {
+        DataOutputStream out = file.out();
+        out.writeInt(criterion);
+        out.writeInt(max_depth);
+        out.writeDouble(min_leaf);
+        out.writeInt(max_bins);
+        out.writeInt(max_features);
+        out.writeLong(seed);
+        out.writeInt(no_attr);
+        file.writeInts(split_attr);
+        file.writeDoubles(split_value);
+        file.writeInts(split_set);
+        file.writeInts(split_sets);
+        file.writeInts(right);
+        file.writeDoubles(dist);
+    }
+    
+    /**
+     * Reads a tree written with write().
+     * 
+     * @param file The model file
+     * @return The tree
+     */
+    public static DecisionTree read(ModelFile file)
+    {
+        ByteBuffer in = file.in();
+        int criterion = in.getInt();
+        int max_depth = in.getInt();
+        double min_leaf = in.getDouble();
+        int max_bins = in.getInt();
+        int max_features = in.getInt();
+        DecisionTree dt = new DecisionTree(criterion, max_depth, min_leaf, max_bins, max_features, in.getLong());
+        dt.no_attr = in.getInt();
+        dt.split_attr = file.readInts();
+        dt.split_value = file.readDoubles();
+        dt.split_set = file.readInts();
+        dt.split_sets = file.readInts();
+        dt.right = file.readInts();
+        dt.dist = file.readDoubles();
+        dt.no_nodes = dt.split_attr.length;
+        dt.no_words = dt.split_sets.length;
+        dt.class_values = file.getDistinctClassValues();
+        dt.schema = file.schema();
+        dt.no_classes = dt.class_values.noValues();
+        dt.symbols = new SymbolTable[dt.no_attr];
+        for (int a = 0; a < dt.no_attr; a++)
+        {
+            dt.symbols[a] = file.getSymbolTable(a);
+        }
+        return dt;
+    }
+    
+    /**
+     * A candidate split of a node.
+     */
+    private static class Split
+    {
+        /** Split attribute */
+        private int attr;
+        /** Decrease in weighted impurity */
+        private double gain;
+        /** Last bin going to the left child (numerical splits) */
+        private int bin;
+        /** Threshold (numerical splits) */
+        private double value;
+        /** Bits of the values going to the left child (nominal splits) */
+        private int[] set;
+    }
+    
+    /**
+     * Finds splits and partitions the rows while growing a tree. The rows of a
+     * node are a range of the row array, which is partitioned in place when
+     * the node is split.
+     */
+    private class Grower
+    {
+        /** The binned dataset */
+        private Bins bins;
+        /** Weight of each row, or null */
+        private int[] weight;
+        /** Rows, each node has a range of them */
+        private int[] rows;
+        /** Randomizer for the selection of attributes */
+        private Random rnd;
+        /** Attributes that can be split on */
+        private int[] attrs;
+        /** Class value weights of the node */
+        private double[] cw;
+        /** Histogram used by sequential split searches */
+        private double[] hist;
+        
+        /**
+         * Creates a grower.
+         * 
+         * @param bins The binned dataset
+         * @param weight Weight of each row, or null
+         * @param rows Rows with weight
+         * @param rnd Randomizer for the selection of attributes
+         */
+        private Grower(Bins bins, int[] weight, int[] rows, Random rnd)
+        {
+            this.bins = bins;
+            this.weight = weight;
+            this.rows = rows;
+            this.rnd = rnd;
+            int n = 0;
+            int max = 0;
+            attrs = new int[no_attr];
+            for (int a = 0; a < no_attr; a++)
+            {
+                if (bins.no_bins[a] > 1)
+                {
+                    attrs[n++] = a;
+                    max = Math.max(max, bins.no_bins[a]);
+                }
+            }
+            attrs = Arrays.copyOf(attrs, n);
+            cw = new double[no_classes];
+            hist = new double[(max + 1) * no_classes];
+        }
+        
+        /**
+         * Sets the class value probabilities of a node and finds the best split.
+         * 
+         * @param node The node
+         * @param start First row of the node
+         * @param end Row after the last row of the node
+         * @param depth Depth of the node
+         * @return The split, or null if the node is a leaf
+         */
+        private Split split(int node, int start, int end, int depth)
+        {
+            Arrays.fill(cw, 0);
+            int[] y = bins.y;
+            for (int i = start; i < end; i++)
+            {
+                cw[y[rows[i]]] += weight == null ? 1 : weight[rows[i]];
+            }
+            double total = 0;
+            int no_nonzero = 0;
+            for (int c = 0; c < no_classes; c++)
+            {
+                total += cw[c];
+                if (cw[c] > 0) no_nonzero++;
+            }
+            for (int c = 0; c < no_classes; c++)
+            {
+                dist[node * no_classes + c] = total > 0 ? cw[c] / total : 0;
+            }
+            if (no_nonzero < 2 || total < 2 * min_leaf || (max_depth > 0 && depth >= max_depth))
+            {
+                return null;
+            }
+            
+            //Random subset of the attributes
+            int k = attrs.length;
+            if (max_features > 0 && max_features < k)
+            {
+                for (int i = 0; i < max_features; i++)
+                {
+                    int j = i + rnd.nextInt(k - i);
+                    int tmp = attrs[i];
+                    attrs[i] = attrs[j];
+                    attrs[j] = tmp;
+                }
+                k = max_features;
+            }
+            
+            double parent = total * impurity(cw, null, total);
+            double node_weight = total;
+            Split best = null;
+            if (end - start >= PARALLEL_ROWS && k > 1)
+            {
+                int[] cand = Arrays.copyOf(attrs, k);
+                Split[] splits = new Split[k];
+                IntStream.range(0, k).parallel().forEach((i) -> {
+                    splits[i] = evaluate(cand[i], start, end, parent, node_weight, new double[(bins.no_bins[cand[i]] + 1) * no_classes]);
+                });
+                for (Split s : splits)
+                {
+                    best = better(best, s);
+                }
+            }
+            else
+            {
+                for (int i = 0; i < k; i++)
+                {
+                    best = better(best, evaluate(attrs[i], start, end, parent, total, hist));
+                }
+            }
+            return best;
+        }
+        
+        /**
+         * Returns the better of two splits. Ties go to the lowest attribute
+         * index, so the result does not depend on the evaluation order.
+         * 
+         * @param a First split, or null
+         * @param b Second split, or null
+         * @return The better split
+         */
+        private Split better(Split a, Split b)
+        {
+            if (a == null) return b;
+            if (b == null) return a;
+            if (b.gain > a.gain || (b.gain == a.gain && b.attr < a.attr)) return b;
+            return a;
+        }
+        
+        /**
+         * Finds the best split on an attribute from a histogram of the class
+         * value weights in each bin.
+         * 
+         * @param a Attribute
+         * @param start First row of the node
+         * @param end Row after the last row of the node
+         * @param parent Weighted impurity of the node
+         * @param total Weight of the node
+         * @param hist Histogram buffer, with room for one extra bin
+         * @return The best split, or null if no split decreases the impurity
+         */
+        private Split evaluate(int a, int start, int end, double parent, double total, double[] hist)
+        {
+            int nb = bins.no_bins[a];
+            char[] code = bins.codes[a];
+            int[] y = bins.y;
+            Arrays.fill(hist, 0, (nb + 1) * no_classes, 0);
+            for (int i = start; i < end; i++)
+            {
+                int r = rows[i];
+                hist[code[r] * no_classes + y[r]] += weight == null ? 1 : weight[r];
+            }
+            
+            //Bin weights, and the order the bins are scanned in
+            double[] bw = new double[nb];
+            int[] order = new int[nb];
+            int no_used = 0;
+            for (int b = 0; b < nb; b++)
+            {
+                for (int c = 0; c < no_classes; c++)
+                {
+                    bw[b] += hist[b * no_classes + c];
+                }
+                if (bw[b] > 0) order[no_used++] = b;
+            }
+            if (no_used < 2)
+            {
+                return null;
+            }
+            if (bins.nominal[a])
+            {
+                //Nominal values ordered by the share of the most common class value
+                int major = 0;
+                for (int c = 1; c < no_classes; c++)
+                {
+                    if (cw[c] > cw[major]) major = c;
+                }
+                double[] key = new double[nb];
+                for (int i = 0; i < no_used; i++)
+                {
+                    key[order[i]] = hist[order[i] * no_classes + major] / bw[order[i]];
+                }
+                for (int i = 1; i < no_used; i++)
+                {
+                    int b = order[i];
+                    int j = i - 1;
+                    while (j >= 0 && key[order[j]] > key[b])
+                    {
+                        order[j + 1] = order[j];
+                        j--;
+                    }
+                    order[j + 1] = b;
+                }
+            }
+            
+            //Scan the split points, with the left weights in the extra bin
+            int left = nb * no_classes;
+            double wl = 0;
+            double best_gain = 1e-12;
+            int best_i = -1;
+            for (int i = 0; i < no_used - 1; i++)
+            {
+                int b = order[i];
+                for (int c = 0; c < no_classes; c++)
+                {
+                    hist[left + c] += hist[b * no_classes + c];
+                }
+                wl += bw[b];
+                double wr = total - wl;
+                if (wl < min_leaf) continue;
+                if (wr < min_leaf) break;
+                
+                double il = 0;
+                double ir = 0;
+                double sl = 0;
+                double sr = 0;
+                for (int c = 0; c < no_classes; c++)
+                {
+                    double pl = hist[left + c] / wl;
+                    double pr = (cw[c] - hist[left + c]) / wr;
+                    if (criterion == GINI)
+                    {
+                        sl += pl * pl;
+                        sr += pr * pr;
+                    }
+                    else
+                    {
+                        if (pl > 0) il -= pl * Math.log(pl);
+                        if (pr > 0) ir -= pr * Math.log(pr);
+                    }
+                }
+                if (criterion == GINI)
+                {
+                    il = 1 - sl;
+                    ir = 1 - sr;
+                }
+                double gain = parent - wl * il - wr * ir;
+                if (gain > best_gain)
+                {
+                    best_gain = gain;
+                    best_i = i;
+                }
+            }
+            if (best_i < 0)
+            {
+                return null;
+            }
+            
+            Split s = new Split();
+            s.attr = a;
+            s.gain = best_gain;
+            if (bins.nominal[a])
+            {
+                s.set = new int[(nb + 31) >>> 5];
+                for (int i = 0; i <= best_i; i++)
+                {
+                    s.set[order[i] >>> 5] |= 1 << order[i];
+                }
+            }
+            else
+            {
+                s.bin = order[best_i];
+                s.value = bins.edges[a][s.bin];
+            }
+            return s;
+        }
+        
+        /**
+         * Partitions the rows of a node so the rows going to the left child
+         * come first.
+         * 
+         * @param start First row of the node
+         * @param end Row after the last row of the node
+         * @param s The split
+         * @return First row of the right child
+         */
+        private int partition(int start, int end, Split s)
+        {
+            char[] code = bins.codes[s.attr];
+            int i = start;
+            int j = end - 1;
+            while (i <= j)
+            {
+                int b = code[rows[i]];
+                boolean left = s.set == null ? b <= s.bin : (s.set[b >>> 5] & (1 << b)) != 0;
+                if (left)
+                {
+                    i++;
+                }
+                else
+                {
+                    int tmp = rows[i];
+                    rows[i] = rows[j];
+                    rows[j--] = tmp;
+                }
+            }
+            return i;
+        }
+    }
+    
+    /**
+     * The attribute values of a dataset mapped to bins, and the class value
+     * codes of the rows. The bins are made once and can be shared by all
+     * trees grown from the dataset.
+     */
+    static class Bins
+    {
+        /** The dataset */
+        private Dataset data;
+        /** Number of rows */
+        private int n;
+        /** Number of attributes, excluding the class attribute */
+        private int no_attr;
+        /** Class value code of each row */
+        private int[] y;
+        /** Class values */
+        private DistinctValues class_values;
+        /** Nominal values of each attribute (null for numerical) */
+        private SymbolTable[] symbols;
+        /** If the attribute is nominal */
+        private boolean[] nominal;
+        /** Number of bins of each attribute (0 for attributes not used) */
+        private int[] no_bins;
+        /** Bin of each row, for each attribute */
+        private char[][] codes;
+        /** Upper bound of the values in each bin, for each numerical attribute */
+        private double[][] edges;
+        
+        /**
+         * Maps the attribute values of a dataset to bins. The numerical
+         * attributes are sorted in parallel.
+         * 
+         * @param data The dataset
+         * @param max_bins Largest number of bins of a numerical attribute
+         */
+        Bins(Dataset data, int max_bins)
+        {
+            this.data = data;
+            n = data.noInstances();
+            no_attr = data.noAttributes() - 1;
+            class_values = data.getDistinctClassValues();
+            y = new int[n];
+            for (int r = 0; r < n; r++)
+            {
+                y[r] = data.getClassCode(r);
+            }
+            symbols = new SymbolTable[no_attr];
+            nominal = new boolean[no_attr];
+            no_bins = new int[no_attr];
+            codes = new char[no_attr][];
+            edges = new double[no_attr][];
+            
+            Columns cols = new Columns(data, null);
+            IntStream.range(0, no_attr).parallel().forEach((a) -> {
+                if (data.isNominal(a))
+                {
+                    symbols[a] = data.getSymbolTable(a);
+                    if (symbols[a].size() > Character.MAX_VALUE)
+                    {
+                        throw new RuntimeException("Too many values in nominal attribute " + data.getAttributeName(a));
+                    }
+                    nominal[a] = true;
+                    no_bins[a] = symbols[a].size();
+                    codes[a] = new char[n];
+                    for (int r = 0; r < n; r++)
+                    {
+                        codes[a][r] = (char)cols.code(r, a);
+                    }
+                }
+                else if (data.isNumerical(a))
+                {
+                    double[] values = new double[n];
+                    for (int r = 0; r < n; r++)
+                    {
+                        values[r] = cols.value(r, a);
+                    }
+                    edges[a] = edges(values, max_bins);
+                    no_bins[a] = edges[a].length;
+                    codes[a] = new char[n];
+                    for (int r = 0; r < n; r++)
+                    {
+                        int b = Arrays.binarySearch(edges[a], values[r]);
+                        codes[a][r] = (char)(b >= 0 ? b : -b - 1);
+                    }
+                }
+            });
+        }
+        
+        /**
+         * Finds the bins of a numerical attribute. Values up to and including
+         * the upper bound of a bin (and above the previous bound) are in the
+         * bin. With at most max_bins distinct values, each value has its own
+         * bin and the bounds are halfway between the values.
+         * 
+         * @param values Values of the attribute
+         * @param max_bins Largest number of bins
+         * @return Upper bound of each bin, the last bound is infinity
+         */
+        private static double[] edges(double[] values, int max_bins)
+        {
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            int k = 0;
+            for (int i = 0; i < sorted.length; i++)
+            {
+                if (i == 0 || sorted[i] != sorted[i - 1]) k++;
+            }
+            
+            double[] edges = new double[Math.min(k, max_bins)];
+            int m = 0;
+            if (k <= max_bins)
+            {
+                for (int i = 1; i < sorted.length; i++)
+                {
+                    if (sorted[i] != sorted[i - 1]) edges[m++] = sorted[i - 1] + (sorted[i] - sorted[i - 1]) / 2;
+                }
+            }
+            else
+            {
+                //Bounds at quantiles of the values
+                for (int j = 1; j < max_bins; j++)
+                {
+                    double v = sorted[(int)((long)j * sorted.length / max_bins)];
+                    if ((m == 0 || v > edges[m - 1]) && v < sorted[sorted.length - 1]) edges[m++] = v;
+                }
+            }
+            edges = Arrays.copyOf(edges, m + 1);
+            edges[m] = Double.POSITIVE_INFINITY;
+            return edges;
+        }
+    }
+    
+    /**
+     * Reads attribute values of a dataset directly from the column storage,
+     * with nominal value codes translated to the codes of the training dataset.
+     */
+    static class Columns
+    {
+        /** The dataset */
+        private Dataset data;
+        /** Numerical columns (null for nominal attributes and sparse datasets) */
+        private double[][] num;
+        /** Nominal columns (null for numerical attributes) */
+        private int[][] nom;
+        /** Code in the training dataset of each nominal value code, or null to use the codes */
+        private int[][] vmaps;
+        
+        /**
+         * Creates the column access for a dataset.
+         * 
+         * @param data The dataset
+         * @param symbols Nominal values of the training dataset, or null if
+         * the dataset is the training dataset
+         */
+        Columns(Dataset data, SymbolTable[] symbols)
+        {
+            this.data = data;
+            int no_attr = data.noAttributes() - 1;
+            num = new double[no_attr][];
+            nom = new int[no_attr][];
+            vmaps = new int[no_attr][];
+            for (int a = 0; a < no_attr; a++)
+            {
+                if (data.isNominal(a))
+                {
+                    nom[a] = data.getNominalColumn(a);
+                    SymbolTable table = data.getSymbolTable(a);
+                    if (symbols != null && symbols[a] != table)
+                    {
+                        vmaps[a] = new int[table.size()];
+                        for (int v = 0; v < vmaps[a].length; v++)
+                        {
+                            vmaps[a][v] = symbols[a] != null ? symbols[a].lookup(table.decode(v)) : -1;
+                        }
+                    }
+                }
+                else if (data.isNumerical(a) && !data.isSparse())
+                {
+                    num[a] = data.getNumericalColumn(a);
+                }
+            }
+        }
+        
+        /**
+         * Returns the numerical value of an attribute.
+         * 
+         * @param row Row index
+         * @param a Attribute index
+         * @return The value
+         */
+        double value(int row, int a)
+        {
+            return num[a] != null ? num[a][data.rowIndex(row)] : data.getNumericalValue(row, a);
+        }
+        
+        /**
+         * Returns the nominal value code of an attribute, in the codes of the
+         * training dataset.
+         * 
+         * @param row Row index
+         * @param a Attribute index
+         * @return The code, or -1 if the value was not seen in training
+         */
+        int code(int row, int a)
+        {
+            if (nom[a] == null)
+            {
+                return -1;
+            }
+            int code = nom[a][data.rowIndex(row)];
+            return vmaps[a] == null ? code : vmaps[a][code];
+        }
+    }
+}
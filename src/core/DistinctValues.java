@@ -2,35 +2,63 @@
 package core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This class represents a list of distinct values an attribute
- * can have.
+ * can have. Values are kept in the order they were added, and are
+ * indexed with hash tables so adding and looking up values is O(1).
+ * 
+ * In approximate mode the values themselves are not stored. Only the
+ * number of distinct values is estimated, using a HyperLogLog sketch,
+ * which is useful for columns too large to enumerate.
  * 
  * @author Johan Hagelbäck (johan.hagelback@gmail.com)
  */
-public class DistinctValues 
+public class DistinctValues
 {
-    /** List of nominal values */
-    private ArrayList<String> nom_values;
-    /** List of numerical values */
-    private ArrayList<Double> num_values;
+    /** Nominal values */
+    private SymbolTable nom_values;
+    /** Numerical values, in the order they were added */
+    private double[] num_values;
+    /** Number of numerical values */
+    private int num_size;
+    /** Hash table holding index + 1 of each numerical value, 0 for empty slots */
+    private int[] num_table;
     /** The attribute is numerical */
     private boolean is_num;
     /** The attribute is nominal */
     private boolean is_nom;
+    /** Estimator used in approximate mode (null in exact mode) */
+    private HyperLogLog sketch;
     
     /**
      * Constructor.
      */
     public DistinctValues()
     {
-        nom_values = new ArrayList<>();
-        num_values = new ArrayList<>();
+        nom_values = new SymbolTable();
+        num_values = new double[8];
+        num_table = new int[16];
+        num_size = 0;
         is_nom = false;
         is_num = false;
     }
     
+    /**
+     * Constructor.
+     * 
+     * @param approximate If true, only the number of distinct values is estimated
+     */
+    public DistinctValues(boolean approximate)
+    {
+        this();
+        if (approximate)
+        {
+            sketch = new HyperLogLog();
+        }
+    }
+    
     /**
      * Adds a numerical value to the list. If the added value is not
      * in the list already, it is added to the list.
@@ -39,11 +67,36 @@ public class DistinctValues
      */
     public void addValue(double value)
     {
-        if (!num_values.contains(value))
+        is_num = true;
+        if (sketch != null)
         {
-            num_values.add(value);
+            sketch.add(value);
+            return;
+        }
+        
+        long bits = Double.doubleToLongBits(value);
+        int mask = num_table.length - 1;
+        int slot = hash(bits) & mask;
+        while (num_table[slot] != 0)
+        {
+            if (Double.doubleToLongBits(num_values[num_table[slot] - 1]) == bits)
+            {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        
+        //New value
+        if (num_size == num_values.length)
+        {
+            num_values = Arrays.copyOf(num_values, num_size * 2);
+        }
+        num_values[num_size++] = value;
+        num_table[slot] = num_size;
+        if (num_size * 2 > num_table.length)
+        {
+            rehash(num_table.length * 2);
         }
-        is_num = true;
     }
     
     /**
@@ -54,11 +107,13 @@ public class DistinctValues
      */
     public void addValue(String value)
     {
-        if (!nom_values.contains(value))
+        is_nom = true;
+        if (sketch != null)
         {
-            nom_values.add(value);
+            sketch.add(value);
+            return;
         }
-        is_nom = true;
+        nom_values.encode(value);
     }
     
     /**
@@ -81,40 +136,184 @@ public class DistinctValues
         return is_nom;
     }
     
+    /**
+     * Checks if this list only estimates the number of distinct values.
+     * 
+     * @return True if approximate, false otherwise
+     */
+    public boolean isApproximate()
+    {
+        return sketch != null;
+    }
+    
     /**
      * Returns the list of distinct numerical values for this attribute.
+     * The list is empty in approximate mode.
      * 
      * @return List of distinct numerical values
      */
     public ArrayList<Double> getNumericalValues()
     {
-        return num_values;
+        ArrayList<Double> list = new ArrayList<>(num_size);
+        for (int i = 0; i < num_size; i++)
+        {
+            list.add(num_values[i]);
+        }
+        return list;
     }
     
     /**
      * Returns the list of distinct nominal values for this attribute.
+     * The list is empty in approximate mode.
      * 
      * @return List of distinct nominal values
      */
     public ArrayList<String> getNominalValues()
     {
-        return nom_values;
+        ArrayList<String> list = new ArrayList<>(nom_values.size());
+        for (int i = 0; i < nom_values.size(); i++)
+        {
+            list.add(nom_values.decode(i));
+        }
+        return list;
+    }
+    
+    /**
+     * Returns the numerical value at the specified position in the list.
+     * 
+     * @param index Index of the value
+     * @return Numerical value
+     */
+    public double getNumericalValue(int index)
+    {
+        if (index < 0 || index >= num_size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + num_size);
+        }
+        return num_values[index];
+    }
+    
+    /**
+     * Returns the nominal value at the specified position in the list.
+     * 
+     * @param index Index of the value
+     * @return Nominal value
+     */
+    public String getNominalValue(int index)
+    {
+        return nom_values.decode(index);
+    }
+    
+    /**
+     * Returns the position of a numerical value in the list.
+     * 
+     * @param value Numerical value
+     * @return Index of the value, or -1 if not in the list
+     */
+    public int indexOf(double value)
+    {
+        long bits = Double.doubleToLongBits(value);
+        int mask = num_table.length - 1;
+        int slot = hash(bits) & mask;
+        while (num_table[slot] != 0)
+        {
+            int index = num_table[slot] - 1;
+            if (Double.doubleToLongBits(num_values[index]) == bits)
+            {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the position of a nominal value in the list.
+     * 
+     * @param value Nominal value
+     * @return Index of the value, or -1 if not in the list
+     */
+    public int indexOf(String value)
+    {
+        return nom_values.lookup(value);
     }
     
     /**
-     * Returns the number of values in the list.
+     * Returns the position of a classification result in the list. Nominal
+     * results that are not in the list are matched ignoring case.
+     * 
+     * @param res Classification result
+     * @return Index of the value, or -1 if not in the list
+     */
+    public int indexOf(Result res)
+    {
+        if (res.isNumerical())
+        {
+            return indexOf(res.numericalValue());
+        }
+        
+        int index = nom_values.lookup(res.nominalValue());
+        for (int i = 0; index < 0 && i < nom_values.size(); i++)
+        {
+            String v = nom_values.decode(i);
+            if (v != null && v.equalsIgnoreCase(res.nominalValue()))
+            {
+                index = i;
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Returns the number of values in the list. In approximate mode
+     * this is an estimate.
      * 
      * @return Number of values
      */
     public int noValues()
     {
+        if (sketch != null)
+        {
+            return (int)Math.min(sketch.estimate(), Integer.MAX_VALUE);
+        }
         if (isNumerical())
         {
-            return num_values.size();
+            return num_size;
         }
         else
         {
             return nom_values.size();
         }
     }
+    
+    /**
+     * Rebuilds the numerical hash table with a new size.
+     * 
+     * @param capacity New number of slots (a power of two)
+     */
+    private void rehash(int capacity)
+    {
+        num_table = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < num_size; i++)
+        {
+            int slot = hash(Double.doubleToLongBits(num_values[i])) & mask;
+            while (num_table[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            num_table[slot] = i + 1;
+        }
+    }
+    
+    /**
+     * Calculates the hash of a numerical value.
+     * 
+     * @param bits Bits of the value
+     * @return Hash code
+     */
+    private static int hash(long bits)
+    {
+        return (int)HyperLogLog.mix(bits);
+    }
 }
@@ -2,11 +2,20 @@
 package core;
 
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 /**
  * This class trains and evaluates a classifier. Evaluation can be done using
  * the same dataset for training and testing, using a specified test dataset,
- * or using 10-fold cross validation.
+ * or using k-fold cross validation.
+ * 
+ * Cross validation can run the folds in parallel on an executor. Each fold
+ * then trains its own classifier, created by a factory, and the fold results
+ * are combined in fold order so the result is the same as a sequential run.
  * 
  * @author Johan Hagelbäck (johan.hagelback@gmail.com)
  */
@@ -24,6 +33,18 @@ public class Evaluator
      * @param filename Filename to the dataset file
      */
     public Evaluator(Classifier classifier, String filename)
+    {
+        this(classifier, filename, false);
+    }
+    
+    /**
+     * Creates a new evaluator.
+     * 
+     * @param classifier The classifier to train and test
+     * @param filename Filename to the dataset file
+     * @param use_cache If true, the dataset is read through a binary cache file
+     */
+    public Evaluator(Classifier classifier, String filename, boolean use_cache)
     {
         this.classifier = classifier;
         
@@ -33,6 +54,7 @@ public class Evaluator
         if (filename.endsWith(".csv")) dr = new CSVreader();
         if (dr != null)
         {
+            if (use_cache) dr = new CachedReader(dr);
             dr.readFile(filename);
             data = dr.getData();
         }
@@ -42,6 +64,18 @@ public class Evaluator
         }
     }
     
+    /**
+     * Creates a new evaluator for a dataset that is already read.
+     * 
+     * @param classifier The classifier to train and test
+     * @param data The dataset
+     */
+    public Evaluator(Classifier classifier, Dataset data)
+    {
+        this.classifier = classifier;
+        this.data = data;
+    }
+    
     /**
      * Evaluates the classifier using the whole dataset for training
      * and the specified dataset for testing.
@@ -63,7 +97,7 @@ public class Evaluator
     public void evaluateWholeSet()
     {
         classifier.train(data);
-        double perc = test(data.toList());
+        double perc = accuracy(classifier, data, true);
         System.out.println("Classifier: " + classifier.toString());
         System.out.println("Evaluation (whole dataset): " + String.format( "%.2f", perc) + "%");
     }
@@ -73,20 +107,140 @@ public class Evaluator
      */
     public void evaluateCV()
     {
-        CrossValidation cv = new CrossValidation(data);
-        double accPerc = 0;
-        for (int f = 0; f < 10; f++)
+        evaluateCV(10);
+    }
+    
+    /**
+     * Evaluates the classifier using k-fold cross validation.
+     * 
+     * @param no_folds Number of folds
+     */
+    public void evaluateCV(int no_folds)
+    {
+        evaluateCV(no_folds, 1, false);
+    }
+    
+    /**
+     * Evaluates the classifier using repeated k-fold cross validation. The
+     * accuracy is the average over all folds in all repetitions.
+     * 
+     * @param no_folds Number of folds in each repetition
+     * @param no_repeats Number of repetitions
+     * @param stratified If true, the folds are stratified by class value
+     */
+    public void evaluateCV(int no_folds, int no_repeats, boolean stratified)
+    {
+        CrossValidation cv = new CrossValidation(data, no_folds, no_repeats, 1, stratified);
+        double[] fold_perc = new double[cv.noFolds()];
+        for (int f = 0; f < cv.noFolds(); f++)
         {
             Fold fold = cv.getFold(f);
             classifier.train(fold.getTrainingSet());
-            accPerc += test(fold.getTestSet());
+            fold_perc[f] = accuracy(classifier, fold.getTestData(), true);
+        }
+        
+        printCV(fold_perc, no_folds, no_repeats, stratified);
+    }
+    
+    /**
+     * Evaluates the classifier using k-fold cross validation, running the folds
+     * in parallel on the common fork-join pool. Each fold trains a copy of
+     * the classifier.
+     * 
+     * @param no_folds Number of folds
+     */
+    public void evaluateCVParallel(int no_folds)
+    {
+        evaluateCVParallel(no_folds, classifier::copy);
+    }
+    
+    /**
+     * Evaluates the classifier using k-fold cross validation, running the folds
+     * in parallel on the common fork-join pool.
+     * 
+     * @param no_folds Number of folds
+     * @param factory Creates a new untrained classifier for each fold
+     */
+    public void evaluateCVParallel(int no_folds, Supplier<Classifier> factory)
+    {
+        evaluateCV(no_folds, 1, false, factory, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Evaluates the classifier using repeated k-fold cross validation, running
+     * the folds in parallel. Each fold trains its own classifier from the factory,
+     * so the classifiers must not modify the (shared) training data. The result
+     * is the same as for a sequential run with the same settings.
+     * 
+     * @param no_folds Number of folds in each repetition
+     * @param no_repeats Number of repetitions
+     * @param stratified If true, the folds are stratified by class value
+     * @param factory Creates a new untrained classifier for each fold
+     * @param executor Executor running the folds, for example a fork-join pool
+     */
+    public void evaluateCV(int no_folds, int no_repeats, boolean stratified, Supplier<Classifier> factory, ExecutorService executor)
+    {
+        CrossValidation cv = new CrossValidation(data, no_folds, no_repeats, 1, stratified);
+        
+        //Train and test each fold as a separate task
+        ArrayList<Future<Double>> tasks = new ArrayList<>(cv.noFolds());
+        for (int f = 0; f < cv.noFolds(); f++)
+        {
+            Fold fold = cv.getFold(f);
+            tasks.add(executor.submit(() -> {
+                Classifier c = factory.get();
+                c.train(fold.getTrainingSet());
+                return accuracy(c, fold.getTestData(), true);
+            }));
+        }
+        
+        //Collect the results in fold order
+        double[] fold_perc = new double[cv.noFolds()];
+        try
+        {
+            for (int f = 0; f < cv.noFolds(); f++)
+            {
+                fold_perc[f] = tasks.get(f).get();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Cross validation was interrupted", ex);
+        }
+        catch (ExecutionException ex)
+        {
+            throw new RuntimeException("Error evaluating fold: " + ex.getCause().getMessage(), ex.getCause());
         }
-        double perc = accPerc / 10.0;
         
+        printCV(fold_perc, no_folds, no_repeats, stratified);
+    }
+    
+    /**
+     * Outputs the result of cross validation.
+     * 
+     * @param fold_perc Accuracy (in percent) for each fold
+     * @param no_folds Number of folds in each repetition
+     * @param no_repeats Number of repetitions
+     * @param stratified If the folds are stratified by class value
+     */
+    private void printCV(double[] fold_perc, int no_folds, int no_repeats, boolean stratified)
+    {
+        //Sum in fold order
+        double accPerc = 0;
+        for (int f = 0; f < fold_perc.length; f++)
+        {
+            accPerc += fold_perc[f];
+        }
+        double perc = accPerc / fold_perc.length;
+        
+        String name = no_folds + "-fold CV";
+        if (no_repeats > 1) name = no_repeats + "x" + name;
+        if (stratified) name = "stratified " + name;
         System.out.println("Classifier: " + classifier.toString());
-        System.out.println("Evaluation (10-fold CV): " + String.format( "%.2f", perc) + "%");
+        System.out.println("Evaluation (" + name + "): " + String.format( "%.2f", perc) + "%");
     }
-
+    
     /**
      * Classifies a set of instances and calculates accuracy (number of correctly
      * classified instances).
@@ -99,14 +253,25 @@ public class Evaluator
         //Calculate correctness by classifying each of the instances
         int n = test.size();
         int no_correct = 0;
+        DistinctValues class_values = data.getDistinctClassValues();
         
         for (int r = 0; r < n; r++)
         {
             Instance inst = test.get(r);
             Result res = classifier.classify(inst);
             
+            //Instances from the dataset are compared using the
+            //class value codes
+            int code = res.isNominal() ? class_values.indexOf(res.nominalValue()) : class_values.indexOf(res.numericalValue());
+            if (code >= 0 && inst.dataset() != null && inst.dataset().getDistinctClassValues() == class_values)
+            {
+                if (inst.dataset().getClassCode(inst.row()) == code)
+                {
+                    no_correct++;
+                }
+            }
             //Check type of class attribute
-            if (res.isNominal())
+            else if (res.isNominal())
             {
                 if (inst.getClassAttribute().nominalValue().equalsIgnoreCase(res.nominalValue()))
                 {
@@ -128,6 +293,39 @@ public class Evaluator
         return perc;
     }
     
+    /**
+     * Classifies the instances in a dataset and calculates accuracy (number of
+     * correctly classified instances). The test dataset must have the same
+     * class values as the training dataset, for example a fold of it.
+     * 
+     * @param classifier The trained classifier
+     * @param test The test dataset
+     * @param parallel If true, classify ranges of rows in parallel
+     * @return Accuracy (in percent)
+     */
+    public static double accuracy(Classifier classifier, Dataset test, boolean parallel)
+    {
+        //Classify all instances
+        int n = test.noInstances();
+        int[] predicted = new int[n];
+        classifier.classifyBatch(test, predicted, parallel);
+        
+        //Calculate correctness by comparing class value codes
+        int no_correct = 0;
+        for (int r = 0; r < n; r++)
+        {
+            if (predicted[r] == test.getClassCode(r))
+            {
+                no_correct++;
+            }
+        }
+        
+        //Calculate accuracy
+        double perc = (double)no_correct / ((double)n) * 100.0;
+        
+        return perc;
+    }
+    
     /**
      * Outputs the dataset to the console.
      */
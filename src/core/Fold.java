@@ -5,16 +5,17 @@ import java.util.ArrayList;
 
 /**
  * This class represents a fold (a training and a test dataset) in
- * 10-fold cross validation.
+ * 10-fold cross validation. The training and test datasets are usually
+ * views of the full dataset.
  * 
  * @author Johan Hagelbäck (johan.hagelback@gmail.com)
  */
 public class Fold
 {
     /** Instances used for training */
-    private ArrayList<Instance> train;
+    private Dataset train;
     /** Instances used for testing */
-    private ArrayList<Instance> test;
+    private Dataset test;
 
     /**
      * Constructor.
@@ -23,6 +24,18 @@ public class Fold
      * @param test Test dataset
      */
     public Fold(ArrayList<Instance> train, ArrayList<Instance> test)
+    {
+        this.train = new Dataset(train);
+        this.test = new Dataset(test);
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param train Training dataset
+     * @param test Test dataset
+     */
+    public Fold(Dataset train, Dataset test)
     {
         this.train = train;
         this.test = test;
@@ -34,6 +47,16 @@ public class Fold
      * @return Test dataset
      */
     public ArrayList<Instance> getTestSet()
+    {
+        return test.toList();
+    }
+    
+    /**
+     * Returns the test dataset.
+     * 
+     * @return Test dataset
+     */
+    public Dataset getTestData()
     {
         return test;
     }
@@ -45,6 +68,6 @@ public class Fold
      */
     public Dataset getTrainingSet()
     {
-        return new Dataset(train);
+        return train;
     }
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+
+package core;
+
+/**
+ * This class estimates the number of distinct values in a stream of values
+ * using the HyperLogLog algorithm. Memory use is fixed (2^precision bytes)
+ * regardless of the number of values, and the relative error of the estimate
+ * is about 1.04 / sqrt(2^precision).
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class HyperLogLog
+{
+    /** Number of bits used to select a register */
+    private int precision;
+    /** Registers, each holding the highest rank seen */
+    private byte[] registers;
+    
+    /**
+     * Creates a new estimator with precision 14 (16 KB, about 0.8% error).
+     */
+    public HyperLogLog()
+    {
+        this(14);
+    }
+    
+    /**
+     * Creates a new estimator.
+     * 
+     * @param precision Number of bits used to select a register (4-18)
+     */
+    public HyperLogLog(int precision)
+    {
+        if (precision < 4 || precision > 18)
+        {
+            throw new IllegalArgumentException("Precision must be between 4 and 18");
+        }
+        this.precision = precision;
+        registers = new byte[1 << precision];
+    }
+    
+    /**
+     * Adds a numerical value.
+     * 
+     * @param value The value
+     */
+    public void add(double value)
+    {
+        addHash(mix(Double.doubleToLongBits(value)));
+    }
+    
+    /**
+     * Adds a nominal value.
+     * 
+     * @param value The value
+     */
+    public void add(String value)
+    {
+        //64-bit FNV-1a over the characters
+        long h = 0xcbf29ce484222325L;
+        if (value != null)
+        {
+            for (int i = 0; i < value.length(); i++)
+            {
+                h ^= value.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        }
+        addHash(mix(h));
+    }
+    
+    /**
+     * Adds a value by its 64-bit hash. The hash bits must be well mixed.
+     * 
+     * @param hash Hash of the value
+     */
+    public void addHash(long hash)
+    {
+        int index = (int)(hash >>> (64 - precision));
+        //Rank is the position of the first 1-bit in the remaining bits
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte)(Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index])
+        {
+            registers[index] = rank;
+        }
+    }
+    
+    /**
+     * Merges the registers of another estimator into this one. The result
+     * estimates the number of distinct values in both streams.
+     * 
+     * @param other Estimator with the same precision
+     */
+    public void merge(HyperLogLog other)
+    {
+        if (other.precision != precision)
+        {
+            throw new IllegalArgumentException("Cannot merge estimators with different precision");
+        }
+        for (int i = 0; i < registers.length; i++)
+        {
+            if (other.registers[i] > registers[i])
+            {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+    
+    /**
+     * Returns the estimated number of distinct values added.
+     * 
+     * @return Estimated number of distinct values
+     */
+    public long estimate()
+    {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < m; i++)
+        {
+            sum += 1.0 / (1L << registers[i]);
+            if (registers[i] == 0) zeros++;
+        }
+        
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double est = alpha * m * m / sum;
+        
+        //Small range correction (linear counting)
+        if (est <= 2.5 * m && zeros > 0)
+        {
+            est = m * Math.log((double)m / zeros);
+        }
+        return Math.round(est);
+    }
+    
+    /**
+     * Mixes the bits of a 64-bit value (SplitMix64 finalizer).
+     * 
+     * @param z The value
+     * @return Mixed value
+     */
+    static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -2,9 +2,11 @@
 package core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
- * This class represents an instance (example, field) in a dataset.
+ * This class represents an instance (example, field) in a dataset. An instance
+ * either holds its own attributes, or is a view of a row in a dataset.
  * 
  * @author Johan Hagelbäck (johan.hagelback@gmail.com)
  */
@@ -12,6 +14,10 @@ public class Instance
 {
     /** List of attributes, the last is the class attribute */
     private ArrayList<Attribute> attr;
+    /** Dataset holding the attribute values, if this instance is a view */
+    private Dataset data;
+    /** Row in the dataset, if this instance is a view */
+    private int row;
     
     /**
      * Creates a new instance.
@@ -23,6 +29,18 @@ public class Instance
         attr = new ArrayList<>(n);
     }
     
+    /**
+     * Creates a new instance that is a view of a row in a dataset.
+     * 
+     * @param data The dataset
+     * @param row Row index
+     */
+    Instance(Dataset data, int row)
+    {
+        this.data = data;
+        this.row = row;
+    }
+    
     /**
      * Sets a numerical attribute for this instance.
      * 
@@ -31,7 +49,18 @@ public class Instance
      */
     public void setAttributeValue(double value, int attr_index)
     {
-        attr.add(attr_index, new Attribute(value));
+        if (data != null)
+        {
+            data.setValue(row, attr_index, value);
+        }
+        else if (attr_index < attr.size())
+        {
+            attr.set(attr_index, new Attribute(value));
+        }
+        else
+        {
+            attr.add(attr_index, new Attribute(value));
+        }
     }
     
     /**
@@ -42,20 +71,53 @@ public class Instance
      */
     public void setAttributeValue(String value, int attr_index)
     {
-        attr.add(attr_index, new Attribute(value));
+        if (data != null)
+        {
+            data.setValue(row, attr_index, value);
+        }
+        else if (attr_index < attr.size())
+        {
+            attr.set(attr_index, new Attribute(value));
+        }
+        else
+        {
+            attr.add(attr_index, new Attribute(value));
+        }
     }
     
     /**
-     * Returns the attribute at the specified index.
+     * Returns the attribute at the specified index. If this instance
+     * is a view of a dataset row, the attribute is a copy and changes
+     * to it are not stored in the dataset (use setAttributeValue instead).
      * 
      * @param attr_index Attribute index
      * @return The attribute
      */
     public Attribute getAttribute(int attr_index)
     {
+        if (data != null)
+        {
+            return data.getAttribute(row, attr_index);
+        }
         return attr.get(attr_index);
     }
     
+    /**
+     * Returns the numerical value of the attribute at the specified index,
+     * without creating an attribute object. Nominal attributes return 0.
+     * 
+     * @param attr_index Attribute index
+     * @return Numerical value
+     */
+    public double getNumericalValue(int attr_index)
+    {
+        if (data != null)
+        {
+            return data.getNumericalValue(row, attr_index);
+        }
+        return attr.get(attr_index).numericalValue();
+    }
+    
     /**
      * Returns the name of the attribute at the specified index.
      * 
@@ -74,9 +136,47 @@ public class Instance
      */
     public ArrayList<Attribute> getAttributes()
     {
+        if (data != null)
+        {
+            ArrayList<Attribute> list = new ArrayList<>(noAttributes());
+            for (int i = 0; i < noAttributes(); i++)
+            {
+                list.add(getAttribute(i));
+            }
+            return list;
+        }
         return attr;
     }
     
+    /**
+     * Returns a copy of this instance that holds its own attributes. For
+     * views, the copy is no longer backed by the dataset.
+     * 
+     * @return The copy
+     */
+    public Instance copy()
+    {
+        int n = noAttributes();
+        if (data != null && data.isSparse())
+        {
+            //Rows in sparse datasets are copied to sparse instances
+            int start = data.sparseStart(row);
+            int end = data.sparseEnd(row);
+            int[] indexes = Arrays.copyOfRange(data.getSparseIndexes(), start, end);
+            double[] values = Arrays.copyOfRange(data.getSparseValues(), start, end);
+            return new SparseInstance(n, indexes, values, getClassAttribute());
+        }
+        
+        Instance inst = new Instance(n);
+        for (int i = 0; i < n; i++)
+        {
+            Attribute a = getAttribute(i);
+            if (a.isNumerical()) inst.attr.add(new Attribute(a.numericalValue()));
+            else inst.attr.add(new Attribute(a.nominalValue()));
+        }
+        return inst;
+    }
+    
     /**
      * Returns the class attribute.
      * 
@@ -84,7 +184,7 @@ public class Instance
      */
     public Attribute getClassAttribute()
     {
-        return attr.get(attr.size() - 1);
+        return getAttribute(noAttributes() - 1);
     }
     
     /**
@@ -95,9 +195,33 @@ public class Instance
      */
     public int noAttributes()
     {
+        if (data != null)
+        {
+            return data.noAttributes();
+        }
         return attr.size();
     }
     
+    /**
+     * Returns the dataset this instance is a view of.
+     * 
+     * @return The dataset, or null if this instance is not a view
+     */
+    Dataset dataset()
+    {
+        return data;
+    }
+    
+    /**
+     * Returns the row in the dataset this instance is a view of.
+     * 
+     * @return Row index
+     */
+    int row()
+    {
+        return row;
+    }
+    
     /**
      * Returns a list of the attribute values for this instance, excluding
      * the class attribute value.
@@ -106,10 +230,12 @@ public class Instance
      */
     public double[] getAttributeArrayNumerical()
     {
-        double[] vals = new double[attr.size() - 1];
-        for (int i = 0; i < attr.size() - 1; i++)
+        int n = noAttributes() - 1;
+        double[] vals = new double[n];
+        for (int i = 0; i < n; i++)
         {
-            vals[i] = attr.get(i).numericalValue();
+            if (data != null) vals[i] = data.getNumericalValue(row, i);
+            else vals[i] = attr.get(i).numericalValue();
         }
         return vals;
     }
@@ -122,10 +248,12 @@ public class Instance
      */
     public String[] getAttributeArrayNominal()
     {
-        String[] vals = new String[attr.size() - 1];
-        for (int i = 0; i < attr.size() - 1; i++)
+        int n = noAttributes() - 1;
+        String[] vals = new String[n];
+        for (int i = 0; i < n; i++)
         {
-            vals[i] = attr.get(i).nominalValue();
+            if (data != null) vals[i] = data.getNominalValue(row, i);
+            else vals[i] = attr.get(i).nominalValue();
         }
         return vals;
     }
@@ -133,10 +261,11 @@ public class Instance
     @Override
     public String toString()
     {
+        int n = noAttributes();
         String str = "{";
-        for (int i = 0; i < attr.size() - 1; i++)
+        for (int i = 0; i < n - 1; i++)
         {
-            Attribute a = attr.get(i);
+            Attribute a = getAttribute(i);
             
             String v = "";
             if (a.isNominal())
@@ -153,7 +282,7 @@ public class Instance
         }
         
         //Class attribute
-        Attribute a = attr.get(attr.size() - 1);
+        Attribute a = getAttribute(n - 1);
         
         String v = "";
         if (a.isNominal())
@@ -165,7 +294,7 @@ public class Instance
             v = String.format( "%.2f", a.numericalValue());
         }
         
-        str += AttributeNames.getInstance().getAttributeName(attr.size() - 1) + " = " + v + "}";
+        str += AttributeNames.getInstance().getAttributeName(n - 1) + " = " + v + "}";
         
         return str;
     }
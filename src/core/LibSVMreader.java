@@ -0,0 +1,325 @@
+
+package core;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * This class reads a dataset from a file in LibSVM (SVMlight) format. Each
+ * line holds a numerical label followed by index:value pairs for the non-zero
+ * attributes, with indexes starting at 1 in increasing order. Text after #
+ * is a comment.
+ * 
+ * The dataset is sparse. Attribute indexes are shifted to start at 0, the
+ * number of attributes is the highest index in the file, and the label is
+ * the (numerical) class attribute.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class LibSVMreader implements DataReader
+{
+    /** The dataset, created from the rows when it is first requested */
+    private Dataset data;
+    /** Number of rows */
+    private int no_rows;
+    /** Highest attribute index in the file */
+    private int max_index;
+    /** Label of each row */
+    private double[] labels;
+    /** Start of each row in indexes and values, with the end at starts[no_rows] */
+    private int[] starts;
+    /** Attribute index of each value */
+    private int[] indexes;
+    /** Values of all rows */
+    private double[] values;
+    
+    /**
+     * Constructor.
+     */
+    public LibSVMreader()
+    {
+        
+    }
+    
+    /**
+     * Reads the dataset file and generates dataset.
+     * 
+     * @param filename Path to the dataset file
+     */
+    @Override
+    public void readFile(String filename)
+    {
+        readFile(filename, " ");
+    }
+    
+    /**
+     * Reads the dataset file and generates dataset. Values are always separated
+     * by spaces or tabs, so the separator is not used.
+     * 
+     * @param filename Path to the dataset file
+     * @param separator Not used
+     */
+    @Override
+    public void readFile(String filename, String separator)
+    {
+        try (FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
+        {
+            TextParser parser = new TextParser(in, ' ', false);
+            
+            //The number of attributes is not known until all rows are read,
+            //so the rows are first stored in arrays
+            data = null;
+            no_rows = 0;
+            max_index = 0;
+            int no_values = 0;
+            labels = new double[1024];
+            starts = new int[1025];
+            indexes = new int[4096];
+            values = new double[4096];
+            
+            while (parser.nextDataLine())
+            {
+                byte[] buf = parser.buffer();
+                int end = parser.lineEnd();
+                for (int i = parser.lineStart(); i < end; i++)
+                {
+                    if (buf[i] == '#')
+                    {
+                        end = i;
+                    }
+                }
+                
+                //Label
+                int p = parser.skipSpaces(parser.lineStart(), end);
+                int q = nextSpace(buf, p, end);
+                if (p == end)
+                {
+                    //Comment line
+                    continue;
+                }
+                if (!parser.parseNumber(p, q))
+                {
+                    throw new RuntimeException("Invalid label: " + parser.field(p, q));
+                }
+                if (no_rows == labels.length)
+                {
+                    labels = Arrays.copyOf(labels, no_rows * 2);
+                    starts = Arrays.copyOf(starts, no_rows * 2 + 1);
+                }
+                labels[no_rows] = parser.number();
+                
+                //Index:value pairs
+                int last = 0;
+                p = parser.skipSpaces(q, end);
+                while (p < end)
+                {
+                    q = nextSpace(buf, p, end);
+                    int colon = p;
+                    int index = 0;
+                    while (colon < q && buf[colon] >= '0' && buf[colon] <= '9' && index <= 100000000)
+                    {
+                        index = index * 10 + (buf[colon] - '0');
+                        colon++;
+                    }
+                    if (colon == p || colon == q || buf[colon] != ':' || index <= last)
+                    {
+                        throw new RuntimeException("Invalid index:value pair: " + parser.field(p, q));
+                    }
+                    if (!parser.parseNumber(colon + 1, q))
+                    {
+                        throw new RuntimeException("Invalid value: " + parser.field(p, q));
+                    }
+                    
+                    if (no_values == indexes.length)
+                    {
+                        indexes = Arrays.copyOf(indexes, no_values * 2);
+                        values = Arrays.copyOf(values, no_values * 2);
+                    }
+                    indexes[no_values] = index - 1;
+                    values[no_values] = parser.number();
+                    no_values++;
+                    last = index;
+                    max_index = Math.max(max_index, index);
+                    p = parser.skipSpaces(q, end);
+                }
+                no_rows++;
+                starts[no_rows] = no_values;
+            }
+        }
+        catch (Exception ex)
+        {
+            System.out.println("Error reading data file: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Finds the next space or tab.
+     * 
+     * @param buf The buffer
+     * @param p Start position
+     * @param end End position
+     * @return Position of the next space or tab, or end
+     */
+    private static int nextSpace(byte[] buf, int p, int end)
+    {
+        while (p < end && buf[p] != ' ' && buf[p] != '\t' && buf[p] != '\r')
+        {
+            p++;
+        }
+        return p;
+    }
+    
+    /**
+     * Returns the dataset. The dataset is created from the rows on the first
+     * call, and the rows are then released.
+     * 
+     * @return The dataset
+     */
+    @Override
+    public Dataset getData()
+    {
+        if (data == null && labels != null)
+        {
+            createDataset();
+        }
+        return data;
+    }
+    
+    /**
+     * Creates the sparse dataset from the rows.
+     */
+    private void createDataset()
+    {
+        int no_attr = max_index + 1;
+        data = new Dataset(no_attr);
+        data.setAttributeNames(attributeNames());
+        data.makeSparse();
+        data.column(no_attr - 1).declareNumerical();
+        
+        Column label = data.column(no_attr - 1);
+        for (int r = 0; r < no_rows; r++)
+        {
+            for (int i = starts[r]; i < starts[r + 1]; i++)
+            {
+                data.addSparse(indexes[i], values[i]);
+            }
+            label.add(labels[r]);
+            data.commitRow();
+        }
+        
+        labels = null;
+        starts = null;
+        indexes = null;
+        values = null;
+    }
+    
+    /**
+     * Returns a dataset without rows holding the schema of the file: the
+     * attribute names and the labels as class values, in the order they
+     * first appear. This is the schema of the dataset from getData(), for
+     * models trained directly on the rows. Must be called before getData().
+     * 
+     * @return Dataset without rows
+     */
+    public Dataset getSchema()
+    {
+        int no_attr = max_index + 1;
+        Column[] cols = new Column[no_attr];
+        for (int a = 0; a < no_attr; a++)
+        {
+            cols[a] = Column.numerical(new double[1], 0);
+        }
+        DistinctValues class_values = new DistinctValues();
+        for (int r = 0; r < no_rows; r++)
+        {
+            class_values.addValue(labels[r]);
+        }
+        Dataset schema = new Dataset(cols, 0, class_values, new int[1]);
+        schema.setAttributeNames(attributeNames());
+        return schema;
+    }
+    
+    /**
+     * Returns the attribute names: the index in the file of each attribute,
+     * followed by label for the class attribute.
+     * 
+     * @return Attribute names
+     */
+    private String[] attributeNames()
+    {
+        int no_attr = max_index + 1;
+        String[] names = new String[no_attr];
+        for (int a = 0; a < no_attr - 1; a++)
+        {
+            names[a] = String.valueOf(a + 1);
+        }
+        names[no_attr - 1] = "label";
+        return names;
+    }
+    
+    /**
+     * Returns the number of rows read.
+     * 
+     * @return Number of rows
+     */
+    public int noRows()
+    {
+        return no_rows;
+    }
+    
+    /**
+     * Returns the number of attributes, not counting the label. This is the
+     * highest index in the file.
+     * 
+     * @return Number of attributes
+     */
+    public int noFeatures()
+    {
+        return max_index;
+    }
+    
+    /**
+     * Returns the labels of the rows. The rows can be used directly, without
+     * creating a dataset, until getData() is called.
+     * 
+     * @return Label of each row, the array can be longer than the number of rows
+     */
+    public double[] getLabels()
+    {
+        return labels;
+    }
+    
+    /**
+     * Returns where each row starts in getIndexes() and getValues(). Row r
+     * holds the values from starts[r] to starts[r + 1].
+     * 
+     * @return Start of each row
+     */
+    public int[] getRowStarts()
+    {
+        return starts;
+    }
+    
+    /**
+     * Returns the attribute indexes (starting at 0) of the values of all rows.
+     * 
+     * @return Attribute indexes
+     */
+    public int[] getIndexes()
+    {
+        return indexes;
+    }
+    
+    /**
+     * Returns the values of all rows.
+     * 
+     * @return Values
+     */
+    public double[] getValues()
+    {
+        return values;
+    }
+}
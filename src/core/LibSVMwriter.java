@@ -0,0 +1,119 @@
+
+package core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * This class writes a dataset to a file in LibSVM (SVMlight) format, so it
+ * can be read by LibSVMreader or by the LibSVM tools. Each row is written as
+ * the label followed by index:value pairs for the non-zero attributes, with
+ * indexes starting at 1.
+ * 
+ * All attributes except the class attribute must be numerical. The label
+ * is the value of a numerical class attribute, or the class value code of
+ * a nominal class attribute.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class LibSVMwriter
+{
+    /**
+     * Writes a dataset to a file.
+     * 
+     * @param data The dataset
+     * @param filename Path to the file
+     * @throws IOException If the file could not be written
+     */
+    public static void write(Dataset data, String filename) throws IOException
+    {
+        int no_attr = data.noAttributes() - 1;
+        double[][] cols = new double[no_attr][];
+        if (!data.isSparse())
+        {
+            for (int a = 0; a < no_attr; a++)
+            {
+                if (!data.isNumerical(a))
+                {
+                    throw new RuntimeException("Attribute " + a + " is not numerical");
+                }
+                cols[a] = data.getNumericalColumn(a);
+            }
+        }
+        boolean numerical_class = data.isNumerical(no_attr);
+        
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(filename), StandardCharsets.UTF_8))
+        {
+            StringBuilder line = new StringBuilder();
+            for (int r = 0; r < data.noInstances(); r++)
+            {
+                line.setLength(0);
+                if (numerical_class)
+                {
+                    appendNumber(line, data.getNumericalValue(r, no_attr));
+                }
+                else
+                {
+                    line.append(data.getClassCode(r));
+                }
+                
+                if (data.isSparse())
+                {
+                    int[] indexes = data.getSparseIndexes();
+                    double[] values = data.getSparseValues();
+                    for (int i = data.sparseStart(r); i < data.sparseEnd(r); i++)
+                    {
+                        appendValue(line, indexes[i], values[i]);
+                    }
+                }
+                else
+                {
+                    int row = data.rowIndex(r);
+                    for (int a = 0; a < no_attr; a++)
+                    {
+                        appendValue(line, a, cols[a][row]);
+                    }
+                }
+                line.append('\n');
+                out.append(line);
+            }
+        }
+    }
+    
+    /**
+     * Appends an index:value pair, unless the value is zero.
+     * 
+     * @param line The line
+     * @param attr_index Attribute index
+     * @param value The value
+     */
+    private static void appendValue(StringBuilder line, int attr_index, double value)
+    {
+        if (value != 0)
+        {
+            line.append(' ').append(attr_index + 1).append(':');
+            appendNumber(line, value);
+        }
+    }
+    
+    /**
+     * Appends a number. Whole numbers are written without decimals.
+     * 
+     * @param line The line
+     * @param value The number
+     */
+    private static void appendNumber(StringBuilder line, double value)
+    {
+        if (value == (long) value && Math.abs(value) < 1e15)
+        {
+            line.append((long) value);
+        }
+        else
+        {
+            line.append(value);
+        }
+    }
+}
@@ -0,0 +1,750 @@
+
+package core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * This class is a linear classifier (linear support vector machine or
+ * logistic regression) trained with dual coordinate descent, as in LIBLINEAR.
+ * Training time grows linearly with the number of rows (and the number of
+ * non-zero values for sparse datasets), and no kernel matrix is used, so it
+ * works for datasets far too large for kernel SVMs.
+ * 
+ * Training copies the numerical attribute values of a dense dataset to one
+ * array, row by row, and reads sparse datasets directly from their sparse
+ * rows. Nominal attributes are not used. A bias attribute with value 1 is
+ * added to each row. For more than two class values one model per class value
+ * is trained (one-vs-rest), in parallel, and the class value with the highest
+ * score is predicted.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class LinearClassifier implements Classifier
+{
+    /** L2-regularized hinge loss (linear SVM) */
+    public static final int HINGE = 0;
+    /** L2-regularized squared hinge loss (linear SVM) */
+    public static final int SQUARED_HINGE = 1;
+    /** L2-regularized logistic regression */
+    public static final int LOGISTIC = 2;
+    
+    /** Loss function */
+    private int loss;
+    /** Cost of misclassified rows */
+    private double C;
+    /** Stopping tolerance */
+    private double eps;
+    /** Maximum number of passes over the rows */
+    private int max_iter;
+    /** Seed for the order the rows are visited in */
+    private long seed;
+    
+    /** Number of attributes, excluding the class attribute */
+    private int no_attr;
+    /** Number of models (one for two class values, else one per class value) */
+    private int no_models;
+    /** Weights of each model, no_attr weights followed by the bias weight */
+    private double[] w;
+    /** Class values of the training dataset */
+    private DistinctValues class_values;
+    /** The training dataset, for the schema when saving */
+    private Dataset data;
+    /** Schema of a loaded classifier, for saving it again */
+    private ModelFile schema;
+    
+    /**
+     * Creates a new classifier with the LIBLINEAR default tolerance (0.1)
+     * and at most 1000 passes over the rows.
+     * 
+     * @param loss Loss function (HINGE, SQUARED_HINGE or LOGISTIC)
+     * @param C Cost of misclassified rows
+     */
+    public LinearClassifier(int loss, double C)
+    {
+        this(loss, C, 0.1, 1000, 1);
+    }
+    
+    /**
+     * Creates a new classifier.
+     * 
+     * @param loss Loss function (HINGE, SQUARED_HINGE or LOGISTIC)
+     * @param C Cost of misclassified rows
+     * @param eps Stopping tolerance
+     * @param max_iter Maximum number of passes over the rows
+     * @param seed Seed for the order the rows are visited in
+     */
+    public LinearClassifier(int loss, double C, double eps, int max_iter, long seed)
+    {
+        if (loss != HINGE && loss != SQUARED_HINGE && loss != LOGISTIC)
+        {
+            throw new IllegalArgumentException("Unknown loss function: " + loss);
+        }
+        this.loss = loss;
+        this.C = C;
+        this.eps = eps;
+        this.max_iter = max_iter;
+        this.seed = seed;
+    }
+    
+    /**
+     * Trains the classifier.
+     * 
+     * @param train Data set used for training
+     */
+    @Override
+    public void train(Dataset train)
+    {
+        data = train;
+        no_attr = train.noAttributes() - 1;
+        class_values = train.getDistinctClassValues();
+        int no_classes = class_values.noValues();
+        no_models = no_classes <= 2 ? 1 : no_classes;
+        w = new double[no_models * (no_attr + 1)];
+        
+        Rows x = new Rows(train, no_attr, true);
+        IntStream.range(0, no_models).parallel().forEach((m) -> {
+            //Rows with class value code m are the positive class
+            byte[] y = new byte[x.n];
+            for (int i = 0; i < x.n; i++)
+            {
+                y[i] = (byte)(train.getClassCode(i) == m ? 1 : -1);
+            }
+            Random rnd = new Random(seed + m);
+            if (loss == LOGISTIC) solveLogistic(x, y, m * (no_attr + 1), rnd);
+            else solveSVM(x, y, m * (no_attr + 1), rnd);
+        });
+    }
+    
+    /**
+     * Trains one model with the dual coordinate descent method for linear
+     * SVMs (Hsieh et al. 2008). Rows whose dual variable is at a bound and
+     * likely to stay there are shrunk (skipped) until the remaining rows have
+     * converged, and all rows are then checked again.
+     * 
+     * @param x Training rows
+     * @param y Label (+1 or -1) of each row
+     * @param off Position of the model in the weights
+     * @param rnd Randomizer for the order the rows are visited in
+     */
+    private void solveSVM(Rows x, byte[] y, int off, Random rnd)
+    {
+        int n = x.n;
+        double diag = loss == SQUARED_HINGE ? 0.5 / C : 0;
+        double upper = loss == SQUARED_HINGE ? Double.POSITIVE_INFINITY : C;
+        double[] alpha = new double[n];
+        double[] qd = new double[n];
+        int[] index = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            qd[i] = diag + x.squaredNorm(i);
+            index[i] = i;
+        }
+        
+        //Rows in index[0..active) are visited
+        int active = n;
+        double pg_max_old = Double.POSITIVE_INFINITY;
+        double pg_min_old = Double.NEGATIVE_INFINITY;
+        for (int iter = 0; iter < max_iter; iter++)
+        {
+            shuffle(index, active, rnd);
+            double pg_max = Double.NEGATIVE_INFINITY;
+            double pg_min = Double.POSITIVE_INFINITY;
+            for (int s = 0; s < active; s++)
+            {
+                int i = index[s];
+                double g = y[i] * x.dot(w, off, i) - 1 + alpha[i] * diag;
+                
+                //Projected gradient. A row at a bound is shrunk if its
+                //gradient is outside the range of the previous pass.
+                double pg = g;
+                if ((alpha[i] == 0 && g > pg_max_old) || (alpha[i] == upper && g < pg_min_old))
+                {
+                    active--;
+                    index[s] = index[active];
+                    index[active] = i;
+                    s--;
+                    continue;
+                }
+                if (alpha[i] == 0) pg = Math.min(g, 0);
+                else if (alpha[i] == upper) pg = Math.max(g, 0);
+                pg_max = Math.max(pg_max, pg);
+                pg_min = Math.min(pg_min, pg);
+                
+                if (Math.abs(pg) > 1e-12)
+                {
+                    double old = alpha[i];
+                    alpha[i] = Math.min(Math.max(old - g / qd[i], 0), upper);
+                    x.add(w, off, (alpha[i] - old) * y[i], i);
+                }
+            }
+            
+            if (pg_max - pg_min <= eps)
+            {
+                if (active == n)
+                {
+                    break;
+                }
+                
+                //Converged on the active rows, check all rows again
+                active = n;
+                pg_max_old = Double.POSITIVE_INFINITY;
+                pg_min_old = Double.NEGATIVE_INFINITY;
+                continue;
+            }
+            pg_max_old = pg_max > 0 ? pg_max : Double.POSITIVE_INFINITY;
+            pg_min_old = pg_min < 0 ? pg_min : Double.NEGATIVE_INFINITY;
+        }
+    }
+    
+    /**
+     * Trains one model with the dual coordinate descent method for logistic
+     * regression (Yu et al. 2011). Each step solves a one-variable problem
+     * with a few Newton iterations.
+     * 
+     * @param x Training rows
+     * @param y Label (+1 or -1) of each row
+     * @param off Position of the model in the weights
+     * @param rnd Randomizer for the order the rows are visited in
+     */
+    private void solveLogistic(Rows x, byte[] y, int off, Random rnd)
+    {
+        int n = x.n;
+        int max_inner_iter = 100;
+        double inner_eps = 1e-2;
+        double inner_eps_min = Math.min(1e-8, eps);
+        
+        //Two dual variables per row, alpha[2i] + alpha[2i+1] = C
+        double[] alpha = new double[2 * n];
+        double[] xx = new double[n];
+        int[] index = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            alpha[2 * i] = Math.min(0.001 * C, 1e-8);
+            alpha[2 * i + 1] = C - alpha[2 * i];
+            xx[i] = x.squaredNorm(i);
+            x.add(w, off, y[i] * alpha[2 * i], i);
+            index[i] = i;
+        }
+        
+        for (int iter = 0; iter < max_iter; iter++)
+        {
+            shuffle(index, n, rnd);
+            int newton_iter = 0;
+            double g_max = 0;
+            for (int s = 0; s < n; s++)
+            {
+                int i = index[s];
+                double ywx = y[i] * x.dot(w, off, i);
+                int ind1 = 2 * i;
+                int ind2 = 2 * i + 1;
+                int sign = 1;
+                if (0.5 * xx[i] * (alpha[ind2] - alpha[ind1]) + ywx < 0)
+                {
+                    ind1 = 2 * i + 1;
+                    ind2 = 2 * i;
+                    sign = -1;
+                }
+                
+                double alpha_old = alpha[ind1];
+                double z = alpha_old;
+                if (C - z < 0.5 * C)
+                {
+                    z = 0.1 * z;
+                }
+                double gp = xx[i] * (z - alpha_old) + sign * ywx + Math.log(z / (C - z));
+                g_max = Math.max(g_max, Math.abs(gp));
+                
+                //Newton iterations for the one-variable problem
+                int inner = 0;
+                while (inner <= max_inner_iter && Math.abs(gp) >= inner_eps)
+                {
+                    double gpp = xx[i] + C / (C - z) / z;
+                    double tmp_z = z - gp / gpp;
+                    if (tmp_z <= 0) z *= 0.1;
+                    else z = tmp_z;
+                    gp = xx[i] * (z - alpha_old) + sign * ywx + Math.log(z / (C - z));
+                    newton_iter++;
+                    inner++;
+                }
+                
+                if (inner > 0)
+                {
+                    alpha[ind1] = z;
+                    alpha[ind2] = C - z;
+                    x.add(w, off, sign * (z - alpha_old) * y[i], i);
+                }
+            }
+            
+            if (g_max < eps)
+            {
+                break;
+            }
+            if (newton_iter <= n / 10)
+            {
+                inner_eps = Math.max(inner_eps_min, 0.1 * inner_eps);
+            }
+        }
+    }
+    
+    /**
+     * Shuffles the order the rows are visited in.
+     * 
+     * @param index Row indexes
+     * @param size Number of row indexes, from the start, to shuffle
+     * @param rnd Randomizer
+     */
+    private static void shuffle(int[] index, int size, Random rnd)
+    {
+        for (int i = size - 1; i > 0; i--)
+        {
+            int j = rnd.nextInt(i + 1);
+            int tmp = index[i];
+            index[i] = index[j];
+            index[j] = tmp;
+        }
+    }
+    
+    /**
+     * Classifiers an instance.
+     * 
+     * @param inst The instance
+     * @return Predicted class value for the instance
+     */
+    @Override
+    public Result classify(Instance inst)
+    {
+        int code = classifyIndex(inst);
+        if (class_values.isNumerical())
+        {
+            return new Result(class_values.getNumericalValue(code));
+        }
+        return new Result(class_values.getNominalValue(code));
+    }
+    
+    /**
+     * Classifies an instance and returns the predicted class value as an index
+     * into the distinct class values of the training dataset.
+     * 
+     * @param inst The instance
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst)
+    {
+        return predict(scores(inst));
+    }
+    
+    /**
+     * Classifies an instance and writes the probability of each class value
+     * to probs. Logistic regression gives the logistic function of the scores
+     * (normalized to sum to 1 for more than two class values), the SVM losses
+     * give the predicted class value probability 1.
+     * 
+     * @param inst The instance
+     * @param probs Class value probabilities (at least one per class value)
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst, double[] probs)
+    {
+        double[] scores = scores(inst);
+        int code = predict(scores);
+        Arrays.fill(probs, 0);
+        if (loss != LOGISTIC)
+        {
+            probs[code] = 1;
+        }
+        else if (no_models == 1)
+        {
+            probs[0] = 1 / (1 + Math.exp(-scores[0]));
+            if (class_values.noValues() > 1) probs[1] = 1 - probs[0];
+        }
+        else
+        {
+            double sum = 0;
+            for (int m = 0; m < no_models; m++)
+            {
+                probs[m] = 1 / (1 + Math.exp(-scores[m]));
+                sum += probs[m];
+            }
+            for (int m = 0; m < no_models; m++)
+            {
+                probs[m] /= sum;
+            }
+        }
+        return code;
+    }
+    
+    /**
+     * Classifies the rows from (inclusive) and to (exclusive) in a dataset,
+     * reading the values directly from the column storage or sparse rows.
+     * 
+     * @param data The dataset
+     * @param from First row to classify
+     * @param to Row after the last row to classify
+     * @param out Predicted class value codes, indexed by row
+     */
+    @Override
+    public void classifyBatch(Dataset data, int from, int to, int[] out)
+    {
+        Rows x = new Rows(data, no_attr, false);
+        double[] scores = new double[no_models];
+        for (int r = from; r < to; r++)
+        {
+            for (int m = 0; m < no_models; m++)
+            {
+                scores[m] = x.dot(w, m * (no_attr + 1), r);
+            }
+            out[r] = toIndex(predict(scores), data.getDistinctClassValues());
+        }
+    }
+    
+    /**
+     * Calculates the score of each model for an instance.
+     * 
+     * @param inst The instance
+     * @return Scores
+     */
+    private double[] scores(Instance inst)
+    {
+        int stride = no_attr + 1;
+        double[] scores = new double[no_models];
+        for (int m = 0; m < no_models; m++)
+        {
+            scores[m] = w[m * stride + no_attr];
+        }
+        
+        if (inst instanceof SparseInstance)
+        {
+            SparseInstance si = (SparseInstance)inst;
+            for (int i = 0; i < si.noValues(); i++)
+            {
+                if (si.getIndex(i) >= no_attr) continue;
+                for (int m = 0; m < no_models; m++)
+                {
+                    scores[m] += w[m * stride + si.getIndex(i)] * si.getValue(i);
+                }
+            }
+            return scores;
+        }
+        int width = Math.min(no_attr, inst.noAttributes() - 1);
+        for (int a = 0; a < width; a++)
+        {
+            double v = inst.getNumericalValue(a);
+            if (v != 0)
+            {
+                for (int m = 0; m < no_models; m++)
+                {
+                    scores[m] += w[m * stride + a] * v;
+                }
+            }
+        }
+        return scores;
+    }
+    
+    /**
+     * Returns the predicted class value code for the scores of the models.
+     * 
+     * @param scores Scores
+     * @return Class value code
+     */
+    private int predict(double[] scores)
+    {
+        if (no_models == 1)
+        {
+            return scores[0] > 0 || class_values.noValues() < 2 ? 0 : 1;
+        }
+        int best = 0;
+        for (int m = 1; m < no_models; m++)
+        {
+            if (scores[m] > scores[best]) best = m;
+        }
+        return best;
+    }
+    
+    /**
+     * Translates a class value code to the class values of another dataset.
+     * 
+     * @param code Class value code in the training dataset
+     * @param target Class values of the other dataset
+     * @return Class value code in the other dataset, or -1 if not found
+     */
+    private int toIndex(int code, DistinctValues target)
+    {
+        if (target == class_values)
+        {
+            return code;
+        }
+        if (class_values.isNumerical())
+        {
+            return target.indexOf(class_values.getNumericalValue(code));
+        }
+        return target.indexOf(class_values.getNominalValue(code));
+    }
+    
+    /**
+     * Creates a new untrained classifier with the same settings.
+     * 
+     * @return A new untrained classifier
+     */
+    @Override
+    public Classifier copy()
+    {
+        return new LinearClassifier(loss, C, eps, max_iter, seed);
+    }
+    
+    /**
+     * Checks if this classifier can classify from several threads. Classifying
+     * only reads the weights.
+     * 
+     * @return True
+     */
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
+    
+    /**
+     * Saves the trained classifier to a file.
+     * 
+     * @param filename Path to the model file
+     * @throws IOException If an error occurs when writing
+     */
+    public void save(String filename) throws IOException
+    {
+        ModelFile file = ModelFile.create("linear", data, schema);
+        write(file);
+        file.save(filename);
+    }
+    
+    /**
+     * Loads a classifier saved with save().
+     * 
+     * @param filename Path to the model file
+     * @return The classifier
+     * @throws IOException If the file could not be read
+     */
+    public static LinearClassifier load(String filename) throws IOException
+    {
+        return read(ModelFile.load(filename, "linear"));
+    }
+    
+    /**
+     * Writes the settings and weights to a model file, for classifiers
+     * that save a linear classifier as part of their own model.
+     * 
+     * @param file The model file
+     * @throws IOException If an error occurs when writing
+     */
+    public void write(ModelFile file) throws IOException
+    {
+        DataOutputStream out = file.out();
+        out.writeInt(loss);
+        out.writeDouble(C);
+        out.writeDouble(eps);
+        out.writeInt(max_iter);
+        out.writeLong(seed);
+        out.writeInt(no_attr);
+        out.writeInt(no_models);
+        file.writeDoubles(w);
+    }
+    
+    /**
+     * Reads a classifier written with write().
+     * 
+     * @param file The model file
+     * @return The classifier
+     */
+    public static LinearClassifier read(ModelFile file)
+    {
+        ByteBuffer in = file.in();
+        int loss = in.getInt();
+        double C = in.getDouble();
+        double eps = in.getDouble();
+        int max_iter = in.getInt();
+        LinearClassifier lc = new LinearClassifier(loss, C, eps, max_iter, in.getLong());
+        lc.no_attr = in.getInt();
+        lc.no_models = in.getInt();
+        lc.w = file.readDoubles();
+        lc.class_values = file.getDistinctClassValues();
+        lc.schema = file.schema();
+        return lc;
+    }
+    
+    /**
+     * Reads the attribute values of the rows in a dataset directly from the
+     * column storage or the sparse rows. Each row has a bias value of 1 after
+     * the attributes.
+     */
+    private static class Rows
+    {
+        /** The dataset */
+        private Dataset data;
+        /** Number of rows */
+        private int n;
+        /** Number of attributes of the model, the bias weight comes after them */
+        private int no_attr;
+        /** Number of attributes read from the dataset, at most no_attr */
+        private int width;
+        /** Numerical columns (null for nominal attributes and sparse datasets) */
+        private double[][] cols;
+        /** Values of the rows one row after another, or null to read the columns */
+        private double[] packed;
+        /** Attribute indexes of the sparse values */
+        private int[] sp_index;
+        /** Sparse values */
+        private double[] sp_value;
+        
+        /**
+         * Creates the rows for a dataset.
+         * 
+         * @param data The dataset
+         * @param no_attr Number of attributes of the model. Attributes of the
+         * dataset at or above it are skipped.
+         * @param pack If true, the values of a dense dataset are copied to
+         * one array, row by row (if it fits), which is faster when rows are
+         * visited many times in random order
+         */
+        private Rows(Dataset data, int no_attr, boolean pack)
+        {
+            this.data = data;
+            this.no_attr = no_attr;
+            n = data.noInstances();
+            width = Math.min(no_attr, data.noAttributes() - 1);
+            if (data.isSparse())
+            {
+                sp_index = data.getSparseIndexes();
+                sp_value = data.getSparseValues();
+                return;
+            }
+            cols = new double[width][];
+            for (int a = 0; a < width; a++)
+            {
+                if (data.isNumerical(a)) cols[a] = data.getNumericalColumn(a);
+            }
+            if (pack && (long)n * width <= Integer.MAX_VALUE - 8)
+            {
+                packed = new double[n * width];
+                for (int row = 0; row < n; row++)
+                {
+                    int r = data.rowIndex(row);
+                    for (int a = 0; a < width; a++)
+                    {
+                        if (cols[a] != null) packed[row * width + a] = cols[a][r];
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Calculates the dot product of a row and a model.
+         * 
+         * @param w Weights
+         * @param off Position of the model in the weights
+         * @param row Row index
+         * @return Dot product
+         */
+        private double dot(double[] w, int off, int row)
+        {
+            double sum = w[off + no_attr];
+            if (cols == null)
+            {
+                for (int i = data.sparseStart(row); i < data.sparseEnd(row); i++)
+                {
+                    if (sp_index[i] < no_attr) sum += w[off + sp_index[i]] * sp_value[i];
+                }
+                return sum;
+            }
+            if (packed != null)
+            {
+                int p = row * width;
+                for (int a = 0; a < width; a++)
+                {
+                    sum += w[off + a] * packed[p + a];
+                }
+                return sum;
+            }
+            int r = data.rowIndex(row);
+            for (int a = 0; a < width; a++)
+            {
+                if (cols[a] != null) sum += w[off + a] * cols[a][r];
+            }
+            return sum;
+        }
+        
+        /**
+         * Adds a multiple of a row to a model.
+         * 
+         * @param w Weights
+         * @param off Position of the model in the weights
+         * @param d Multiple of the row
+         * @param row Row index
+         */
+        private void add(double[] w, int off, double d, int row)
+        {
+            w[off + no_attr] += d;
+            if (cols == null)
+            {
+                for (int i = data.sparseStart(row); i < data.sparseEnd(row); i++)
+                {
+                    if (sp_index[i] < no_attr) w[off + sp_index[i]] += d * sp_value[i];
+                }
+                return;
+            }
+            if (packed != null)
+            {
+                int p = row * width;
+                for (int a = 0; a < width; a++)
+                {
+                    w[off + a] += d * packed[p + a];
+                }
+                return;
+            }
+            int r = data.rowIndex(row);
+            for (int a = 0; a < width; a++)
+            {
+                if (cols[a] != null) w[off + a] += d * cols[a][r];
+            }
+        }
+        
+        /**
+         * Calculates the squared norm of a row, including the bias value.
+         * 
+         * @param row Row index
+         * @return Squared norm
+         */
+        private double squaredNorm(int row)
+        {
+            double sum = 1;
+            if (cols == null)
+            {
+                for (int i = data.sparseStart(row); i < data.sparseEnd(row); i++)
+                {
+                    if (sp_index[i] < no_attr) sum += sp_value[i] * sp_value[i];
+                }
+                return sum;
+            }
+            if (packed != null)
+            {
+                int p = row * width;
+                for (int a = 0; a < width; a++)
+                {
+                    sum += packed[p + a] * packed[p + a];
+                }
+                return sum;
+            }
+            int r = data.rowIndex(row);
+            for (int a = 0; a < width; a++)
+            {
+                if (cols[a] != null) sum += cols[a][r] * cols[a][r];
+            }
+            return sum;
+        }
+    }
+}
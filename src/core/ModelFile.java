@@ -0,0 +1,357 @@
+
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class writes and reads files holding trained classifiers. A model file
+ * starts with a header identifying the type of classifier, followed by the
+ * schema of the training dataset: attribute names, the type of each attribute,
+ * the values of nominal attributes (in code order) and the class values (in
+ * class value code order). The schema is what a loaded classifier needs to
+ * score new instances and to translate predictions to class values.
+ * 
+ * The rest of the file is written and read by the classifier. A model is
+ * written to a buffer and saved with save(), which replaces the file in one
+ * step. Loading reads the whole file into a buffer that the classifier reads
+ * primitive values and arrays from, so no objects are created for the values.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class ModelFile
+{
+    /** Identifies a model file */
+    private static final int MAGIC = 0x4D4C4D44;
+    /** Version of the model file format */
+    private static final int VERSION = 1;
+    
+    /** Model being written */
+    private ByteArrayOutputStream bytes;
+    /** Output for the model being written */
+    private DataOutputStream out;
+    /** Input for the model being read */
+    private ByteBuffer in;
+    
+    /** Schema of the training dataset */
+    private Schema schema;
+    
+    /**
+     * Creates a new model file and writes the header and the schema of the
+     * training dataset. The classifier then writes its model to out().
+     * 
+     * @param type Type of classifier
+     * @param data Training dataset
+     * @throws IOException If an error occurs when writing
+     */
+    public ModelFile(String type, Dataset data) throws IOException
+    {
+        schema = new Schema(data);
+        writeHeader(type);
+    }
+    
+    /**
+     * Creates a new model file and writes the header and a schema read from
+     * another model file. Used to save a loaded classifier again.
+     * 
+     * @param type Type of classifier
+     * @param schema Model file holding the schema
+     * @throws IOException If an error occurs when writing
+     */
+    public ModelFile(String type, ModelFile schema) throws IOException
+    {
+        this.schema = schema.schema;
+        writeHeader(type);
+    }
+    
+    /**
+     * Creates a new model file for a classifier, with the schema of its
+     * training dataset, or of the model file it was loaded from if it has
+     * not been trained since.
+     * 
+     * @param type Type of classifier
+     * @param data Training dataset, or null if not trained
+     * @param schema Schema of a loaded classifier, or null if not loaded
+     * @return The model file
+     * @throws IOException If an error occurs when writing
+     */
+    public static ModelFile create(String type, Dataset data, ModelFile schema) throws IOException
+    {
+        if (data != null)
+        {
+            return new ModelFile(type, data);
+        }
+        if (schema != null)
+        {
+            return new ModelFile(type, schema);
+        }
+        throw new RuntimeException("Only trained classifiers can be saved");
+    }
+    
+    /**
+     * Writes the header and the schema.
+     * 
+     * @param type Type of classifier
+     * @throws IOException If an error occurs when writing
+     */
+    private void writeHeader(String type) throws IOException
+    {
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        Schema.writeString(out, type);
+        schema.write(out);
+    }
+    
+    /**
+     * Creates a model file that is read from a buffer.
+     * 
+     * @param in The buffer, positioned after the header and schema
+     */
+    private ModelFile(ByteBuffer in)
+    {
+        this.in = in;
+    }
+    
+    /**
+     * Reads a model file and its schema. The classifier then reads its
+     * model from in().
+     * 
+     * @param filename Path to the model file
+     * @param type Expected type of classifier
+     * @return The model file
+     * @throws IOException If the file could not be read or is not a model of the expected type
+     */
+    public static ModelFile load(String filename, String type) throws IOException
+    {
+        ByteBuffer in;
+        try (FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
+        {
+            if (ch.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException("Model file is too large: " + filename);
+            }
+            in = ByteBuffer.allocate((int)ch.size());
+            while (in.hasRemaining() && ch.read(in) >= 0);
+            in.flip();
+        }
+        
+        if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != VERSION)
+        {
+            throw new IOException("Not a model file: " + filename);
+        }
+        String file_type = Schema.readString(in);
+        if (!type.equals(file_type))
+        {
+            throw new IOException("Model file " + filename + " holds a " + file_type + " model, not " + type);
+        }
+        
+        ModelFile model = new ModelFile(in);
+        model.schema = Schema.read(in);
+        return model;
+    }
+    
+    /**
+     * Returns a copy of the schema, without the model. A loaded classifier
+     * keeps the schema so that it can be saved again, without keeping the
+     * buffer the model was read from.
+     * 
+     * @return Model file holding only the schema
+     */
+    public ModelFile schema()
+    {
+        ModelFile copy = new ModelFile(null);
+        copy.schema = schema;
+        return copy;
+    }
+    
+    /**
+     * Saves the model to a file. The model is first written to a temporary
+     * file, so a model file is never partly written.
+     * 
+     * @param filename Path to the model file
+     * @throws IOException If an error occurs when writing
+     */
+    public void save(String filename) throws IOException
+    {
+        out.flush();
+        Path file = Paths.get(filename);
+        Path tmp = Paths.get(filename + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Returns the output the classifier writes its model to.
+     * 
+     * @return The output
+     */
+    public DataOutputStream out()
+    {
+        return out;
+    }
+    
+    /**
+     * Returns the buffer the classifier reads its model from.
+     * 
+     * @return The buffer
+     */
+    public ByteBuffer in()
+    {
+        return in;
+    }
+    
+    /**
+     * Returns the number of attributes (including class attribute) in the
+     * training dataset.
+     * 
+     * @return Number of attributes
+     */
+    public int noAttributes()
+    {
+        return schema.noAttributes();
+    }
+    
+    /**
+     * Returns the name of an attribute in the training dataset.
+     * 
+     * @param attr_index Attribute index
+     * @return Attribute name
+     */
+    public String getAttributeName(int attr_index)
+    {
+        return schema.names[attr_index];
+    }
+    
+    /**
+     * Checks if an attribute in the training dataset is nominal.
+     * 
+     * @param attr_index Attribute index
+     * @return True if nominal, false otherwise
+     */
+    public boolean isNominal(int attr_index)
+    {
+        return schema.types[attr_index] == Schema.NOMINAL;
+    }
+    
+    /**
+     * Checks if an attribute in the training dataset is numerical.
+     * 
+     * @param attr_index Attribute index
+     * @return True if numerical, false otherwise
+     */
+    public boolean isNumerical(int attr_index)
+    {
+        return schema.types[attr_index] == Schema.NUMERICAL;
+    }
+    
+    /**
+     * Returns the symbol table that maps values to codes for a nominal
+     * attribute in the training dataset.
+     * 
+     * @param attr_index Attribute index
+     * @return Symbol table, or null if the attribute is not nominal
+     */
+    public SymbolTable getSymbolTable(int attr_index)
+    {
+        return schema.symbols[attr_index];
+    }
+    
+    /**
+     * Returns the class values of the training dataset. Class value codes
+     * are the same as in the training dataset.
+     * 
+     * @return Class values
+     */
+    public DistinctValues getDistinctClassValues()
+    {
+        return schema.class_values;
+    }
+    
+    /**
+     * Writes an array of numerical values, preceded by its length.
+     * 
+     * @param values The values
+     * @throws IOException If an error occurs when writing
+     */
+    public void writeDoubles(double[] values) throws IOException
+    {
+        out.writeInt(values.length);
+        for (double v : values)
+        {
+            out.writeDouble(v);
+        }
+    }
+    
+    /**
+     * Reads an array written by writeDoubles().
+     * 
+     * @return The values
+     */
+    public double[] readDoubles()
+    {
+        double[] values = new double[in.getInt()];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + 8 * values.length);
+        return values;
+    }
+    
+    /**
+     * Writes an array of integers, preceded by its length.
+     * 
+     * @param values The values
+     * @throws IOException If an error occurs when writing
+     */
+    public void writeInts(int[] values) throws IOException
+    {
+        out.writeInt(values.length);
+        for (int v : values)
+        {
+            out.writeInt(v);
+        }
+    }
+    
+    /**
+     * Reads an array written by writeInts().
+     * 
+     * @return The values
+     */
+    public int[] readInts()
+    {
+        int[] values = new int[in.getInt()];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + 4 * values.length);
+        return values;
+    }
+    
+    /**
+     * Writes a string, for example a nominal value the classifier keeps in
+     * addition to the schema.
+     * 
+     * @param s The string (can be null)
+     * @throws IOException If an error occurs when writing
+     */
+    public void writeString(String s) throws IOException
+    {
+        Schema.writeString(out, s);
+    }
+    
+    /**
+     * Reads a string written by writeString().
+     * 
+     * @return The string
+     */
+    public String readString()
+    {
+        return Schema.readString(in);
+    }
+}
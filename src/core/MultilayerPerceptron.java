@@ -0,0 +1,996 @@
+package core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * This class is a multilayer perceptron classifier with ReLU hidden layers
+ * and a softmax output layer, trained with mini-batch Adam or SGD (with
+ * momentum) on the cross-entropy loss.
+ * 
+ * Numerical attributes are standardized (sparse datasets are only scaled, so
+ * zeros stay zero) and nominal attributes are one-hot encoded. All weights are
+ * stored in one array, layer by layer, with the weights of each neuron
+ * followed by the biases of the layer. A mini-batch is split into chunks of
+ * rows, and each chunk runs the forward and backward pass with its own
+ * activation and gradient buffers. Large batches run the chunks in parallel;
+ * the gradients are summed in chunk order, so training gives the same network
+ * regardless of the number of threads.
+ * 
+ * A part of the training dataset is held out for validation. Training stops
+ * when the validation loss has not improved for a number of epochs, and the
+ * weights with the lowest validation loss are kept.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class MultilayerPerceptron implements Classifier
+{
+    /** Adam optimizer */
+    public static final int ADAM = 0;
+    /** Stochastic gradient descent with momentum */
+    public static final int SGD = 1;
+    /** Number of rows in a chunk */
+    private static final int CHUNK_ROWS = 64;
+    /** Smallest work (rows times weights) of a batch where the chunks run in parallel */
+    private static final long PARALLEL_WORK = 1 << 20;
+    /** Smallest decrease in validation loss that counts as an improvement */
+    private static final double TOLERANCE = 1e-4;
+    /** Adam decay rate of the gradient mean */
+    private static final double BETA1 = 0.9;
+    /** Adam decay rate of the squared gradient mean */
+    private static final double BETA2 = 0.999;
+    /** Adam term avoiding division by zero */
+    private static final double EPSILON = 1e-8;
+    /** SGD momentum */
+    private static final double MOMENTUM = 0.9;
+    
+    /** Size of each hidden layer, or null for one layer of (inputs + classes) / 2 neurons */
+    private int[] hidden;
+    /** Optimizer (ADAM or SGD) */
+    private int optimizer;
+    /** Learning rate */
+    private double learning_rate;
+    /** Rows in each mini-batch */
+    private int batch_size;
+    /** Largest number of passes over the training rows */
+    private int max_epochs;
+    /** Share of the rows held out for validation (0 to use the training loss) */
+    private double validation;
+    /** Number of epochs without improvement before training stops */
+    private int patience;
+    /** Seed for the initial weights, the validation split and the row order */
+    private long seed;
+    
+    /** Number of attributes, excluding the class attribute */
+    private int no_attr;
+    /** First input of each attribute, -1 for attributes not used */
+    private int[] input_offset;
+    /** Number of inputs of each attribute */
+    private int[] input_size;
+    /** Mean of each numerical attribute */
+    private double[] mean;
+    /** Inverse standard deviation (or largest absolute value) of each numerical attribute */
+    private double[] inv_std;
+    /** Nominal values of each attribute in the training dataset (null for numerical) */
+    private SymbolTable[] symbols;
+    /** Class values of the training dataset */
+    private DistinctValues class_values;
+    /** Number of neurons in each layer, including the input and output layers */
+    private int[] size;
+    /** Position of the weights of each layer, the biases follow the weights */
+    private int[] offset;
+    /** Weights and biases of all layers */
+    private double[] w;
+    /** Number of epochs trained */
+    private int no_epochs;
+    /** Buffers for classifying, one per thread */
+    private ThreadLocal<Worker> workers;
+    /** The training dataset, for the schema when saving */
+    private Dataset data;
+    /** Schema of a loaded classifier, for saving it again */
+    private ModelFile schema;
+    
+    /**
+     * Creates a new network with one hidden layer of (inputs + classes) / 2
+     * neurons, trained with Adam.
+     */
+    public MultilayerPerceptron()
+    {
+        this(null, ADAM, 0.001, 32, 200, 0.1, 10, 1);
+    }
+    
+    /**
+     * Creates a new network trained with Adam.
+     * 
+     * @param hidden Size of each hidden layer
+     */
+    public MultilayerPerceptron(int... hidden)
+    {
+        this(hidden, ADAM, 0.001, 32, 200, 0.1, 10, 1);
+    }
+    
+    /**
+     * Creates a new network.
+     * 
+     * @param hidden Size of each hidden layer, or null for one layer of (inputs + classes) / 2 neurons
+     * @param optimizer Optimizer (ADAM or SGD)
+     * @param learning_rate Learning rate
+     * @param batch_size Rows in each mini-batch
+     * @param max_epochs Largest number of passes over the training rows
+     * @param validation Share of the rows held out for validation (0 to use the training loss)
+     * @param patience Number of epochs without improvement before training stops
+     * @param seed Seed for the initial weights, the validation split and the row order
+     */
+    public MultilayerPerceptron(int[] hidden, int optimizer, double learning_rate, int batch_size, int max_epochs, double validation, int patience, long seed)
+    {
+        if (optimizer != ADAM && optimizer != SGD)
+        {
+            throw new IllegalArgumentException("Unknown optimizer: " + optimizer);
+        }
+        if (batch_size < 1 || max_epochs < 1 || patience < 1)
+        {
+            throw new IllegalArgumentException("Batch size, number of epochs and patience must be positive");
+        }
+        if (validation < 0 || validation >= 1)
+        {
+            throw new IllegalArgumentException("Validation share must be at least 0 and below 1");
+        }
+        this.hidden = hidden == null ? null : hidden.clone();
+        this.optimizer = optimizer;
+        this.learning_rate = learning_rate;
+        this.batch_size = batch_size;
+        this.max_epochs = max_epochs;
+        this.validation = validation;
+        this.patience = patience;
+        this.seed = seed;
+    }
+    
+    /**
+     * Trains the classifier.
+     * 
+     * @param train Data set used for training
+     */
+    @Override
+    public void train(Dataset train)
+    {
+        data = train;
+        class_values = train.getDistinctClassValues();
+        int n = train.noInstances();
+        if (n == 0)
+        {
+            throw new RuntimeException("Training dataset has no instances");
+        }
+        initInputs(train);
+        
+        //Layer sizes and initial weights (He initialization)
+        int no_inputs = 0;
+        for (int a = 0; a < no_attr; a++)
+        {
+            no_inputs += input_size[a];
+        }
+        int[] layers = hidden != null ? hidden : new int[] {Math.max(2, (no_inputs + class_values.noValues()) / 2)};
+        size = new int[layers.length + 2];
+        size[0] = no_inputs;
+        System.arraycopy(layers, 0, size, 1, layers.length);
+        size[size.length - 1] = class_values.noValues();
+        offset = new int[size.length - 1];
+        int no_weights = 0;
+        for (int l = 0; l < offset.length; l++)
+        {
+            offset[l] = no_weights;
+            no_weights += (size[l] + 1) * size[l + 1];
+        }
+        w = new double[no_weights];
+        Random rnd = new Random(seed);
+        for (int l = 0; l < offset.length; l++)
+        {
+            double std = Math.sqrt(2.0 / Math.max(1, size[l]));
+            for (int k = offset[l]; k < offset[l] + size[l] * size[l + 1]; k++)
+            {
+                w[k] = rnd.nextGaussian() * std;
+            }
+        }
+        initWorkers();
+        
+        //Validation split
+        int[] order = new int[n];
+        for (int r = 0; r < n; r++)
+        {
+            order[r] = r;
+        }
+        shuffle(order, 0, n, rnd);
+        int no_val = (int)(n * validation);
+        if (no_val < 10 || no_val == n) no_val = 0;
+        int[] val = Arrays.copyOf(order, no_val);
+        int[] rows = Arrays.copyOfRange(order, no_val, n);
+        int[] y = new int[n];
+        for (int r = 0; r < n; r++)
+        {
+            y[r] = train.getClassCode(r);
+        }
+        Encoder enc = new Encoder(train);
+        
+        Worker[] chunks = new Worker[(batch_size + CHUNK_ROWS - 1) / CHUNK_ROWS];
+        for (int c = 0; c < chunks.length; c++)
+        {
+            chunks[c] = new Worker(size, no_weights);
+        }
+        double[] grad = new double[no_weights];
+        double[] m = new double[no_weights];
+        double[] v = optimizer == ADAM ? new double[no_weights] : null;
+        double[] best_w = w.clone();
+        double best_loss = Double.POSITIVE_INFINITY;
+        int no_worse = 0;
+        int t = 0;
+        for (no_epochs = 0; no_epochs < max_epochs && no_worse < patience; no_epochs++)
+        {
+            shuffle(rows, 0, rows.length, rnd);
+            double loss = 0;
+            for (int start = 0; start < rows.length; start += batch_size)
+            {
+                int bs = Math.min(batch_size, rows.length - start);
+                loss += gradient(enc, y, rows, start, bs, chunks, grad);
+                t++;
+                update(grad, m, v, t);
+            }
+            loss = no_val > 0 ? loss(enc, y, val) : loss / rows.length;
+            
+            if (loss < best_loss - TOLERANCE)
+            {
+                best_loss = loss;
+                System.arraycopy(w, 0, best_w, 0, no_weights);
+                no_worse = 0;
+            }
+            else
+            {
+                no_worse++;
+            }
+        }
+        w = best_w;
+    }
+    
+    /**
+     * Creates the classification buffers of each thread. The buffers do not
+     * refer to the network, so a thread that has classified does not keep the
+     * network alive.
+     */
+    private void initWorkers()
+    {
+        int[] size = this.size;
+        workers = ThreadLocal.withInitial(() -> new Worker(size, 0));
+    }
+    
+    /**
+     * Finds the inputs of each attribute and the scaling of the numerical
+     * attributes.
+     * 
+     * @param train The training dataset
+     */
+    private void initInputs(Dataset train)
+    {
+        int n = train.noInstances();
+        no_attr = train.noAttributes() - 1;
+        input_offset = new int[no_attr];
+        input_size = new int[no_attr];
+        mean = new double[no_attr];
+        inv_std = new double[no_attr];
+        symbols = new SymbolTable[no_attr];
+        int no_inputs = 0;
+        for (int a = 0; a < no_attr; a++)
+        {
+            input_offset[a] = -1;
+            if (train.isNominal(a))
+            {
+                symbols[a] = train.getSymbolTable(a);
+                input_size[a] = symbols[a].size();
+            }
+            else if (train.isNumerical(a))
+            {
+                input_size[a] = 1;
+            }
+            if (input_size[a] > 0)
+            {
+                input_offset[a] = no_inputs;
+                no_inputs += input_size[a];
+            }
+        }
+        
+        if (train.isSparse())
+        {
+            //Scale by the largest absolute value, so zeros stay zero
+            int[] index = train.getSparseIndexes();
+            double[] value = train.getSparseValues();
+            for (int row = 0; row < n; row++)
+            {
+                for (int i = train.sparseStart(row); i < train.sparseEnd(row); i++)
+                {
+                    if (index[i] < no_attr) inv_std[index[i]] = Math.max(inv_std[index[i]], Math.abs(value[i]));
+                }
+            }
+            for (int a = 0; a < no_attr; a++)
+            {
+                inv_std[a] = inv_std[a] > 0 ? 1 / inv_std[a] : 0;
+            }
+            return;
+        }
+        for (int a = 0; a < no_attr; a++)
+        {
+            if (input_size[a] != 1 || symbols[a] != null) continue;
+            double[] col = train.getNumericalColumn(a);
+            double sum = 0;
+            for (int row = 0; row < n; row++)
+            {
+                sum += col[train.rowIndex(row)];
+            }
+            mean[a] = sum / n;
+            double var = 0;
+            for (int row = 0; row < n; row++)
+            {
+                double d = col[train.rowIndex(row)] - mean[a];
+                var += d * d;
+            }
+            inv_std[a] = var > 0 ? 1 / Math.sqrt(var / n) : 0;
+        }
+    }
+    
+    /**
+     * Shuffles a range of an array.
+     * 
+     * @param a The array
+     * @param from First position
+     * @param to Position after the last position
+     * @param rnd Randomizer
+     */
+    private static void shuffle(int[] a, int from, int to, Random rnd)
+    {
+        for (int i = to - 1; i > from; i--)
+        {
+            int j = from + rnd.nextInt(i - from + 1);
+            int tmp = a[i];
+            a[i] = a[j];
+            a[j] = tmp;
+        }
+    }
+    
+    /**
+     * Calculates the mean gradient of the loss over a mini-batch.
+     * 
+     * @param enc Input encoder for the training dataset
+     * @param y Class value code of each row
+     * @param rows Training rows
+     * @param start First row of the batch
+     * @param bs Number of rows in the batch
+     * @param chunks Buffers of each chunk
+     * @param grad Output gradient
+     * @return Sum of the loss of the rows
+     */
+    private double gradient(Encoder enc, int[] y, int[] rows, int start, int bs, Worker[] chunks, double[] grad)
+    {
+        int no_chunks = (bs + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        IntStream range = IntStream.range(0, no_chunks);
+        if (no_chunks > 1 && (long)bs * w.length >= PARALLEL_WORK) range = range.parallel();
+        range.forEach((c) -> {
+            Worker wk = chunks[c];
+            int from = start + c * CHUNK_ROWS;
+            int m = Math.min(CHUNK_ROWS, start + bs - from);
+            for (int b = 0; b < m; b++)
+            {
+                enc.encode(rows[from + b], wk.act[0], b * size[0]);
+            }
+            forward(wk, m);
+            wk.loss = backward(wk, m, y, rows, from);
+        });
+        
+        //Sum in chunk order
+        double loss = 0;
+        Arrays.fill(grad, 0);
+        for (int c = 0; c < no_chunks; c++)
+        {
+            double[] g = chunks[c].grad;
+            for (int k = 0; k < grad.length; k++)
+            {
+                grad[k] += g[k];
+            }
+            loss += chunks[c].loss;
+        }
+        for (int k = 0; k < grad.length; k++)
+        {
+            grad[k] /= bs;
+        }
+        return loss;
+    }
+    
+    /**
+     * Calculates the mean loss of a set of rows.
+     * 
+     * @param enc Input encoder for the dataset
+     * @param y Class value code of each row
+     * @param rows The rows
+     * @return Mean loss
+     */
+    private double loss(Encoder enc, int[] y, int[] rows)
+    {
+        int no_chunks = (rows.length + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        double[] loss = new double[no_chunks];
+        IntStream.range(0, no_chunks).parallel().forEach((c) -> {
+            Worker wk = workers.get();
+            int from = c * CHUNK_ROWS;
+            int m = Math.min(CHUNK_ROWS, rows.length - from);
+            for (int b = 0; b < m; b++)
+            {
+                enc.encode(rows[from + b], wk.act[0], b * size[0]);
+            }
+            forward(wk, m);
+            double[] out = wk.act[size.length - 1];
+            int no_out = size[size.length - 1];
+            for (int b = 0; b < m; b++)
+            {
+                loss[c] -= Math.log(Math.max(out[b * no_out + y[rows[from + b]]], 1e-300));
+            }
+        });
+        
+        double sum = 0;
+        for (int c = 0; c < no_chunks; c++)
+        {
+            sum += loss[c];
+        }
+        return sum / rows.length;
+    }
+    
+    /**
+     * Updates the weights from a gradient.
+     * 
+     * @param grad The gradient
+     * @param m Gradient mean (Adam) or velocity (SGD)
+     * @param v Squared gradient mean (Adam)
+     * @param t Number of updates, including this one
+     */
+    private void update(double[] grad, double[] m, double[] v, int t)
+    {
+        if (optimizer == SGD)
+        {
+            for (int k = 0; k < w.length; k++)
+            {
+                m[k] = MOMENTUM * m[k] - learning_rate * grad[k];
+                w[k] += m[k];
+            }
+            return;
+        }
+        double c1 = 1 / (1 - Math.pow(BETA1, t));
+        double c2 = 1 / (1 - Math.pow(BETA2, t));
+        for (int k = 0; k < w.length; k++)
+        {
+            double g = grad[k];
+            m[k] = BETA1 * m[k] + (1 - BETA1) * g;
+            v[k] = BETA2 * v[k] + (1 - BETA2) * g * g;
+            w[k] -= learning_rate * m[k] * c1 / (Math.sqrt(v[k] * c2) + EPSILON);
+        }
+    }
+    
+    /**
+     * Runs the forward pass for the rows in a chunk. The inputs are read from
+     * the first activation buffer, and the output layer holds the class value
+     * probabilities.
+     * 
+     * @param wk Buffers of the chunk
+     * @param m Number of rows
+     */
+    private void forward(Worker wk, int m)
+    {
+        int no_layers = offset.length;
+        for (int l = 0; l < no_layers; l++)
+        {
+            double[] in = wk.act[l];
+            double[] out = wk.act[l + 1];
+            int no_in = size[l];
+            int no_out = size[l + 1];
+            int bias = offset[l] + no_in * no_out;
+            boolean relu = l < no_layers - 1;
+            for (int b = 0; b < m; b++)
+            {
+                int io = b * no_in;
+                for (int j = 0; j < no_out; j++)
+                {
+                    int wo = offset[l] + j * no_in;
+                    double s = w[bias + j];
+                    for (int i = 0; i < no_in; i++)
+                    {
+                        s += w[wo + i] * in[io + i];
+                    }
+                    out[b * no_out + j] = relu && s < 0 ? 0 : s;
+                }
+            }
+        }
+        
+        //Softmax
+        double[] out = wk.act[no_layers];
+        int no_out = size[no_layers];
+        for (int b = 0; b < m; b++)
+        {
+            int o = b * no_out;
+            double max = out[o];
+            for (int j = 1; j < no_out; j++)
+            {
+                max = Math.max(max, out[o + j]);
+            }
+            double sum = 0;
+            for (int j = 0; j < no_out; j++)
+            {
+                out[o + j] = Math.exp(out[o + j] - max);
+                sum += out[o + j];
+            }
+            for (int j = 0; j < no_out; j++)
+            {
+                out[o + j] /= sum;
+            }
+        }
+    }
+    
+    /**
+     * Runs the backward pass for the rows in a chunk, after the forward pass,
+     * and writes the summed gradient of the chunk to its gradient buffer.
+     * 
+     * @param wk Buffers of the chunk
+     * @param m Number of rows
+     * @param y Class value code of each row
+     * @param rows Training rows
+     * @param from Position of the first row of the chunk in rows
+     * @return Sum of the loss of the rows
+     */
+    private double backward(Worker wk, int m, int[] y, int[] rows, int from)
+    {
+        int no_layers = offset.length;
+        double[] g = wk.grad;
+        Arrays.fill(g, 0);
+        
+        //Output error of softmax with cross-entropy loss
+        double loss = 0;
+        int no_out = size[no_layers];
+        double[] delta = wk.delta;
+        double[] out = wk.act[no_layers];
+        for (int b = 0; b < m; b++)
+        {
+            int c = y[rows[from + b]];
+            loss -= Math.log(Math.max(out[b * no_out + c], 1e-300));
+            for (int j = 0; j < no_out; j++)
+            {
+                delta[b * no_out + j] = out[b * no_out + j] - (j == c ? 1 : 0);
+            }
+        }
+        
+        for (int l = no_layers - 1; l >= 0; l--)
+        {
+            double[] in = wk.act[l];
+            int no_in = size[l];
+            no_out = size[l + 1];
+            int bias = offset[l] + no_in * no_out;
+            for (int b = 0; b < m; b++)
+            {
+                int io = b * no_in;
+                for (int j = 0; j < no_out; j++)
+                {
+                    double d = delta[b * no_out + j];
+                    if (d == 0) continue;
+                    g[bias + j] += d;
+                    int wo = offset[l] + j * no_in;
+                    for (int i = 0; i < no_in; i++)
+                    {
+                        g[wo + i] += d * in[io + i];
+                    }
+                }
+            }
+            if (l == 0)
+            {
+                break;
+            }
+            
+            //Error of the previous layer, through the ReLU
+            double[] prev = wk.prev;
+            Arrays.fill(prev, 0, m * no_in, 0);
+            for (int b = 0; b < m; b++)
+            {
+                int io = b * no_in;
+                for (int j = 0; j < no_out; j++)
+                {
+                    double d = delta[b * no_out + j];
+                    if (d == 0) continue;
+                    int wo = offset[l] + j * no_in;
+                    for (int i = 0; i < no_in; i++)
+                    {
+                        prev[io + i] += w[wo + i] * d;
+                    }
+                }
+                for (int i = 0; i < no_in; i++)
+                {
+                    if (in[io + i] <= 0) prev[io + i] = 0;
+                }
+            }
+            wk.prev = delta;
+            wk.delta = prev;
+            delta = prev;
+        }
+        return loss;
+    }
+    
+    /**
+     * Returns the number of epochs the network was trained for.
+     * 
+     * @return Number of epochs
+     */
+    public int noEpochs()
+    {
+        return no_epochs;
+    }
+    
+    /**
+     * Returns the class value with the highest probability.
+     * 
+     * @param out Output layer
+     * @param off Position of the row in the output layer
+     * @return Class value code
+     */
+    private int best(double[] out, int off)
+    {
+        int best = 0;
+        for (int c = 1; c < size[size.length - 1]; c++)
+        {
+            if (out[off + c] > out[off + best]) best = c;
+        }
+        return best;
+    }
+    
+    /**
+     * Classifiers an instance.
+     * 
+     * @param inst The instance
+     * @return Predicted class value for the instance
+     */
+    @Override
+    public Result classify(Instance inst)
+    {
+        int code = classifyIndex(inst);
+        if (class_values.isNumerical())
+        {
+            return new Result(class_values.getNumericalValue(code));
+        }
+        return new Result(class_values.getNominalValue(code));
+    }
+    
+    /**
+     * Classifies an instance and returns the predicted class value as an index
+     * into the distinct class values of the training dataset.
+     * 
+     * @param inst The instance
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst)
+    {
+        Worker wk = workers.get();
+        encode(inst, wk.act[0]);
+        forward(wk, 1);
+        return best(wk.act[size.length - 1], 0);
+    }
+    
+    /**
+     * Classifies an instance and writes the class value probabilities to
+     * probs.
+     * 
+     * @param inst The instance
+     * @param probs Class value probabilities (at least one per class value)
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst, double[] probs)
+    {
+        Worker wk = workers.get();
+        encode(inst, wk.act[0]);
+        forward(wk, 1);
+        Arrays.fill(probs, 0);
+        System.arraycopy(wk.act[size.length - 1], 0, probs, 0, size[size.length - 1]);
+        return best(probs, 0);
+    }
+    
+    /**
+     * Classifies the rows from (inclusive) and to (exclusive) in a dataset,
+     * running the forward pass for a chunk of rows at a time.
+     * 
+     * @param data The dataset
+     * @param from First row to classify
+     * @param to Row after the last row to classify
+     * @param out Predicted class value codes, indexed by row
+     */
+    @Override
+    public void classifyBatch(Dataset data, int from, int to, int[] out)
+    {
+        Encoder enc = new Encoder(data);
+        int[] cmap = DecisionTree.classMap(class_values, data.getDistinctClassValues());
+        Worker wk = workers.get();
+        double[] probs = wk.act[size.length - 1];
+        int no_out = size[size.length - 1];
+        for (int start = from; start < to; start += CHUNK_ROWS)
+        {
+            int m = Math.min(CHUNK_ROWS, to - start);
+            for (int b = 0; b < m; b++)
+            {
+                enc.encode(start + b, wk.act[0], b * size[0]);
+            }
+            forward(wk, m);
+            for (int b = 0; b < m; b++)
+            {
+                out[start + b] = cmap[best(probs, b * no_out)];
+            }
+        }
+    }
+    
+    /**
+     * Encodes the attribute values of an instance as inputs.
+     * 
+     * @param inst The instance
+     * @param x Output inputs
+     */
+    private void encode(Instance inst, double[] x)
+    {
+        Arrays.fill(x, 0, size[0], 0);
+        if (inst instanceof SparseInstance)
+        {
+            SparseInstance si = (SparseInstance)inst;
+            for (int i = 0; i < si.noValues(); i++)
+            {
+                int a = si.getIndex(i);
+                if (a < no_attr && input_size[a] == 1) x[input_offset[a]] = (si.getValue(i) - mean[a]) * inv_std[a];
+            }
+            return;
+        }
+        for (int a = 0; a < no_attr; a++)
+        {
+            if (input_offset[a] < 0) continue;
+            if (symbols[a] != null)
+            {
+                int code = symbols[a].lookup(inst.getAttribute(a).nominalValue());
+                if (code >= 0 && code < input_size[a]) x[input_offset[a] + code] = 1;
+            }
+            else
+            {
+                x[input_offset[a]] = (inst.getNumericalValue(a) - mean[a]) * inv_std[a];
+            }
+        }
+    }
+    
+    /**
+     * Creates a new untrained classifier with the same settings.
+     * 
+     * @return A new untrained classifier
+     */
+    @Override
+    public Classifier copy()
+    {
+        return new MultilayerPerceptron(hidden, optimizer, learning_rate, batch_size, max_epochs, validation, patience, seed);
+    }
+    
+    /**
+     * Checks if this classifier can classify from several threads. Each
+     * thread has its own buffers.
+     * 
+     * @return True
+     */
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
+    
+    /**
+     * Saves the trained classifier to a file.
+     * 
+     * @param filename Path to the model file
+     * @throws IOException If an error occurs when writing
+     */
+    public void save(String filename) throws IOException
+    {
+        ModelFile file = ModelFile.create("mlp", data, schema);
+        DataOutputStream out = file.out();
+        file.writeInts(hidden != null ? hidden : new int[0]);
+        out.writeBoolean(hidden != null);
+        out.writeInt(optimizer);
+        out.writeDouble(learning_rate);
+        out.writeInt(batch_size);
+        out.writeInt(max_epochs);
+        out.writeDouble(validation);
+        out.writeInt(patience);
+        out.writeLong(seed);
+        out.writeInt(no_epochs);
+        file.writeInts(input_offset);
+        file.writeInts(input_size);
+        file.writeDoubles(mean);
+        file.writeDoubles(inv_std);
+        file.writeInts(size);
+        file.writeDoubles(w);
+        file.save(filename);
+    }
+    
+    /**
+     * Loads a classifier saved with save().
+     * 
+     * @param filename Path to the model file
+     * @return The classifier
+     * @throws IOException If the file could not be read
+     */
+    public static MultilayerPerceptron load(String filename) throws IOException
+    {
+        ModelFile file = ModelFile.load(filename, "mlp");
+        ByteBuffer in = file.in();
+        int[] hidden = file.readInts();
+        if (in.get() == 0) hidden = null;
+        int optimizer = in.getInt();
+        double learning_rate = in.getDouble();
+        int batch_size = in.getInt();
+        int max_epochs = in.getInt();
+        double validation = in.getDouble();
+        int patience = in.getInt();
+        MultilayerPerceptron mlp = new MultilayerPerceptron(hidden, optimizer, learning_rate, batch_size, max_epochs, validation, patience, in.getLong());
+        mlp.no_epochs = in.getInt();
+        mlp.input_offset = file.readInts();
+        mlp.input_size = file.readInts();
+        mlp.mean = file.readDoubles();
+        mlp.inv_std = file.readDoubles();
+        mlp.size = file.readInts();
+        mlp.w = file.readDoubles();
+        mlp.no_attr = mlp.input_offset.length;
+        mlp.offset = new int[mlp.size.length - 1];
+        int no_weights = 0;
+        for (int l = 0; l < mlp.offset.length; l++)
+        {
+            mlp.offset[l] = no_weights;
+            no_weights += (mlp.size[l] + 1) * mlp.size[l + 1];
+        }
+        mlp.symbols = new SymbolTable[mlp.no_attr];
+        for (int a = 0; a < mlp.no_attr; a++)
+        {
+            mlp.symbols[a] = file.getSymbolTable(a);
+        }
+        mlp.class_values = file.getDistinctClassValues();
+        mlp.schema = file.schema();
+        mlp.initWorkers();
+        return mlp;
+    }
+    
+    /**
+     * Activation, error and gradient buffers for a chunk of rows.
+     */
+    private static class Worker
+    {
+        /** Activations of each layer, CHUNK_ROWS rows each */
+        private double[][] act;
+        /** Error of the current layer */
+        private double[] delta;
+        /** Error of the previous layer */
+        private double[] prev;
+        /** Summed gradient of the chunk, null when only classifying */
+        private double[] grad;
+        /** Summed loss of the chunk */
+        private double loss;
+        
+        /**
+         * Creates the buffers.
+         * 
+         * @param size Number of neurons in each layer
+         * @param no_weights Number of weights, or 0 if the buffers are only
+         * used for classifying and no backward pass buffers are created
+         */
+        private Worker(int[] size, int no_weights)
+        {
+            act = new double[size.length][];
+            int max = 0;
+            for (int l = 0; l < size.length; l++)
+            {
+                act[l] = new double[CHUNK_ROWS * size[l]];
+                max = Math.max(max, size[l]);
+            }
+            if (no_weights > 0)
+            {
+                delta = new double[CHUNK_ROWS * max];
+                prev = new double[CHUNK_ROWS * max];
+                grad = new double[no_weights];
+            }
+        }
+    }
+    
+    /**
+     * Encodes the rows of a dataset as inputs, reading the values directly
+     * from the column storage.
+     */
+    private class Encoder
+    {
+        /** The dataset */
+        private Dataset data;
+        /** Numerical columns (null for nominal attributes and sparse datasets) */
+        private double[][] num;
+        /** Nominal columns (null for numerical attributes) */
+        private int[][] nom;
+        /** Code in the training dataset of each nominal value code, or null to use the codes */
+        private int[][] vmaps;
+        /** Attribute indexes of the sparse values */
+        private int[] sp_index;
+        /** Sparse values */
+        private double[] sp_value;
+        
+        /**
+         * Creates the encoder for a dataset.
+         * 
+         * @param data The dataset
+         */
+        private Encoder(Dataset data)
+        {
+            this.data = data;
+            if (data.isSparse())
+            {
+                sp_index = data.getSparseIndexes();
+                sp_value = data.getSparseValues();
+                return;
+            }
+            num = new double[no_attr][];
+            nom = new int[no_attr][];
+            vmaps = new int[no_attr][];
+            for (int a = 0; a < Math.min(no_attr, data.noAttributes() - 1); a++)
+            {
+                if (input_offset[a] < 0) continue;
+                if (symbols[a] != null && data.isNominal(a))
+                {
+                    nom[a] = data.getNominalColumn(a);
+                    SymbolTable table = data.getSymbolTable(a);
+                    if (table != symbols[a])
+                    {
+                        vmaps[a] = new int[table.size()];
+                        for (int v = 0; v < vmaps[a].length; v++)
+                        {
+                            vmaps[a][v] = symbols[a].lookup(table.decode(v));
+                        }
+                    }
+                }
+                else if (symbols[a] == null && data.isNumerical(a))
+                {
+                    num[a] = data.getNumericalColumn(a);
+                }
+            }
+        }
+        
+        /**
+         * Encodes a row as inputs.
+         * 
+         * @param row Row index
+         * @param x Output inputs
+         * @param off Position of the inputs in x
+         */
+        private void encode(int row, double[] x, int off)
+        {
+            Arrays.fill(x, off, off + size[0], 0);
+            if (sp_index != null)
+            {
+                for (int i = data.sparseStart(row); i < data.sparseEnd(row); i++)
+                {
+                    int a = sp_index[i];
+                    if (a < no_attr && input_size[a] == 1) x[off + input_offset[a]] = (sp_value[i] - mean[a]) * inv_std[a];
+                }
+                return;
+            }
+            int r = data.rowIndex(row);
+            for (int a = 0; a < no_attr; a++)
+            {
+                if (num[a] != null)
+                {
+                    x[off + input_offset[a]] = (num[a][r] - mean[a]) * inv_std[a];
+                }
+                else if (nom[a] != null)
+                {
+                    int code = vmaps[a] == null ? nom[a][r] : vmaps[a][nom[a][r]];
+                    if (code >= 0 && code < input_size[a]) x[off + input_offset[a] + code] = 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,1084 @@
+package core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * This class is a Naive Bayes classifier that is trained incrementally.
+ * Numerical attributes are modelled with a normal distribution per class
+ * value, nominal attributes with value counts per class value, and the
+ * attributes of sparse datasets (term vectors) with a multinomial
+ * distribution per class value.
+ * 
+ * The model is a set of count tables in primitive arrays: the number of rows
+ * of each class value, the mean and sum of squared deviations (Welford) of
+ * numerical attributes, the counts of nominal values and the sums of term
+ * values. The tables can be updated with one instance or a batch of rows at
+ * a time, for example the batches of a StreamReader, so a dataset does not
+ * have to fit in memory. Tables trained on different parts of a dataset can
+ * be merged, which gives the same model as training on all parts. Large
+ * datasets are trained in parallel this way.
+ * 
+ * The classifier keeps its own class values and nominal values, so batches,
+ * instances and merged tables are matched by value, not by value code.
+ * Values that were not seen in training are skipped when classifying.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class NaiveBayesClassifier implements Classifier
+{
+    /** Attribute not used (the class attribute) */
+    private static final byte UNUSED = 0;
+    /** Numerical attribute with a normal distribution */
+    private static final byte GAUSSIAN = 1;
+    /** Nominal attribute with value counts */
+    private static final byte CATEGORICAL = 2;
+    /** Term attribute with a multinomial distribution */
+    private static final byte MULTINOMIAL = 3;
+    /** Smallest number of rows trained in parallel */
+    private static final int PARALLEL_ROWS = 50000;
+    /** Number of rows classified together by classifyBatch() */
+    private static final int BLOCK_ROWS = 1024;
+    
+    /** If true, numerical attributes of dense datasets are also terms */
+    private boolean multinomial;
+    /** Additive (Laplace) smoothing of value and term counts */
+    private double alpha;
+    
+    /** Number of attributes, excluding the class attribute */
+    private int no_attr;
+    /** Model of each attribute (null before the first update) */
+    private byte[] kinds;
+    /** Class values, in the order they were first seen */
+    private DistinctValues class_values;
+    /** Nominal values of each categorical attribute */
+    private SymbolTable[] symbols;
+    /** Number of class values */
+    private int no_classes;
+    /** Number of rows of each class value */
+    private double[] class_count;
+    /** Mean of each numerical attribute, indexed by class * no_attr + attribute */
+    private double[] mean;
+    /** Sum of squared deviations from the mean, indexed as mean */
+    private double[] m2;
+    /** Counts of the nominal values, indexed as mean (null if no values) */
+    private double[][] value_count;
+    /** Sums of the term values, indexed as mean */
+    private double[] term_sum;
+    /** Sum of all term values of each class value */
+    private double[] term_total;
+    
+    /** The log probabilities below are up to date */
+    private volatile boolean prepared;
+    /** Log probability of each class value */
+    private double[] log_prior;
+    /** Log of the normal distribution constant, indexed as mean */
+    private double[] log_norm;
+    /** 1 / (2 * variance), indexed as mean */
+    private double[] inv_var2;
+    /** Log probability of each nominal value, indexed as mean */
+    private double[][] log_value;
+    /** Log probability of each term, indexed as mean */
+    private double[] log_term;
+    
+    /** The last dataset trained on, for the schema when saving */
+    private Dataset data;
+    /** Schema of a loaded classifier, for saving it again */
+    private ModelFile schema;
+    /** Score buffer of each thread */
+    private ThreadLocal<double[]> buffers = ThreadLocal.withInitial(() -> new double[0]);
+    
+    /**
+     * Creates a new classifier with Laplace smoothing (alpha = 1) that
+     * models numerical attributes with normal distributions.
+     */
+    public NaiveBayesClassifier()
+    {
+        this(false, 1);
+    }
+    
+    /**
+     * Creates a new classifier.
+     * 
+     * @param multinomial If true, numerical attributes of dense datasets are
+     * modelled as terms (for example word counts) instead of normal distributions
+     * @param alpha Additive smoothing of value and term counts
+     */
+    public NaiveBayesClassifier(boolean multinomial, double alpha)
+    {
+        this.multinomial = multinomial;
+        this.alpha = alpha;
+    }
+    
+    /**
+     * Trains the classifier from scratch. Large datasets are split in ranges
+     * of rows that are counted in parallel and merged in order.
+     * 
+     * @param train Data set used for training
+     */
+    @Override
+    public void train(Dataset train)
+    {
+        clear();
+        int n = train.noInstances();
+        int no_parts = Math.min(n / PARALLEL_ROWS, Runtime.getRuntime().availableProcessors());
+        if (no_parts < 2)
+        {
+            update(train, 0, n);
+            return;
+        }
+        
+        NaiveBayesClassifier[] parts = new NaiveBayesClassifier[no_parts];
+        IntStream.range(0, no_parts).parallel().forEach((i) -> {
+            parts[i] = new NaiveBayesClassifier(multinomial, alpha);
+            parts[i].update(train, (int)((long)n * i / no_parts), (int)((long)n * (i + 1) / no_parts));
+        });
+        for (NaiveBayesClassifier part : parts)
+        {
+            merge(part);
+        }
+        data = train;
+    }
+    
+    /**
+     * Removes everything the classifier has learned.
+     */
+    public void clear()
+    {
+        kinds = null;
+        no_classes = 0;
+        data = null;
+        schema = null;
+        prepared = false;
+    }
+    
+    /**
+     * Updates the model with all rows in a dataset.
+     * 
+     * @param batch The rows
+     */
+    public void update(Dataset batch)
+    {
+        update(batch, 0, batch.noInstances());
+    }
+    
+    /**
+     * Updates the model with a range of rows in a dataset. The values are
+     * read directly from the column storage or the sparse rows, one
+     * attribute at a time.
+     * 
+     * @param batch The dataset
+     * @param from First row
+     * @param to Row after the last row
+     */
+    public void update(Dataset batch, int from, int to)
+    {
+        init(batch);
+        data = batch;
+        prepared = false;
+        int n = to - from;
+        int[] cmap = classMap(batch.getDistinctClassValues());
+        int[] codes = new int[n];
+        for (int r = 0; r < n; r++)
+        {
+            codes[r] = cmap[batch.getClassCode(from + r)];
+        }
+        
+        if (batch.isSparse())
+        {
+            int[] index = batch.getSparseIndexes();
+            double[] value = batch.getSparseValues();
+            for (int r = 0; r < n; r++)
+            {
+                int c = codes[r];
+                for (int i = batch.sparseStart(from + r); i < batch.sparseEnd(from + r); i++)
+                {
+                    term_sum[c * no_attr + index[i]] += value[i];
+                    term_total[c] += value[i];
+                }
+            }
+        }
+        else
+        {
+            int[] rows = new int[n];
+            for (int r = 0; r < n; r++)
+            {
+                rows[r] = batch.rowIndex(from + r);
+            }
+            for (int a = 0; a < no_attr; a++)
+            {
+                if (kinds[a] == GAUSSIAN)
+                {
+                    //Welford updates, with a running count per class value
+                    double[] values = batch.getNumericalColumn(a);
+                    double[] count = Arrays.copyOf(class_count, no_classes);
+                    for (int r = 0; r < n; r++)
+                    {
+                        int c = codes[r];
+                        int i = c * no_attr + a;
+                        double v = values[rows[r]];
+                        double delta = v - mean[i];
+                        mean[i] += delta / ++count[c];
+                        m2[i] += delta * (v - mean[i]);
+                    }
+                }
+                else if (kinds[a] == CATEGORICAL)
+                {
+                    int[] values = batch.getNominalColumn(a);
+                    int[] vmap = valueMap(batch.getSymbolTable(a), a);
+                    for (int r = 0; r < n; r++)
+                    {
+                        addValue(codes[r], a, vmap[values[rows[r]]]);
+                    }
+                }
+                else if (kinds[a] == MULTINOMIAL)
+                {
+                    double[] values = batch.getNumericalColumn(a);
+                    for (int r = 0; r < n; r++)
+                    {
+                        int c = codes[r];
+                        term_sum[c * no_attr + a] += values[rows[r]];
+                        term_total[c] += values[rows[r]];
+                    }
+                }
+            }
+        }
+        
+        for (int r = 0; r < n; r++)
+        {
+            class_count[codes[r]]++;
+        }
+    }
+    
+    /**
+     * Updates the model with one instance.
+     * 
+     * @param inst The instance
+     */
+    public void update(Instance inst)
+    {
+        if (kinds == null)
+        {
+            init(inst);
+        }
+        if (inst.noAttributes() - 1 != no_attr)
+        {
+            throw new RuntimeException("Instance has " + (inst.noAttributes() - 1) + " attributes, expected " + no_attr);
+        }
+        if (inst.dataset() != null)
+        {
+            data = inst.dataset();
+        }
+        prepared = false;
+        
+        Attribute class_attr = inst.getClassAttribute();
+        int c = class_attr.isNominal() ? addClass(class_attr.nominalValue()) : addClass(class_attr.numericalValue());
+        if (inst instanceof SparseInstance)
+        {
+            SparseInstance si = (SparseInstance)inst;
+            for (int i = 0; i < si.noValues(); i++)
+            {
+                addTerm(c, si.getIndex(i), si.getValue(i));
+            }
+        }
+        else if (inst.dataset() != null && inst.dataset().isSparse())
+        {
+            Dataset d = inst.dataset();
+            int[] index = d.getSparseIndexes();
+            double[] value = d.getSparseValues();
+            for (int i = d.sparseStart(inst.row()); i < d.sparseEnd(inst.row()); i++)
+            {
+                addTerm(c, index[i], value[i]);
+            }
+        }
+        else
+        {
+            double count = class_count[c] + 1;
+            for (int a = 0; a < no_attr; a++)
+            {
+                int i = c * no_attr + a;
+                if (kinds[a] == GAUSSIAN)
+                {
+                    double v = inst.getNumericalValue(a);
+                    double delta = v - mean[i];
+                    mean[i] += delta / count;
+                    m2[i] += delta * (v - mean[i]);
+                }
+                else if (kinds[a] == CATEGORICAL)
+                {
+                    addValue(c, a, symbols[a].encode(inst.getAttribute(a).nominalValue()));
+                }
+                else if (kinds[a] == MULTINOMIAL)
+                {
+                    addTerm(c, a, inst.getNumericalValue(a));
+                }
+            }
+        }
+        class_count[c]++;
+    }
+    
+    /**
+     * Adds the counts of another classifier to this classifier. The other
+     * classifier must have been trained on datasets with the same attributes.
+     * Class values and nominal values are matched by value.
+     * 
+     * @param other The other classifier
+     */
+    public void merge(NaiveBayesClassifier other)
+    {
+        if (other.kinds == null)
+        {
+            return;
+        }
+        if (kinds == null)
+        {
+            init(other.no_attr, other.kinds);
+        }
+        if (!Arrays.equals(kinds, other.kinds))
+        {
+            throw new RuntimeException("Cannot merge Naive Bayes models with different attributes");
+        }
+        if (other.data != null)
+        {
+            data = other.data;
+        }
+        if (schema == null)
+        {
+            schema = other.schema;
+        }
+        prepared = false;
+        
+        int[] cmap = classMap(other.class_values);
+        for (int oc = 0; oc < other.no_classes; oc++)
+        {
+            int c = cmap[oc];
+            double na = class_count[c];
+            double nb = other.class_count[oc];
+            for (int a = 0; a < no_attr; a++)
+            {
+                int i = c * no_attr + a;
+                int oi = oc * no_attr + a;
+                if (kinds[a] == GAUSSIAN && nb > 0)
+                {
+                    //Combined mean and squared deviations (Chan et al.)
+                    double delta = other.mean[oi] - mean[i];
+                    mean[i] += delta * nb / (na + nb);
+                    m2[i] += other.m2[oi] + delta * delta * na * nb / (na + nb);
+                }
+                else if (kinds[a] == CATEGORICAL && other.value_count[oi] != null)
+                {
+                    double[] counts = other.value_count[oi];
+                    for (int v = 0; v < counts.length; v++)
+                    {
+                        if (counts[v] == 0) continue;
+                        int code = symbols[a].encode(other.symbols[a].decode(v));
+                        ensureValues(i, code + 1);
+                        value_count[i][code] += counts[v];
+                    }
+                }
+                else if (kinds[a] == MULTINOMIAL)
+                {
+                    term_sum[i] += other.term_sum[oi];
+                }
+            }
+            term_total[c] += other.term_total[oc];
+            class_count[c] += nb;
+        }
+    }
+    
+    /**
+     * Sets up the model for the attributes of a dataset, or checks that the
+     * dataset has the attributes of the model.
+     * 
+     * @param batch The dataset
+     */
+    private void init(Dataset batch)
+    {
+        int n = batch.noAttributes() - 1;
+        byte[] batch_kinds = new byte[n];
+        for (int a = 0; a < n; a++)
+        {
+            if (batch.isSparse() || (multinomial && batch.isNumerical(a))) batch_kinds[a] = MULTINOMIAL;
+            else if (batch.isNominal(a)) batch_kinds[a] = CATEGORICAL;
+            else if (batch.isNumerical(a)) batch_kinds[a] = GAUSSIAN;
+        }
+        if (kinds == null)
+        {
+            init(n, batch_kinds);
+        }
+        else if (!Arrays.equals(kinds, batch_kinds))
+        {
+            throw new RuntimeException("Dataset does not have the attributes of the Naive Bayes model");
+        }
+    }
+    
+    /**
+     * Sets up the model for the attributes of an instance.
+     * 
+     * @param inst The instance
+     */
+    private void init(Instance inst)
+    {
+        int n = inst.noAttributes() - 1;
+        byte[] inst_kinds = new byte[n];
+        boolean sparse = inst instanceof SparseInstance || (inst.dataset() != null && inst.dataset().isSparse());
+        for (int a = 0; a < n; a++)
+        {
+            if (sparse) inst_kinds[a] = MULTINOMIAL;
+            else if (inst.getAttribute(a).isNominal()) inst_kinds[a] = CATEGORICAL;
+            else inst_kinds[a] = multinomial ? MULTINOMIAL : GAUSSIAN;
+        }
+        init(n, inst_kinds);
+    }
+    
+    /**
+     * Creates empty count tables.
+     * 
+     * @param no_attr Number of attributes, excluding the class attribute
+     * @param kinds Model of each attribute
+     */
+    private void init(int no_attr, byte[] kinds)
+    {
+        this.no_attr = no_attr;
+        this.kinds = kinds.clone();
+        class_values = new DistinctValues();
+        symbols = new SymbolTable[no_attr];
+        for (int a = 0; a < no_attr; a++)
+        {
+            if (kinds[a] == CATEGORICAL) symbols[a] = new SymbolTable();
+        }
+        no_classes = 0;
+        class_count = new double[0];
+        mean = new double[0];
+        m2 = new double[0];
+        value_count = new double[0][];
+        term_sum = new double[0];
+        term_total = new double[0];
+    }
+    
+    /**
+     * Returns the code of a numerical class value, adding it if it is new.
+     * 
+     * @param value Class value
+     * @return Class value code
+     */
+    private int addClass(double value)
+    {
+        class_values.addValue(value);
+        return classCode(class_values.indexOf(value));
+    }
+    
+    /**
+     * Returns the code of a nominal class value, adding it if it is new.
+     * 
+     * @param value Class value
+     * @return Class value code
+     */
+    private int addClass(String value)
+    {
+        class_values.addValue(value);
+        return classCode(class_values.indexOf(value));
+    }
+    
+    /**
+     * Makes room in the count tables for a class value code.
+     * 
+     * @param code Class value code
+     * @return The code
+     */
+    private int classCode(int code)
+    {
+        if (code >= no_classes)
+        {
+            no_classes = code + 1;
+        }
+        if (no_classes > class_count.length)
+        {
+            int size = Math.max(no_classes, 2 * class_count.length);
+            class_count = Arrays.copyOf(class_count, size);
+            mean = Arrays.copyOf(mean, size * no_attr);
+            m2 = Arrays.copyOf(m2, size * no_attr);
+            value_count = Arrays.copyOf(value_count, size * no_attr);
+            term_sum = Arrays.copyOf(term_sum, size * no_attr);
+            term_total = Arrays.copyOf(term_total, size);
+        }
+        return code;
+    }
+    
+    /**
+     * Translates the class value codes of a dataset or another model to the
+     * codes of this model, adding new class values.
+     * 
+     * @param values Class values of the dataset or model
+     * @return Code in this model of each class value code
+     */
+    private int[] classMap(DistinctValues values)
+    {
+        int[] cmap = new int[values.noValues()];
+        for (int i = 0; i < cmap.length; i++)
+        {
+            cmap[i] = values.isNumerical() ? addClass(values.getNumericalValue(i)) : addClass(values.getNominalValue(i));
+        }
+        return cmap;
+    }
+    
+    /**
+     * Translates the value codes of a nominal attribute in a dataset to the
+     * codes of this model, adding new values.
+     * 
+     * @param table Symbol table of the attribute in the dataset
+     * @param a Attribute index
+     * @return Code in this model of each value code
+     */
+    private int[] valueMap(SymbolTable table, int a)
+    {
+        int[] vmap = new int[table.size()];
+        for (int v = 0; v < vmap.length; v++)
+        {
+            vmap[v] = symbols[a].encode(table.decode(v));
+        }
+        return vmap;
+    }
+    
+    /**
+     * Counts a nominal value.
+     * 
+     * @param c Class value code
+     * @param a Attribute index
+     * @param code Value code
+     */
+    private void addValue(int c, int a, int code)
+    {
+        int i = c * no_attr + a;
+        ensureValues(i, code + 1);
+        value_count[i][code]++;
+    }
+    
+    /**
+     * Makes room for value codes in a count table.
+     * 
+     * @param i Index of the table
+     * @param size Number of value codes
+     */
+    private void ensureValues(int i, int size)
+    {
+        if (value_count[i] == null)
+        {
+            value_count[i] = new double[Math.max(size, 4)];
+        }
+        else if (value_count[i].length < size)
+        {
+            value_count[i] = Arrays.copyOf(value_count[i], Math.max(size, 2 * value_count[i].length));
+        }
+    }
+    
+    /**
+     * Adds a term value.
+     * 
+     * @param c Class value code
+     * @param a Attribute index
+     * @param v Term value
+     */
+    private void addTerm(int c, int a, double v)
+    {
+        if (a < no_attr && kinds[a] == MULTINOMIAL)
+        {
+            term_sum[c * no_attr + a] += v;
+            term_total[c] += v;
+        }
+    }
+    
+    /**
+     * Calculates the log probabilities from the count tables. Called before
+     * classifying if the tables have changed.
+     */
+    private synchronized void prepare()
+    {
+        if (prepared)
+        {
+            return;
+        }
+        if (kinds == null)
+        {
+            throw new RuntimeException("Naive Bayes classifier is not trained");
+        }
+        
+        double total = 0;
+        for (int c = 0; c < no_classes; c++)
+        {
+            total += class_count[c];
+        }
+        log_prior = new double[no_classes];
+        for (int c = 0; c < no_classes; c++)
+        {
+            log_prior[c] = Math.log(class_count[c] / total);
+        }
+        
+        //Variances get a small part of the largest variance added, so
+        //attributes with the same value in all rows of a class value work
+        double max_var = 0;
+        for (int c = 0; c < no_classes; c++)
+        {
+            for (int a = 0; a < no_attr; a++)
+            {
+                if (kinds[a] == GAUSSIAN && class_count[c] > 0) max_var = Math.max(max_var, m2[c * no_attr + a] / class_count[c]);
+            }
+        }
+        double min_var = max_var > 0 ? 1e-9 * max_var : 1e-9;
+        
+        int no_terms = 0;
+        for (int a = 0; a < no_attr; a++)
+        {
+            if (kinds[a] == MULTINOMIAL) no_terms++;
+        }
+        
+        int size = no_classes * no_attr;
+        log_norm = new double[size];
+        inv_var2 = new double[size];
+        log_value = new double[size][];
+        log_term = new double[size];
+        for (int c = 0; c < no_classes; c++)
+        {
+            for (int a = 0; a < no_attr; a++)
+            {
+                int i = c * no_attr + a;
+                if (kinds[a] == GAUSSIAN)
+                {
+                    double var = (class_count[c] > 0 ? m2[i] / class_count[c] : 0) + min_var;
+                    log_norm[i] = -0.5 * Math.log(2 * Math.PI * var);
+                    inv_var2[i] = 0.5 / var;
+                }
+                else if (kinds[a] == CATEGORICAL)
+                {
+                    int no_values = symbols[a].size();
+                    log_value[i] = new double[no_values];
+                    for (int v = 0; v < no_values; v++)
+                    {
+                        double count = value_count[i] != null && v < value_count[i].length ? value_count[i][v] : 0;
+                        log_value[i][v] = Math.log((count + alpha) / (class_count[c] + alpha * no_values));
+                    }
+                }
+                else if (kinds[a] == MULTINOMIAL)
+                {
+                    log_term[i] = Math.log((term_sum[i] + alpha) / (term_total[c] + alpha * no_terms));
+                }
+            }
+        }
+        prepared = true;
+    }
+    
+    /**
+     * Calculates the log probability (up to a constant) of each class value
+     * for an instance.
+     * 
+     * @param inst The instance
+     * @return Scores, in a buffer of the calling thread
+     */
+    private double[] scores(Instance inst)
+    {
+        if (!prepared) prepare();
+        double[] scores = buffer(no_classes);
+        System.arraycopy(log_prior, 0, scores, 0, no_classes);
+        
+        if (inst instanceof SparseInstance)
+        {
+            SparseInstance si = (SparseInstance)inst;
+            for (int i = 0; i < si.noValues(); i++)
+            {
+                addTermScores(scores, si.getIndex(i), si.getValue(i));
+            }
+        }
+        else if (inst.dataset() != null && inst.dataset().isSparse())
+        {
+            Dataset d = inst.dataset();
+            int[] index = d.getSparseIndexes();
+            double[] value = d.getSparseValues();
+            for (int i = d.sparseStart(inst.row()); i < d.sparseEnd(inst.row()); i++)
+            {
+                addTermScores(scores, index[i], value[i]);
+            }
+        }
+        else
+        {
+            for (int a = 0; a < no_attr; a++)
+            {
+                if (kinds[a] == GAUSSIAN)
+                {
+                    double v = inst.getNumericalValue(a);
+                    for (int c = 0; c < no_classes; c++)
+                    {
+                        int i = c * no_attr + a;
+                        double d = v - mean[i];
+                        scores[c] += log_norm[i] - d * d * inv_var2[i];
+                    }
+                }
+                else if (kinds[a] == CATEGORICAL)
+                {
+                    int code = symbols[a].lookup(inst.getAttribute(a).nominalValue());
+                    for (int c = 0; code >= 0 && c < no_classes; c++)
+                    {
+                        scores[c] += log_value[c * no_attr + a][code];
+                    }
+                }
+                else if (kinds[a] == MULTINOMIAL)
+                {
+                    addTermScores(scores, a, inst.getNumericalValue(a));
+                }
+            }
+        }
+        return scores;
+    }
+    
+    /**
+     * Adds the scores of a term value.
+     * 
+     * @param scores Scores of each class value
+     * @param a Attribute index
+     * @param v Term value
+     */
+    private void addTermScores(double[] scores, int a, double v)
+    {
+        if (a < no_attr && kinds[a] == MULTINOMIAL && v != 0)
+        {
+            for (int c = 0; c < no_classes; c++)
+            {
+                scores[c] += v * log_term[c * no_attr + a];
+            }
+        }
+    }
+    
+    /**
+     * Returns the score buffer of the calling thread.
+     * 
+     * @param size Smallest size of the buffer
+     * @return The buffer
+     */
+    private double[] buffer(int size)
+    {
+        double[] buf = buffers.get();
+        if (buf.length < size)
+        {
+            buf = new double[size];
+            buffers.set(buf);
+        }
+        return buf;
+    }
+    
+    /**
+     * Returns the class value with the highest score.
+     * 
+     * @param scores Scores, starting at off
+     * @param off Position of the first score
+     * @return Class value code
+     */
+    private int best(double[] scores, int off)
+    {
+        int best = 0;
+        for (int c = 1; c < no_classes; c++)
+        {
+            if (scores[off + c] > scores[off + best]) best = c;
+        }
+        return best;
+    }
+    
+    /**
+     * Classifiers an instance.
+     * 
+     * @param inst The instance
+     * @return Predicted class value for the instance
+     */
+    @Override
+    public Result classify(Instance inst)
+    {
+        int code = classifyIndex(inst);
+        if (class_values.isNumerical())
+        {
+            return new Result(class_values.getNumericalValue(code));
+        }
+        return new Result(class_values.getNominalValue(code));
+    }
+    
+    /**
+     * Classifies an instance and returns the predicted class value as an index
+     * into the class values of the classifier, which are the class values of
+     * the training dataset when trained with train().
+     * 
+     * @param inst The instance
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst)
+    {
+        return best(scores(inst), 0);
+    }
+    
+    /**
+     * Classifies an instance and writes the probability of each class value
+     * to probs.
+     * 
+     * @param inst The instance
+     * @param probs Class value probabilities (at least one per class value)
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst, double[] probs)
+    {
+        double[] scores = scores(inst);
+        int code = best(scores, 0);
+        double sum = 0;
+        Arrays.fill(probs, 0);
+        for (int c = 0; c < no_classes; c++)
+        {
+            probs[c] = Math.exp(scores[c] - scores[code]);
+            sum += probs[c];
+        }
+        for (int c = 0; c < no_classes; c++)
+        {
+            probs[c] /= sum;
+        }
+        return code;
+    }
+    
+    /**
+     * Classifies the rows from (inclusive) and to (exclusive) in a dataset.
+     * The scores of a block of rows are added one attribute at a time,
+     * reading the values directly from the column storage or sparse rows.
+     * 
+     * @param data The dataset
+     * @param from First row to classify
+     * @param to Row after the last row to classify
+     * @param out Predicted class value codes, indexed by row
+     */
+    @Override
+    public void classifyBatch(Dataset data, int from, int to, int[] out)
+    {
+        if (!prepared) prepare();
+        
+        //Translation of class value codes and nominal value codes
+        DistinctValues target = data.getDistinctClassValues();
+        int[] cmap = new int[no_classes];
+        for (int c = 0; c < no_classes; c++)
+        {
+            cmap[c] = class_values.isNumerical() ? target.indexOf(class_values.getNumericalValue(c)) : target.indexOf(class_values.getNominalValue(c));
+        }
+        int[][] vmaps = new int[no_attr][];
+        for (int a = 0; a < no_attr && !data.isSparse(); a++)
+        {
+            if (kinds[a] == CATEGORICAL)
+            {
+                SymbolTable table = data.getSymbolTable(a);
+                vmaps[a] = new int[table.size()];
+                for (int v = 0; v < vmaps[a].length; v++)
+                {
+                    vmaps[a][v] = symbols[a].lookup(table.decode(v));
+                }
+            }
+        }
+        
+        double[] scores = new double[BLOCK_ROWS * no_classes];
+        int[] rows = new int[BLOCK_ROWS];
+        for (int start = from; start < to; start += BLOCK_ROWS)
+        {
+            int n = Math.min(BLOCK_ROWS, to - start);
+            for (int r = 0; r < n; r++)
+            {
+                System.arraycopy(log_prior, 0, scores, r * no_classes, no_classes);
+                rows[r] = data.rowIndex(start + r);
+            }
+            
+            if (data.isSparse())
+            {
+                int[] index = data.getSparseIndexes();
+                double[] value = data.getSparseValues();
+                for (int r = 0; r < n; r++)
+                {
+                    for (int i = data.sparseStart(start + r); i < data.sparseEnd(start + r); i++)
+                    {
+                        int a = index[i];
+                        for (int c = 0; a < no_attr && c < no_classes; c++)
+                        {
+                            scores[r * no_classes + c] += value[i] * log_term[c * no_attr + a];
+                        }
+                    }
+                }
+            }
+            else
+            {
+                for (int a = 0; a < no_attr; a++)
+                {
+                    if (kinds[a] == GAUSSIAN)
+                    {
+                        double[] values = data.getNumericalColumn(a);
+                        for (int r = 0; r < n; r++)
+                        {
+                            double v = values[rows[r]];
+                            for (int c = 0; c < no_classes; c++)
+                            {
+                                int i = c * no_attr + a;
+                                double d = v - mean[i];
+                                scores[r * no_classes + c] += log_norm[i] - d * d * inv_var2[i];
+                            }
+                        }
+                    }
+                    else if (kinds[a] == CATEGORICAL)
+                    {
+                        int[] values = data.getNominalColumn(a);
+                        for (int r = 0; r < n; r++)
+                        {
+                            int code = vmaps[a][values[rows[r]]];
+                            for (int c = 0; code >= 0 && c < no_classes; c++)
+                            {
+                                scores[r * no_classes + c] += log_value[c * no_attr + a][code];
+                            }
+                        }
+                    }
+                    else if (kinds[a] == MULTINOMIAL)
+                    {
+                        double[] values = data.getNumericalColumn(a);
+                        for (int r = 0; r < n; r++)
+                        {
+                            double v = values[rows[r]];
+                            for (int c = 0; v != 0 && c < no_classes; c++)
+                            {
+                                scores[r * no_classes + c] += v * log_term[c * no_attr + a];
+                            }
+                        }
+                    }
+                }
+            }
+            
+            for (int r = 0; r < n; r++)
+            {
+                out[start + r] = cmap[best(scores, r * no_classes)];
+            }
+        }
+    }
+    
+    /**
+     * Creates a new untrained classifier with the same settings.
+     * 
+     * @return A new untrained classifier
+     */
+    @Override
+    public Classifier copy()
+    {
+        return new NaiveBayesClassifier(multinomial, alpha);
+    }
+    
+    /**
+     * Checks if this classifier can classify from several threads. Classifying
+     * only reads the model, but must not run at the same time as an update.
+     * 
+     * @return True
+     */
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
+    
+    /**
+     * Saves the trained classifier to a file. The count tables are saved, so
+     * a loaded classifier can be updated further.
+     * 
+     * @param filename Path to the model file
+     * @throws IOException If an error occurs when writing
+     */
+    public void save(String filename) throws IOException
+    {
+        ModelFile file = ModelFile.create("naivebayes", data, schema);
+        DataOutputStream out = file.out();
+        out.writeBoolean(multinomial);
+        out.writeDouble(alpha);
+        out.writeInt(no_attr);
+        out.write(kinds);
+        
+        //Class values and nominal values in the codes of this model
+        out.writeInt(no_classes);
+        out.writeBoolean(class_values.isNumerical());
+        for (int c = 0; c < no_classes; c++)
+        {
+            if (class_values.isNumerical()) out.writeDouble(class_values.getNumericalValue(c));
+            else file.writeString(class_values.getNominalValue(c));
+        }
+        for (int a = 0; a < no_attr; a++)
+        {
+            if (kinds[a] != CATEGORICAL) continue;
+            out.writeInt(symbols[a].size());
+            for (int v = 0; v < symbols[a].size(); v++)
+            {
+                file.writeString(symbols[a].decode(v));
+            }
+        }
+        
+        int size = no_classes * no_attr;
+        file.writeDoubles(Arrays.copyOf(class_count, no_classes));
+        file.writeDoubles(Arrays.copyOf(mean, size));
+        file.writeDoubles(Arrays.copyOf(m2, size));
+        file.writeDoubles(Arrays.copyOf(term_sum, size));
+        file.writeDoubles(Arrays.copyOf(term_total, no_classes));
+        for (int i = 0; i < size; i++)
+        {
+            if (kinds[i % no_attr] == CATEGORICAL)
+            {
+                file.writeDoubles(value_count[i] != null ? value_count[i] : new double[0]);
+            }
+        }
+        file.save(filename);
+    }
+    
+    /**
+     * Loads a classifier saved with save().
+     * 
+     * @param filename Path to the model file
+     * @return The classifier
+     * @throws IOException If the file could not be read
+     */
+    public static NaiveBayesClassifier load(String filename) throws IOException
+    {
+        ModelFile file = ModelFile.load(filename, "naivebayes");
+        ByteBuffer in = file.in();
+        boolean multinomial = in.get() != 0;
+        NaiveBayesClassifier nb = new NaiveBayesClassifier(multinomial, in.getDouble());
+        int no_attr = in.getInt();
+        byte[] kinds = new byte[no_attr];
+        in.get(kinds);
+        nb.init(no_attr, kinds);
+        
+        int no_classes = in.getInt();
+        boolean numerical = in.get() != 0;
+        for (int c = 0; c < no_classes; c++)
+        {
+            if (numerical) nb.addClass(in.getDouble());
+            else nb.addClass(file.readString());
+        }
+        for (int a = 0; a < no_attr; a++)
+        {
+            if (kinds[a] != CATEGORICAL) continue;
+            int n = in.getInt();
+            for (int v = 0; v < n; v++)
+            {
+                nb.symbols[a].encode(file.readString());
+            }
+        }
+        
+        nb.class_count = file.readDoubles();
+        nb.mean = file.readDoubles();
+        nb.m2 = file.readDoubles();
+        nb.term_sum = file.readDoubles();
+        nb.term_total = file.readDoubles();
+        for (int i = 0; i < no_classes * no_attr; i++)
+        {
+            if (kinds[i % no_attr] == CATEGORICAL)
+            {
+                double[] counts = file.readDoubles();
+                nb.value_count[i] = counts.length > 0 ? counts : null;
+            }
+        }
+        nb.schema = file.schema();
+        return nb;
+    }
+}
@@ -0,0 +1,780 @@
+package core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class is a k-nearest neighbours classifier. The training rows are
+ * min-max scaled to between 0 and 1 and indexed by a KD-tree (few attributes)
+ * or a ball tree (many attributes), so a query only visits the parts of the
+ * tree that can hold one of the k nearest rows instead of all rows.
+ * 
+ * The scaled values are copied to one array, row by row, in the order of the
+ * tree leaves, so rows in the same leaf are next to each other in memory. The
+ * tree is stored in flat arrays. Each node has a range of rows and a bound:
+ * a box for KD-trees and a ball for ball trees. The left child of a node is
+ * the next node, and the right child is stored.
+ * 
+ * The scaling is done by the classifier, so the training dataset is not
+ * changed. Nominal attributes are not used. Queries keep their k nearest rows
+ * in a bounded max-heap that is reused between queries, so classifying does
+ * not allocate. Each thread has its own buffers, so a trained classifier can
+ * classify batches in parallel.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class NearestNeighbours implements Classifier
+{
+    /** Selects the tree from the number of attributes */
+    public static final int AUTO = 0;
+    /** KD-tree */
+    public static final int KD_TREE = 1;
+    /** Ball tree */
+    public static final int BALL_TREE = 2;
+    /** Largest number of attributes for which AUTO selects a KD-tree */
+    private static final int MAX_KD_DIMENSIONS = 16;
+    
+    /** Number of neighbours */
+    private int k;
+    /** If true, neighbours vote with the inverse of their distance */
+    private boolean weighted;
+    /** Type of tree (AUTO, KD_TREE or BALL_TREE) */
+    private int tree_type;
+    /** Largest number of rows in a leaf */
+    private int leaf_size;
+    
+    /** Indexes of the used (numerical) attributes */
+    private int[] attrs;
+    /** Lowest value of each used attribute in the training dataset */
+    private double[] min;
+    /** Scale factor of each used attribute (0 for constant attributes) */
+    private double[] scale;
+    /** Number of used attributes */
+    private int dim;
+    /** Scaled training rows in tree order, dim values per row */
+    private double[] x;
+    /** Class value code of each training row, in tree order */
+    private int[] y;
+    /** Class values of the training dataset */
+    private DistinctValues class_values;
+    /** If true, the nodes have balls, else boxes */
+    private boolean ball;
+    /** First row of each node */
+    private int[] node_start;
+    /** Row after the last row of each node */
+    private int[] node_end;
+    /** Right child of each node, -1 for leaves */
+    private int[] node_right;
+    /** Box low corners (KD-tree) or ball centers (ball tree), dim values per node */
+    private double[] node_lo;
+    /** Box high corners (KD-tree), dim values per node */
+    private double[] node_hi;
+    /** Ball radius of each node (ball tree) */
+    private double[] node_radius;
+    /** The training dataset, for the schema when saving */
+    private Dataset data;
+    /** Schema of a loaded classifier, for saving it again */
+    private ModelFile schema;
+    /** Search buffers of each thread */
+    private ThreadLocal<Search> searches;
+    
+    /**
+     * Creates a new classifier with majority voting that selects the tree
+     * from the number of attributes.
+     * 
+     * @param k Number of neighbours
+     */
+    public NearestNeighbours(int k)
+    {
+        this(k, false, AUTO, 16);
+    }
+    
+    /**
+     * Creates a new classifier.
+     * 
+     * @param k Number of neighbours
+     * @param weighted If true, neighbours vote with the inverse of their distance
+     * @param tree_type Type of tree (AUTO, KD_TREE or BALL_TREE)
+     * @param leaf_size Largest number of rows in a leaf
+     */
+    public NearestNeighbours(int k, boolean weighted, int tree_type, int leaf_size)
+    {
+        if (k < 1)
+        {
+            throw new IllegalArgumentException("Number of neighbours must be at least 1");
+        }
+        if (tree_type != AUTO && tree_type != KD_TREE && tree_type != BALL_TREE)
+        {
+            throw new IllegalArgumentException("Unknown tree type: " + tree_type);
+        }
+        this.k = k;
+        this.weighted = weighted;
+        this.tree_type = tree_type;
+        this.leaf_size = Math.max(1, leaf_size);
+    }
+    
+    /**
+     * Trains the classifier.
+     * 
+     * @param train Data set used for training
+     */
+    @Override
+    public void train(Dataset train)
+    {
+        data = train;
+        class_values = train.getDistinctClassValues();
+        int no_attr = train.noAttributes() - 1;
+        int n = train.noInstances();
+        
+        //Used attributes
+        int[] used = new int[no_attr];
+        dim = 0;
+        for (int a = 0; a < no_attr; a++)
+        {
+            if (train.isNumerical(a)) used[dim++] = a;
+        }
+        attrs = Arrays.copyOf(used, dim);
+        if ((long)n * dim > Integer.MAX_VALUE - 8)
+        {
+            throw new RuntimeException("Dataset is too large for nearest neighbours: " + n + " rows with " + dim + " attributes");
+        }
+        
+        //Copy the rows and find the range of each attribute
+        double[] raw = new double[n * dim];
+        for (int r = 0; r < n; r++)
+        {
+            readRow(train, r, raw, r * dim, false);
+        }
+        min = new double[dim];
+        scale = new double[dim];
+        for (int j = 0; j < dim; j++)
+        {
+            double low = Double.POSITIVE_INFINITY;
+            double high = Double.NEGATIVE_INFINITY;
+            for (int r = 0; r < n; r++)
+            {
+                double v = raw[r * dim + j];
+                if (v < low) low = v;
+                if (v > high) high = v;
+            }
+            min[j] = n > 0 ? low : 0;
+            scale[j] = high > low ? 1 / (high - low) : 0;
+        }
+        for (int r = 0; r < n; r++)
+        {
+            for (int j = 0; j < dim; j++)
+            {
+                raw[r * dim + j] = (raw[r * dim + j] - min[j]) * scale[j];
+            }
+        }
+        
+        //Build the tree over row indexes, then copy the rows in tree order
+        ball = tree_type == BALL_TREE || (tree_type == AUTO && dim > MAX_KD_DIMENSIONS);
+        int[] order = new int[n];
+        for (int r = 0; r < n; r++)
+        {
+            order[r] = r;
+        }
+        int max_nodes = 2 * (n / ((leaf_size + 1) / 2)) + 1;
+        node_start = new int[max_nodes];
+        node_end = new int[max_nodes];
+        node_right = new int[max_nodes];
+        node_lo = new double[max_nodes * dim];
+        node_hi = ball ? null : new double[max_nodes * dim];
+        node_radius = ball ? new double[max_nodes] : null;
+        int no_nodes = build(raw, order, 0, n, 0);
+        node_start = Arrays.copyOf(node_start, no_nodes);
+        node_end = Arrays.copyOf(node_end, no_nodes);
+        node_right = Arrays.copyOf(node_right, no_nodes);
+        node_lo = Arrays.copyOf(node_lo, no_nodes * dim);
+        if (ball) node_radius = Arrays.copyOf(node_radius, no_nodes);
+        else node_hi = Arrays.copyOf(node_hi, no_nodes * dim);
+        
+        x = new double[n * dim];
+        y = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            System.arraycopy(raw, order[i] * dim, x, i * dim, dim);
+            y[i] = train.getClassCode(order[i]);
+        }
+        
+        initSearches();
+    }
+    
+    /**
+     * Creates the search buffers of each thread, sized from the training
+     * dataset. The buffers do not refer to the classifier, so a thread that
+     * has classified does not keep the classifier alive.
+     */
+    private void initSearches()
+    {
+        int dim = this.dim;
+        int k = this.k;
+        int no_classes = class_values.noValues();
+        searches = ThreadLocal.withInitial(() -> new Search(dim, k, no_classes));
+    }
+    
+    /**
+     * Builds a node and its children. The rows are split at the median of
+     * the attribute with the largest range.
+     * 
+     * @param raw Scaled rows, in dataset order
+     * @param order Row indexes, reordered so each node has a range of them
+     * @param start First row of the node
+     * @param end Row after the last row of the node
+     * @param node Index of the node
+     * @return Index of the next free node
+     */
+    private int build(double[] raw, int[] order, int start, int end, int node)
+    {
+        node_start[node] = start;
+        node_end[node] = end;
+        node_right[node] = -1;
+        
+        //Box of the rows, also used to find the split attribute
+        int off = node * dim;
+        double[] lo = node_lo;
+        double[] hi = ball ? new double[dim] : node_hi;
+        int hoff = ball ? 0 : off;
+        for (int j = 0; j < dim; j++)
+        {
+            lo[off + j] = Double.POSITIVE_INFINITY;
+            hi[hoff + j] = Double.NEGATIVE_INFINITY;
+        }
+        for (int i = start; i < end; i++)
+        {
+            int p = order[i] * dim;
+            for (int j = 0; j < dim; j++)
+            {
+                double v = raw[p + j];
+                if (v < lo[off + j]) lo[off + j] = v;
+                if (v > hi[hoff + j]) hi[hoff + j] = v;
+            }
+        }
+        int split = 0;
+        for (int j = 1; j < dim; j++)
+        {
+            if (hi[hoff + j] - lo[off + j] > hi[hoff + split] - lo[off + split]) split = j;
+        }
+        boolean leaf = end - start <= leaf_size || dim == 0 || hi[hoff + split] <= lo[off + split];
+        
+        if (ball)
+        {
+            //Ball around the mean of the rows, which replaces the low corner
+            for (int j = 0; j < dim; j++)
+            {
+                double sum = 0;
+                for (int i = start; i < end; i++)
+                {
+                    sum += raw[order[i] * dim + j];
+                }
+                lo[off + j] = sum / (end - start);
+            }
+            double radius = 0;
+            for (int i = start; i < end; i++)
+            {
+                radius = Math.max(radius, distance(raw, order[i] * dim, lo, off));
+            }
+            node_radius[node] = Math.sqrt(radius);
+        }
+        if (leaf)
+        {
+            return node + 1;
+        }
+        
+        int mid = (start + end) >>> 1;
+        select(raw, order, start, end, mid, split);
+        int right = build(raw, order, start, mid, node + 1);
+        node_right[node] = right;
+        return build(raw, order, mid, end, right);
+    }
+    
+    /**
+     * Reorders row indexes so the row at position nth has the value it would
+     * have if the rows were sorted by an attribute, with lower or equal values
+     * before it and higher or equal values after it (quickselect).
+     * 
+     * @param raw Scaled rows, in dataset order
+     * @param order Row indexes
+     * @param start First position
+     * @param end Position after the last position
+     * @param nth Position to select
+     * @param j Attribute
+     */
+    private void select(double[] raw, int[] order, int start, int end, int nth, int j)
+    {
+        int lo = start;
+        int hi = end - 1;
+        while (hi > lo)
+        {
+            double pivot = raw[order[(lo + hi) >>> 1] * dim + j];
+            int i = lo;
+            int l = hi;
+            while (i <= l)
+            {
+                while (raw[order[i] * dim + j] < pivot) i++;
+                while (raw[order[l] * dim + j] > pivot) l--;
+                if (i <= l)
+                {
+                    int tmp = order[i];
+                    order[i] = order[l];
+                    order[l] = tmp;
+                    i++;
+                    l--;
+                }
+            }
+            if (nth <= l) hi = l;
+            else if (nth >= i) lo = i;
+            else return;
+        }
+    }
+    
+    /**
+     * Calculates the squared distance between two rows.
+     * 
+     * @param a First array
+     * @param aoff Position of the first row
+     * @param b Second array
+     * @param boff Position of the second row
+     * @return Squared distance
+     */
+    private double distance(double[] a, int aoff, double[] b, int boff)
+    {
+        double sum = 0;
+        for (int j = 0; j < dim; j++)
+        {
+            double d = a[aoff + j] - b[boff + j];
+            sum += d * d;
+        }
+        return sum;
+    }
+    
+    /**
+     * Calculates the lowest squared distance from a query to the rows of a
+     * node, from the box or ball of the node.
+     * 
+     * @param node The node
+     * @param q The scaled query
+     * @return Lower bound for the squared distance
+     */
+    private double bound(int node, double[] q)
+    {
+        int off = node * dim;
+        if (ball)
+        {
+            double d = Math.sqrt(distance(q, 0, node_lo, off)) - node_radius[node];
+            return d > 0 ? d * d : 0;
+        }
+        double sum = 0;
+        for (int j = 0; j < dim; j++)
+        {
+            double d = node_lo[off + j] - q[j];
+            if (d < 0) d = q[j] - node_hi[off + j];
+            if (d > 0) sum += d * d;
+        }
+        return sum;
+    }
+    
+    /**
+     * Searches a node and its children for rows closer than the current
+     * k nearest rows. The child closest to the query is searched first,
+     * and nodes that cannot hold a closer row are skipped.
+     * 
+     * @param node The node
+     * @param s Search buffers holding the query and the nearest rows
+     */
+    private void search(int node, Search s)
+    {
+        int right = node_right[node];
+        if (right < 0)
+        {
+            for (int i = node_start[node]; i < node_end[node]; i++)
+            {
+                double d = distance(x, i * dim, s.q, 0);
+                if (s.size < k || d < s.dist[0]) s.push(d, i);
+            }
+            return;
+        }
+        
+        int left = node + 1;
+        double bl = bound(left, s.q);
+        double br = bound(right, s.q);
+        search(bl <= br ? left : right, s);
+        if (s.size < k || Math.max(bl, br) < s.dist[0])
+        {
+            search(bl <= br ? right : left, s);
+        }
+    }
+    
+    /**
+     * Finds the k nearest rows to the query in the search buffers and
+     * returns the class value with the most votes. Ties are broken by the
+     * class value of the nearest tied row.
+     * 
+     * @param s Search buffers holding the scaled query
+     * @return Class value code in the training dataset, or -1 if no rows
+     */
+    private int vote(Search s)
+    {
+        s.size = 0;
+        if (y.length == 0)
+        {
+            return -1;
+        }
+        search(0, s);
+        
+        Arrays.fill(s.votes, 0);
+        for (int i = 0; i < s.size; i++)
+        {
+            s.votes[y[s.index[i]]] += weighted ? 1 / (Math.sqrt(s.dist[i]) + 1e-10) : 1;
+        }
+        double most = 0;
+        for (double v : s.votes)
+        {
+            most = Math.max(most, v);
+        }
+        int best = -1;
+        double best_dist = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < s.size; i++)
+        {
+            int c = y[s.index[i]];
+            if (s.votes[c] == most && s.dist[i] < best_dist)
+            {
+                best = c;
+                best_dist = s.dist[i];
+            }
+        }
+        return best;
+    }
+    
+    /**
+     * Reads the used attribute values of a dataset row, optionally scaled.
+     * 
+     * @param data The dataset
+     * @param row Row index
+     * @param out Output array
+     * @param off Position of the row in the output
+     * @param scaled If true, the values are scaled
+     */
+    private void readRow(Dataset data, int row, double[] out, int off, boolean scaled)
+    {
+        if (data.isSparse())
+        {
+            Arrays.fill(out, off, off + dim, 0);
+            int[] index = data.getSparseIndexes();
+            double[] value = data.getSparseValues();
+            for (int i = data.sparseStart(row); i < data.sparseEnd(row); i++)
+            {
+                if (index[i] < dim) out[off + index[i]] = value[i];
+            }
+        }
+        else
+        {
+            for (int j = 0; j < dim; j++)
+            {
+                out[off + j] = data.getNumericalValue(row, attrs[j]);
+            }
+        }
+        if (scaled)
+        {
+            for (int j = 0; j < dim; j++)
+            {
+                out[off + j] = (out[off + j] - min[j]) * scale[j];
+            }
+        }
+    }
+    
+    /**
+     * Reads and scales the used attribute values of an instance.
+     * 
+     * @param inst The instance
+     * @param q Output array
+     */
+    private void readInstance(Instance inst, double[] q)
+    {
+        if (inst instanceof SparseInstance)
+        {
+            SparseInstance si = (SparseInstance)inst;
+            Arrays.fill(q, 0);
+            for (int i = 0; i < si.noValues(); i++)
+            {
+                if (si.getIndex(i) < dim) q[si.getIndex(i)] = si.getValue(i);
+            }
+        }
+        else
+        {
+            for (int j = 0; j < dim; j++)
+            {
+                q[j] = inst.getNumericalValue(attrs[j]);
+            }
+        }
+        for (int j = 0; j < dim; j++)
+        {
+            q[j] = (q[j] - min[j]) * scale[j];
+        }
+    }
+    
+    /**
+     * Classifiers an instance.
+     * 
+     * @param inst The instance
+     * @return Predicted class value for the instance
+     */
+    @Override
+    public Result classify(Instance inst)
+    {
+        int code = classifyIndex(inst);
+        if (class_values.isNumerical())
+        {
+            return new Result(class_values.getNumericalValue(code));
+        }
+        return new Result(class_values.getNominalValue(code));
+    }
+    
+    /**
+     * Classifies an instance and returns the predicted class value as an index
+     * into the distinct class values of the training dataset.
+     * 
+     * @param inst The instance
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst)
+    {
+        Search s = searches.get();
+        readInstance(inst, s.q);
+        return vote(s);
+    }
+    
+    /**
+     * Classifies an instance and writes the share of the (weighted) votes of
+     * each class value to probs.
+     * 
+     * @param inst The instance
+     * @param probs Class value probabilities (at least one per class value)
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst, double[] probs)
+    {
+        int code = classifyIndex(inst);
+        Search s = searches.get();
+        double sum = 0;
+        for (double v : s.votes)
+        {
+            sum += v;
+        }
+        Arrays.fill(probs, 0);
+        for (int c = 0; c < s.votes.length && sum > 0; c++)
+        {
+            probs[c] = s.votes[c] / sum;
+        }
+        return code;
+    }
+    
+    /**
+     * Classifies the rows from (inclusive) and to (exclusive) in a dataset,
+     * reading the values directly from the dataset.
+     * 
+     * @param data The dataset
+     * @param from First row to classify
+     * @param to Row after the last row to classify
+     * @param out Predicted class value codes, indexed by row
+     */
+    @Override
+    public void classifyBatch(Dataset data, int from, int to, int[] out)
+    {
+        Search s = searches.get();
+        DistinctValues target = data.getDistinctClassValues();
+        for (int r = from; r < to; r++)
+        {
+            readRow(data, r, s.q, 0, true);
+            out[r] = toIndex(vote(s), target);
+        }
+    }
+    
+    /**
+     * Translates a class value code to the class values of another dataset.
+     * 
+     * @param code Class value code in the training dataset
+     * @param target Class values of the other dataset
+     * @return Class value code in the other dataset, or -1 if not found
+     */
+    private int toIndex(int code, DistinctValues target)
+    {
+        if (target == class_values || code < 0)
+        {
+            return code;
+        }
+        if (class_values.isNumerical())
+        {
+            return target.indexOf(class_values.getNumericalValue(code));
+        }
+        return target.indexOf(class_values.getNominalValue(code));
+    }
+    
+    /**
+     * Creates a new untrained classifier with the same settings.
+     * 
+     * @return A new untrained classifier
+     */
+    @Override
+    public Classifier copy()
+    {
+        return new NearestNeighbours(k, weighted, tree_type, leaf_size);
+    }
+    
+    /**
+     * Checks if this classifier can classify from several threads. Each
+     * thread has its own search buffers.
+     * 
+     * @return True
+     */
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
+    
+    /**
+     * Saves the trained classifier to a file.
+     * 
+     * @param filename Path to the model file
+     * @throws IOException If an error occurs when writing
+     */
+    public void save(String filename) throws IOException
+    {
+        ModelFile file = ModelFile.create("knn", data, schema);
+        DataOutputStream out = file.out();
+        out.writeInt(k);
+        out.writeBoolean(weighted);
+        out.writeInt(tree_type);
+        out.writeInt(leaf_size);
+        out.writeBoolean(ball);
+        file.writeInts(attrs);
+        file.writeDoubles(min);
+        file.writeDoubles(scale);
+        file.writeDoubles(x);
+        file.writeInts(y);
+        file.writeInts(node_start);
+        file.writeInts(node_end);
+        file.writeInts(node_right);
+        file.writeDoubles(node_lo);
+        file.writeDoubles(ball ? node_radius : node_hi);
+        file.save(filename);
+    }
+    
+    /**
+     * Loads a classifier saved with save().
+     * 
+     * @param filename Path to the model file
+     * @return The classifier
+     * @throws IOException If the file could not be read
+     */
+    public static NearestNeighbours load(String filename) throws IOException
+    {
+        ModelFile file = ModelFile.load(filename, "knn");
+        ByteBuffer in = file.in();
+        int k = in.getInt();
+        boolean weighted = in.get() != 0;
+        int tree_type = in.getInt();
+        NearestNeighbours nn = new NearestNeighbours(k, weighted, tree_type, in.getInt());
+        nn.ball = in.get() != 0;
+        nn.attrs = file.readInts();
+        nn.dim = nn.attrs.length;
+        nn.min = file.readDoubles();
+        nn.scale = file.readDoubles();
+        nn.x = file.readDoubles();
+        nn.y = file.readInts();
+        nn.node_start = file.readInts();
+        nn.node_end = file.readInts();
+        nn.node_right = file.readInts();
+        nn.node_lo = file.readDoubles();
+        if (nn.ball) nn.node_radius = file.readDoubles();
+        else nn.node_hi = file.readDoubles();
+        nn.class_values = file.getDistinctClassValues();
+        nn.schema = file.schema();
+        nn.initSearches();
+        return nn;
+    }
+    
+    /**
+     * Buffers used by the queries of one thread. The nearest rows are kept
+     * in a max-heap on the squared distance, so the farthest of them is
+     * replaced when a closer row is found.
+     */
+    private static class Search
+    {
+        /** Number of nearest rows */
+        private int k;
+        /** The scaled query */
+        private double[] q;
+        /** Squared distances of the nearest rows (heap) */
+        private double[] dist;
+        /** Positions of the nearest rows in tree order (heap) */
+        private int[] index;
+        /** Number of rows in the heap */
+        private int size;
+        /** Votes of each class value */
+        private double[] votes;
+        
+        /**
+         * Creates the buffers.
+         * 
+         * @param dim Number of used attributes
+         * @param k Number of nearest rows
+         * @param no_classes Number of class values
+         */
+        private Search(int dim, int k, int no_classes)
+        {
+            this.k = k;
+            q = new double[dim];
+            dist = new double[k];
+            index = new int[k];
+            votes = new double[no_classes];
+        }
+        
+        /**
+         * Adds a row to the heap, replacing the farthest row if the heap
+         * is full.
+         * 
+         * @param d Squared distance
+         * @param i Position of the row
+         */
+        private void push(double d, int i)
+        {
+            int pos;
+            if (size < k)
+            {
+                //Sift up from the end
+                pos = size++;
+                while (pos > 0 && dist[(pos - 1) / 2] < d)
+                {
+                    int parent = (pos - 1) / 2;
+                    dist[pos] = dist[parent];
+                    index[pos] = index[parent];
+                    pos = parent;
+                }
+            }
+            else
+            {
+                //Sift down from the root
+                pos = 0;
+                while (true)
+                {
+                    int child = 2 * pos + 1;
+                    if (child >= size) break;
+                    if (child + 1 < size && dist[child + 1] > dist[child]) child++;
+                    if (dist[child] <= d) break;
+                    dist[pos] = dist[child];
+                    index[pos] = index[child];
+                    pos = child;
+                }
+            }
+            dist[pos] = d;
+            index[pos] = i;
+        }
+    }
+}
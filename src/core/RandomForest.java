@@ -0,0 +1,436 @@
+package core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * This class is a random forest classifier: an ensemble of decision trees
+ * where each tree is grown from a bootstrap sample of the rows and only
+ * evaluates a random subset of the attributes at each node. The class value
+ * probabilities of the trees are averaged when classifying.
+ * 
+ * The attribute values are mapped to bins once and the bins are shared by all
+ * trees. A bootstrap sample is a weight (number of times drawn) for each row,
+ * so no rows are copied. The trees are grown as separate tasks on a fork-join
+ * pool, and each tree is grown from its own seed, so the forest is the same
+ * regardless of how many threads are used.
+ * 
+ * The rows not drawn for a tree (about a third of them) are out-of-bag for
+ * that tree. Classifying each row with the trees it is out-of-bag for gives an
+ * estimate of the error on unseen data without a separate test set.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class RandomForest implements Classifier
+{
+    /** Number of rows classified together, so the trees are walked for a block of rows */
+    private static final int BLOCK_ROWS = 256;
+    
+    /** Number of trees */
+    private int no_trees;
+    /** Number of randomly selected attributes at each node (0 for the square root of the number of attributes) */
+    private int max_features;
+    /** Largest depth of the trees (0 for no limit) */
+    private int max_depth;
+    /** Smallest number of rows in a leaf */
+    private double min_leaf;
+    /** Largest number of bins of a numerical attribute */
+    private int max_bins;
+    /** Seed for the bootstrap samples and attribute selection */
+    private long seed;
+    
+    /** The trees */
+    private DecisionTree[] trees;
+    /** Class values of the training dataset */
+    private DistinctValues class_values;
+    /** Number of class values */
+    private int no_classes;
+    /** Out-of-bag error rate, -1 if no row was out-of-bag */
+    private double oob_error;
+    /** The training dataset, for the schema when saving */
+    private Dataset data;
+    /** Schema of a loaded classifier, for saving it again */
+    private ModelFile schema;
+    
+    /**
+     * Creates a new forest of 100 fully grown trees.
+     */
+    public RandomForest()
+    {
+        this(100);
+    }
+    
+    /**
+     * Creates a new forest of fully grown trees, with the square root of the
+     * number of attributes evaluated at each node.
+     * 
+     * @param no_trees Number of trees
+     */
+    public RandomForest(int no_trees)
+    {
+        this(no_trees, 0, 0, 1, 256, 1);
+    }
+    
+    /**
+     * Creates a new forest.
+     * 
+     * @param no_trees Number of trees
+     * @param max_features Number of randomly selected attributes at each node (0 for the square root of the number of attributes)
+     * @param max_depth Largest depth of the trees (0 for no limit)
+     * @param min_leaf Smallest number of rows in a leaf
+     * @param max_bins Largest number of bins of a numerical attribute
+     * @param seed Seed for the bootstrap samples and attribute selection
+     */
+    public RandomForest(int no_trees, int max_features, int max_depth, double min_leaf, int max_bins, long seed)
+    {
+        if (no_trees < 1)
+        {
+            throw new IllegalArgumentException("A forest must have at least one tree");
+        }
+        this.no_trees = no_trees;
+        this.max_features = max_features;
+        this.max_depth = max_depth;
+        this.min_leaf = min_leaf;
+        this.max_bins = max_bins;
+        this.seed = seed;
+    }
+    
+    /**
+     * Trains the classifier, growing the trees on the common fork-join pool.
+     * 
+     * @param train Data set used for training
+     */
+    @Override
+    public void train(Dataset train)
+    {
+        train(train, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Trains the classifier, growing the trees on a fork-join pool.
+     * 
+     * @param train Data set used for training
+     * @param pool Pool running one task per tree
+     */
+    public void train(Dataset train, ForkJoinPool pool)
+    {
+        data = train;
+        class_values = train.getDistinctClassValues();
+        no_classes = class_values.noValues();
+        int n = train.noInstances();
+        int no_attr = train.noAttributes() - 1;
+        int features = max_features > 0 ? max_features : Math.max(1, (int)Math.sqrt(no_attr));
+        DecisionTree.Bins bins = new DecisionTree.Bins(train, max_bins);
+        
+        //Grow each tree as a separate task. Rows in the bootstrap sample
+        //are marked in a bit set per tree, for the out-of-bag error.
+        trees = new DecisionTree[no_trees];
+        long[][] in_bag = new long[no_trees][(n + 63) >>> 6];
+        ArrayList<Future<?>> tasks = new ArrayList<>(no_trees);
+        for (int t = 0; t < no_trees; t++)
+        {
+            final int tree = t;
+            tasks.add(pool.submit(() -> {
+                Random rnd = new Random(seed * 1000003 + tree);
+                int[] weight = new int[n];
+                for (int i = 0; i < n; i++)
+                {
+                    int r = rnd.nextInt(n);
+                    weight[r]++;
+                    in_bag[tree][r >>> 6] |= 1L << r;
+                }
+                trees[tree] = new DecisionTree(DecisionTree.GINI, max_depth, min_leaf, max_bins, features, seed);
+                trees[tree].grow(bins, weight, rnd);
+            }));
+        }
+        try
+        {
+            for (Future<?> task : tasks)
+            {
+                task.get();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Training was interrupted", ex);
+        }
+        catch (ExecutionException ex)
+        {
+            throw new RuntimeException("Error growing tree: " + ex.getCause().getMessage(), ex.getCause());
+        }
+        
+        oob_error = outOfBagError(train, in_bag);
+    }
+    
+    /**
+     * Classifies each training row with the trees it is out-of-bag for.
+     * 
+     * @param train The training dataset
+     * @param in_bag Rows in the bootstrap sample of each tree
+     * @return Error rate of the rows that are out-of-bag for at least one tree, -1 if there are none
+     */
+    private double outOfBagError(Dataset train, long[][] in_bag)
+    {
+        int n = train.noInstances();
+        DecisionTree.Columns cols = new DecisionTree.Columns(train, null);
+        int no_blocks = (n + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        int[] no_errors = new int[no_blocks];
+        int[] no_oob = new int[no_blocks];
+        IntStream.range(0, no_blocks).parallel().forEach((b) -> {
+            double[] sum = new double[no_classes];
+            for (int r = b * BLOCK_ROWS; r < Math.min(n, (b + 1) * BLOCK_ROWS); r++)
+            {
+                boolean oob = false;
+                for (int c = 0; c < no_classes; c++)
+                {
+                    sum[c] = 0;
+                }
+                for (int t = 0; t < trees.length; t++)
+                {
+                    if ((in_bag[t][r >>> 6] & (1L << r)) == 0)
+                    {
+                        add(trees[t], trees[t].leaf(cols, r), sum, 0);
+                        oob = true;
+                    }
+                }
+                if (oob)
+                {
+                    no_oob[b]++;
+                    if (best(sum, 0) != train.getClassCode(r)) no_errors[b]++;
+                }
+            }
+        });
+        
+        int errors = 0;
+        int total = 0;
+        for (int b = 0; b < no_blocks; b++)
+        {
+            errors += no_errors[b];
+            total += no_oob[b];
+        }
+        return total > 0 ? (double)errors / total : -1;
+    }
+    
+    /**
+     * Returns the out-of-bag error rate, the share of training rows that are
+     * misclassified by the trees that were grown without them.
+     * 
+     * @return Error rate, -1 if no row was out-of-bag
+     */
+    public double getOutOfBagError()
+    {
+        return oob_error;
+    }
+    
+    /**
+     * Adds the class value probabilities of a leaf to a sum.
+     * 
+     * @param tree The tree
+     * @param node The leaf
+     * @param sum Sums of class value probabilities
+     * @param off Position of the first class value in sum
+     */
+    private void add(DecisionTree tree, int node, double[] sum, int off)
+    {
+        double[] dist = tree.distributions();
+        int pos = node * no_classes;
+        for (int c = 0; c < no_classes; c++)
+        {
+            sum[off + c] += dist[pos + c];
+        }
+    }
+    
+    /**
+     * Returns the class value with the highest sum.
+     * 
+     * @param sum Sums of class value probabilities
+     * @param off Position of the first class value in sum
+     * @return Class value code
+     */
+    private int best(double[] sum, int off)
+    {
+        int best = 0;
+        for (int c = 1; c < no_classes; c++)
+        {
+            if (sum[off + c] > sum[off + best]) best = c;
+        }
+        return best;
+    }
+    
+    /**
+     * Classifiers an instance.
+     * 
+     * @param inst The instance
+     * @return Predicted class value for the instance
+     */
+    @Override
+    public Result classify(Instance inst)
+    {
+        int code = classifyIndex(inst);
+        if (class_values.isNumerical())
+        {
+            return new Result(class_values.getNumericalValue(code));
+        }
+        return new Result(class_values.getNominalValue(code));
+    }
+    
+    /**
+     * Classifies an instance and returns the predicted class value as an index
+     * into the distinct class values of the training dataset.
+     * 
+     * @param inst The instance
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst)
+    {
+        return classifyIndex(inst, new double[no_classes]);
+    }
+    
+    /**
+     * Classifies an instance and writes the class value probabilities,
+     * averaged over the trees, to probs.
+     * 
+     * @param inst The instance
+     * @param probs Class value probabilities (at least one per class value)
+     * @return Index of the predicted class value
+     */
+    @Override
+    public int classifyIndex(Instance inst, double[] probs)
+    {
+        for (int c = 0; c < probs.length; c++)
+        {
+            probs[c] = 0;
+        }
+        for (DecisionTree tree : trees)
+        {
+            add(tree, tree.leaf(inst), probs, 0);
+        }
+        for (int c = 0; c < no_classes; c++)
+        {
+            probs[c] /= trees.length;
+        }
+        return best(probs, 0);
+    }
+    
+    /**
+     * Classifies the rows from (inclusive) and to (exclusive) in a dataset.
+     * The rows are classified in blocks, walking each tree for all rows in a
+     * block before moving to the next tree.
+     * 
+     * @param data The dataset
+     * @param from First row to classify
+     * @param to Row after the last row to classify
+     * @param out Predicted class value codes, indexed by row
+     */
+    @Override
+    public void classifyBatch(Dataset data, int from, int to, int[] out)
+    {
+        DecisionTree.Columns cols = new DecisionTree.Columns(data, trees[0].symbols());
+        int[] cmap = DecisionTree.classMap(class_values, data.getDistinctClassValues());
+        double[] sum = new double[BLOCK_ROWS * no_classes];
+        for (int start = from; start < to; start += BLOCK_ROWS)
+        {
+            int end = Math.min(to, start + BLOCK_ROWS);
+            for (int i = 0; i < (end - start) * no_classes; i++)
+            {
+                sum[i] = 0;
+            }
+            for (DecisionTree tree : trees)
+            {
+                for (int r = start; r < end; r++)
+                {
+                    add(tree, tree.leaf(cols, r), sum, (r - start) * no_classes);
+                }
+            }
+            for (int r = start; r < end; r++)
+            {
+                out[r] = cmap[best(sum, (r - start) * no_classes)];
+            }
+        }
+    }
+    
+    /**
+     * Creates a new untrained classifier with the same settings.
+     * 
+     * @return A new untrained classifier
+     */
+    @Override
+    public Classifier copy()
+    {
+        return new RandomForest(no_trees, max_features, max_depth, min_leaf, max_bins, seed);
+    }
+    
+    /**
+     * Checks if this classifier can classify from several threads. Classifying
+     * only reads the trees.
+     * 
+     * @return True
+     */
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
+    
+    /**
+     * Saves the trained classifier to a file.
+     * 
+     * @param filename Path to the model file
+     * @throws IOException If an error occurs when writing
+     */
+    public void save(String filename) throws IOException
+    {
+        ModelFile file = ModelFile.create("randomforest", data, schema);
+        DataOutputStream out = file.out();
+        out.writeInt(no_trees);
+        out.writeInt(max_features);
+        out.writeInt(max_depth);
+        out.writeDouble(min_leaf);
+        out.writeInt(max_bins);
+        out.writeLong(seed);
+        out.writeDouble(oob_error);
+        for (DecisionTree tree : trees)
+        {
+            tree.write(file);
+        }
+        file.save(filename);
+    }
+    
+    /**
+     * Loads a classifier saved with save().
+     * 
+     * @param filename Path to the model file
+     * @return The classifier
+     * @throws IOException If the file could not be read
+     */
+    public static RandomForest load(String filename) throws IOException
+    {
+        ModelFile file = ModelFile.load(filename, "randomforest");
+        ByteBuffer in = file.in();
+        int no_trees = in.getInt();
+        int max_features = in.getInt();
+        int max_depth = in.getInt();
+        double min_leaf = in.getDouble();
+        int max_bins = in.getInt();
+        RandomForest rf = new RandomForest(no_trees, max_features, max_depth, min_leaf, max_bins, in.getLong());
+        rf.oob_error = in.getDouble();
+        rf.trees = new DecisionTree[no_trees];
+        for (int t = 0; t < no_trees; t++)
+        {
+            rf.trees[t] = DecisionTree.read(file);
+        }
+        rf.class_values = file.getDistinctClassValues();
+        rf.no_classes = rf.class_values.noValues();
+        rf.schema = file.schema();
+        return rf;
+    }
+}
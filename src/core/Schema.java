@@ -0,0 +1,220 @@
+
+package core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * This class holds the schema of a dataset: attribute names, the type of each
+ * attribute, the values of nominal attributes (in code order) and the class
+ * values (in class value code order). It is written to and read from the
+ * binary files holding cached datasets and trained models.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+class Schema
+{
+    /** Attribute with no values */
+    static final byte UNKNOWN = -1;
+    /** Nominal attribute */
+    static final byte NOMINAL = 0;
+    /** Numerical attribute */
+    static final byte NUMERICAL = 1;
+    
+    /** Attribute names */
+    final String[] names;
+    /** Nominal values of each attribute (null for other attributes) */
+    final SymbolTable[] symbols;
+    /** Type of each attribute */
+    final byte[] types;
+    /** Class values */
+    final DistinctValues class_values;
+    
+    /**
+     * Creates the schema of a dataset. Symbol tables and class values are
+     * shared with the dataset, not copied.
+     * 
+     * @param data The dataset
+     */
+    Schema(Dataset data)
+    {
+        int no_attr = data.noAttributes();
+        names = new String[no_attr];
+        symbols = new SymbolTable[no_attr];
+        types = new byte[no_attr];
+        for (int a = 0; a < no_attr; a++)
+        {
+            names[a] = data.getAttributeName(a);
+            if (data.isNominal(a))
+            {
+                types[a] = NOMINAL;
+                symbols[a] = data.getSymbolTable(a);
+            }
+            else
+            {
+                types[a] = data.isNumerical(a) ? NUMERICAL : UNKNOWN;
+            }
+        }
+        class_values = data.getDistinctClassValues();
+    }
+    
+    /**
+     * Creates a schema that is filled in by read().
+     * 
+     * @param no_attr Number of attributes
+     */
+    private Schema(int no_attr)
+    {
+        names = new String[no_attr];
+        symbols = new SymbolTable[no_attr];
+        types = new byte[no_attr];
+        class_values = new DistinctValues();
+    }
+    
+    /**
+     * Returns the number of attributes (including class attribute).
+     * 
+     * @return Number of attributes
+     */
+    int noAttributes()
+    {
+        return names.length;
+    }
+    
+    /**
+     * Writes the schema.
+     * 
+     * @param out The output
+     * @throws IOException If an error occurs when writing
+     */
+    void write(DataOutputStream out) throws IOException
+    {
+        int no_attr = names.length;
+        out.writeInt(no_attr);
+        for (int a = 0; a < no_attr; a++)
+        {
+            writeString(out, names[a]);
+        }
+        for (int a = 0; a < no_attr; a++)
+        {
+            out.writeByte(types[a]);
+            if (types[a] == NOMINAL)
+            {
+                out.writeInt(symbols[a].size());
+                for (int c = 0; c < symbols[a].size(); c++)
+                {
+                    writeString(out, symbols[a].decode(c));
+                }
+            }
+        }
+        
+        ArrayList<Double> num_classes = class_values.getNumericalValues();
+        ArrayList<String> nom_classes = class_values.getNominalValues();
+        out.writeInt(num_classes.size());
+        for (double v : num_classes)
+        {
+            out.writeDouble(v);
+        }
+        out.writeInt(nom_classes.size());
+        for (String v : nom_classes)
+        {
+            writeString(out, v);
+        }
+    }
+    
+    /**
+     * Reads a schema written by write().
+     * 
+     * @param in The input
+     * @return The schema
+     */
+    static Schema read(ByteBuffer in)
+    {
+        int no_attr = in.getInt();
+        if (no_attr < 0 || no_attr > in.remaining())
+        {
+            throw new BufferUnderflowException();
+        }
+        Schema schema = new Schema(no_attr);
+        for (int a = 0; a < no_attr; a++)
+        {
+            schema.names[a] = readString(in);
+        }
+        for (int a = 0; a < no_attr; a++)
+        {
+            schema.types[a] = in.get();
+            if (schema.types[a] == NOMINAL)
+            {
+                int n = in.getInt();
+                if (n < 0 || n > in.remaining())
+                {
+                    throw new BufferUnderflowException();
+                }
+                schema.symbols[a] = new SymbolTable(n);
+                for (int c = 0; c < n; c++)
+                {
+                    schema.symbols[a].encode(readString(in));
+                }
+            }
+        }
+        
+        int n = in.getInt();
+        for (int i = 0; i < n; i++)
+        {
+            schema.class_values.addValue(in.getDouble());
+        }
+        n = in.getInt();
+        for (int i = 0; i < n; i++)
+        {
+            schema.class_values.addValue(readString(in));
+        }
+        return schema;
+    }
+    
+    /**
+     * Writes a string as its length in bytes followed by the UTF-8 bytes.
+     * Null is written as length -1.
+     * 
+     * @param out The output
+     * @param s The string
+     * @throws IOException If an error occurs when writing
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+    
+    /**
+     * Reads a string written by writeString(). A damaged length fails before
+     * the string is allocated.
+     * 
+     * @param in The input
+     * @return The string
+     */
+    static String readString(ByteBuffer in)
+    {
+        int len = in.getInt();
+        if (len < 0)
+        {
+            return null;
+        }
+        if (len > in.remaining())
+        {
+            throw new BufferUnderflowException();
+        }
+        byte[] b = new byte[len];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,308 @@
+
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This class represents an instance where most attribute values are zero.
+ * Only the non-zero values are stored, as sorted arrays of attribute indexes
+ * and values. All attributes except the class attribute are numerical.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class SparseInstance extends Instance
+{
+    /** Number of attributes (including class attribute) */
+    private int no_attr;
+    /** Attribute index of each non-zero value, in increasing order */
+    private int[] indexes;
+    /** Non-zero values */
+    private double[] values;
+    /** Number of non-zero values */
+    private int size;
+    /** The class attribute */
+    private Attribute class_attr;
+    
+    /**
+     * Creates a new instance where all attributes are zero.
+     * 
+     * @param n Number of attributes (including class attribute)
+     */
+    public SparseInstance(int n)
+    {
+        this(n, new int[0], new double[0], null);
+    }
+    
+    /**
+     * Creates a new instance from the non-zero values.
+     * 
+     * @param n Number of attributes (including class attribute)
+     * @param indexes Attribute index of each value, in increasing order (not copied)
+     * @param values The values (not copied)
+     * @param class_attr The class attribute
+     */
+    public SparseInstance(int n, int[] indexes, double[] values, Attribute class_attr)
+    {
+        super(0);
+        if (indexes.length != values.length)
+        {
+            throw new IllegalArgumentException("Indexes and values must have the same length");
+        }
+        for (int i = 0; i < indexes.length; i++)
+        {
+            if (indexes[i] < 0 || indexes[i] >= n - 1 || (i > 0 && indexes[i] <= indexes[i - 1]))
+            {
+                throw new IllegalArgumentException("Indexes must be increasing and between 0 and " + (n - 2));
+            }
+        }
+        this.no_attr = n;
+        this.indexes = indexes;
+        this.values = values;
+        this.size = indexes.length;
+        this.class_attr = class_attr;
+    }
+    
+    /**
+     * Returns the number of stored (non-zero) values.
+     * 
+     * @return Number of values
+     */
+    public int noValues()
+    {
+        return size;
+    }
+    
+    /**
+     * Returns the attribute index of a stored value.
+     * 
+     * @param i Position of the value (0 to noValues() - 1)
+     * @return Attribute index
+     */
+    public int getIndex(int i)
+    {
+        return indexes[i];
+    }
+    
+    /**
+     * Returns a stored value.
+     * 
+     * @param i Position of the value (0 to noValues() - 1)
+     * @return The value
+     */
+    public double getValue(int i)
+    {
+        return values[i];
+    }
+    
+    /**
+     * Replaces a stored value. The value should not be zero, since it is
+     * kept as a stored value.
+     * 
+     * @param i Position of the value (0 to noValues() - 1)
+     * @param value The value
+     */
+    public void setValue(int i, double value)
+    {
+        values[i] = value;
+    }
+    
+    /**
+     * Sets a numerical attribute for this instance. Setting an attribute
+     * to zero removes it from the stored values.
+     * 
+     * @param value Attribute value
+     * @param attr_index Index of attribute
+     */
+    @Override
+    public void setAttributeValue(double value, int attr_index)
+    {
+        if (attr_index == no_attr - 1)
+        {
+            class_attr = new Attribute(value);
+            return;
+        }
+        if (attr_index < 0 || attr_index >= no_attr)
+        {
+            throw new IndexOutOfBoundsException("Index: " + attr_index + ", Size: " + no_attr);
+        }
+        
+        int i = Arrays.binarySearch(indexes, 0, size, attr_index);
+        if (i >= 0)
+        {
+            if (value != 0)
+            {
+                values[i] = value;
+            }
+            else
+            {
+                //Remove the value
+                System.arraycopy(indexes, i + 1, indexes, i, size - i - 1);
+                System.arraycopy(values, i + 1, values, i, size - i - 1);
+                size--;
+            }
+        }
+        else if (value != 0)
+        {
+            //Insert the value
+            i = -i - 1;
+            if (size == indexes.length)
+            {
+                indexes = Arrays.copyOf(indexes, Math.max(4, size * 2));
+                values = Arrays.copyOf(values, indexes.length);
+            }
+            System.arraycopy(indexes, i, indexes, i + 1, size - i);
+            System.arraycopy(values, i, values, i + 1, size - i);
+            indexes[i] = attr_index;
+            values[i] = value;
+            size++;
+        }
+    }
+    
+    /**
+     * Sets the class attribute. Only the class attribute can be nominal.
+     * 
+     * @param value Attribute value
+     * @param attr_index Index of attribute
+     */
+    @Override
+    public void setAttributeValue(String value, int attr_index)
+    {
+        if (attr_index != no_attr - 1)
+        {
+            throw new RuntimeException("Only the class attribute of a sparse instance can be nominal");
+        }
+        class_attr = new Attribute(value);
+    }
+    
+    /**
+     * Returns the attribute at the specified index.
+     * 
+     * @param attr_index Attribute index
+     * @return The attribute
+     */
+    @Override
+    public Attribute getAttribute(int attr_index)
+    {
+        if (attr_index == no_attr - 1)
+        {
+            return class_attr;
+        }
+        return new Attribute(getNumericalValue(attr_index));
+    }
+    
+    /**
+     * Returns the numerical value of the attribute at the specified index.
+     * 
+     * @param attr_index Attribute index
+     * @return Numerical value
+     */
+    @Override
+    public double getNumericalValue(int attr_index)
+    {
+        if (attr_index == no_attr - 1)
+        {
+            return class_attr != null ? class_attr.numericalValue() : 0;
+        }
+        int i = Arrays.binarySearch(indexes, 0, size, attr_index);
+        return i >= 0 ? values[i] : 0;
+    }
+    
+    /**
+     * Returns the attributes for this instance.
+     * 
+     * @return The attributes
+     */
+    @Override
+    public ArrayList<Attribute> getAttributes()
+    {
+        ArrayList<Attribute> list = new ArrayList<>(no_attr);
+        for (int i = 0; i < no_attr; i++)
+        {
+            list.add(getAttribute(i));
+        }
+        return list;
+    }
+    
+    /**
+     * Returns the number of attributes (including class attribute)
+     * for this instance.
+     * 
+     * @return Number of attributes
+     */
+    @Override
+    public int noAttributes()
+    {
+        return no_attr;
+    }
+    
+    /**
+     * Returns a list of the attribute values for this instance, excluding
+     * the class attribute value.
+     * 
+     * @return List of attribute values
+     */
+    @Override
+    public double[] getAttributeArrayNumerical()
+    {
+        double[] vals = new double[no_attr - 1];
+        for (int i = 0; i < size; i++)
+        {
+            vals[indexes[i]] = values[i];
+        }
+        return vals;
+    }
+    
+    /**
+     * Returns a list of the attribute values for this instance, excluding
+     * the class attribute value. All attributes are numerical, so all values
+     * are null.
+     * 
+     * @return List of attribute values
+     */
+    @Override
+    public String[] getAttributeArrayNominal()
+    {
+        return new String[no_attr - 1];
+    }
+    
+    /**
+     * Returns a copy of this instance.
+     * 
+     * @return The copy
+     */
+    @Override
+    public Instance copy()
+    {
+        Attribute c = null;
+        if (class_attr != null)
+        {
+            c = class_attr.isNumerical() ? new Attribute(class_attr.numericalValue()) : new Attribute(class_attr.nominalValue());
+        }
+        return new SparseInstance(no_attr, Arrays.copyOf(indexes, size), Arrays.copyOf(values, size), c);
+    }
+    
+    @Override
+    public String toString()
+    {
+        String str = "{";
+        for (int i = 0; i < size; i++)
+        {
+            str += AttributeNames.getInstance().getAttributeName(indexes[i]) + " = " + String.format( "%.2f", values[i]) + ", ";
+        }
+        
+        //Class attribute
+        String v = "";
+        if (class_attr != null && class_attr.isNominal())
+        {
+            v = class_attr.nominalValue();
+        }
+        else if (class_attr != null)
+        {
+            v = String.format( "%.2f", class_attr.numericalValue());
+        }
+        str += AttributeNames.getInstance().getAttributeName(no_attr - 1) + " = " + v + "}";
+        
+        return str;
+    }
+}
@@ -0,0 +1,195 @@
+
+package core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class reads an ARFF or CSV file as a stream, without loading the
+ * whole file into memory. Rows are read in batches of a fixed size, so the
+ * memory used for the rows is bounded by the batch size.
+ * 
+ * Batches are returned as a dataset that is reused for each batch. The
+ * distinct nominal values and class values are kept between batches, so value
+ * codes and class value codes are the same in all batches, and the memory
+ * they use grows with the number of distinct values. The values of ARFF
+ * string attributes are mostly unique, so they are only kept for the current
+ * batch and their codes are not the same in different batches. Instances can
+ * also be iterated one at a time.
+ * 
+ * ARFF files are parsed with the types declared in the header. CSV files
+ * have no declared types, so a column that is numerical in early batches can
+ * become nominal in a later batch.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class StreamReader implements Iterator<Instance>, AutoCloseable
+{
+    /** The file */
+    private FileChannel in;
+    /** Parser reading the file */
+    private TextParser parser;
+    /** Dataset holding the current batch */
+    private Dataset batch;
+    /** Maximum number of rows in a batch */
+    private int batch_size;
+    /** Next row in the current batch returned by next() */
+    private int next_row;
+    /** End of the file reached */
+    private boolean done;
+    /** String attributes, whose values are removed between batches */
+    private boolean[] strings;
+    
+    /**
+     * Opens a dataset file. The separator is , for ARFF files and ; for
+     * CSV files.
+     * 
+     * @param filename Path to the dataset file
+     * @param batch_size Maximum number of rows in a batch
+     * @throws IOException If an error occurs when reading the header
+     */
+    public StreamReader(String filename, int batch_size) throws IOException
+    {
+        this(filename, filename.endsWith(".csv") ? ";" : ",", batch_size);
+    }
+    
+    /**
+     * Opens a dataset file.
+     * 
+     * @param filename Path to the dataset file
+     * @param separator Separator char that separates columns in the dataset file
+     * @param batch_size Maximum number of rows in a batch
+     * @throws IOException If an error occurs when reading the header
+     */
+    public StreamReader(String filename, String separator, int batch_size) throws IOException
+    {
+        if (batch_size < 1)
+        {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batch_size = batch_size;
+        
+        in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try
+        {
+            if (filename.endsWith(".arff"))
+            {
+                parser = new TextParser(in, TextParser.separatorChar(separator), true);
+                batch = new ARFFreader().readHeader(parser);
+            }
+            else if (filename.endsWith(".csv"))
+            {
+                parser = new TextParser(in, TextParser.separatorChar(separator), false);
+                batch = CSVreader.readHeader(parser, separator);
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported file type for dataset");
+            }
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            in.close();
+            throw ex;
+        }
+        strings = parser.stringColumns(batch.noAttributes());
+        next_row = 0;
+        done = false;
+    }
+    
+    /**
+     * Reads the next batch of rows. The returned dataset is reused, and its
+     * rows (and the values of string attributes) are replaced by the next call. Instances not yet returned by next()
+     * from the previous batch are skipped.
+     * 
+     * @return Dataset with up to batch size rows, or null at the end of the file
+     * @throws IOException If an error occurs when reading
+     */
+    public Dataset nextBatch() throws IOException
+    {
+        batch.clear(strings);
+        next_row = 0;
+        while (!done && batch.noInstances() < batch_size)
+        {
+            if (!parser.readRow(batch))
+            {
+                done = true;
+            }
+        }
+        return batch.noInstances() > 0 ? batch : null;
+    }
+    
+    /**
+     * Returns the number of attributes (including class attribute).
+     * 
+     * @return Number of attributes
+     */
+    public int noAttributes()
+    {
+        return batch.noAttributes();
+    }
+    
+    /**
+     * Returns the distinct class values seen so far.
+     * 
+     * @return Distinct values
+     */
+    public DistinctValues getDistinctClassValues()
+    {
+        return batch.getDistinctClassValues();
+    }
+    
+    /**
+     * Checks if there are more instances in the file.
+     * 
+     * @return True if there are more instances
+     */
+    @Override
+    public boolean hasNext()
+    {
+        if (next_row < batch.noInstances())
+        {
+            return true;
+        }
+        try
+        {
+            return nextBatch() != null;
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+    
+    /**
+     * Returns the next instance in the file. The instance is a copy, so it
+     * is not changed when the next batch is read.
+     * 
+     * @return The instance
+     */
+    @Override
+    public Instance next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        return batch.getInstance(next_row++).copy();
+    }
+    
+    /**
+     * Closes the file.
+     * 
+     * @throws IOException If an error occurs when closing
+     */
+    @Override
+    public void close() throws IOException
+    {
+        in.close();
+    }
+}
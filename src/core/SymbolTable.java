@@ -0,0 +1,174 @@
+
+package core;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * This class maps the distinct values of a nominal attribute to int codes.
+ * Codes are given in the order the values are added, starting at 0, and
+ * each value is stored only once. Lookups use an open addressing hash table
+ * of codes, so encoding a value does not allocate.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+public class SymbolTable
+{
+    /** Values, indexed by code */
+    private String[] symbols;
+    /** Number of values in the table */
+    private int size;
+    /** Hash table holding code + 1 for each used slot, 0 for empty slots */
+    private int[] table;
+    
+    /**
+     * Creates a new empty symbol table.
+     */
+    public SymbolTable()
+    {
+        this(8);
+    }
+    
+    /**
+     * Creates a new empty symbol table sized for the expected number of values.
+     * 
+     * @param expected Expected number of distinct values
+     */
+    public SymbolTable(int expected)
+    {
+        symbols = new String[Math.max(expected, 4)];
+        table = new int[tableSize(expected)];
+        size = 0;
+    }
+    
+    /**
+     * Returns the code for a value. The value is added to the table if it
+     * is not already in it.
+     * 
+     * @param value The value
+     * @return Code for the value
+     */
+    public int encode(String value)
+    {
+        int mask = table.length - 1;
+        int slot = hash(value) & mask;
+        while (table[slot] != 0)
+        {
+            int code = table[slot] - 1;
+            if (Objects.equals(symbols[code], value))
+            {
+                return code;
+            }
+            slot = (slot + 1) & mask;
+        }
+        
+        //New value
+        if (size == symbols.length)
+        {
+            symbols = Arrays.copyOf(symbols, size * 2);
+        }
+        int code = size++;
+        symbols[code] = value;
+        table[slot] = code + 1;
+        if (size * 2 > table.length)
+        {
+            rehash(table.length * 2);
+        }
+        return code;
+    }
+    
+    /**
+     * Returns the code for a value, or -1 if the value is not in the table.
+     * 
+     * @param value The value
+     * @return Code for the value
+     */
+    public int lookup(String value)
+    {
+        int mask = table.length - 1;
+        int slot = hash(value) & mask;
+        while (table[slot] != 0)
+        {
+            int code = table[slot] - 1;
+            if (Objects.equals(symbols[code], value))
+            {
+                return code;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the value for a code.
+     * 
+     * @param code The code
+     * @return The value
+     */
+    public String decode(int code)
+    {
+        if (code < 0 || code >= size)
+        {
+            throw new IndexOutOfBoundsException("Invalid code: " + code);
+        }
+        return symbols[code];
+    }
+    
+    /**
+     * Returns the number of values in the table.
+     * 
+     * @return Number of values
+     */
+    public int size()
+    {
+        return size;
+    }
+    
+    /**
+     * Rebuilds the hash table with a new size.
+     * 
+     * @param capacity New number of slots (a power of two)
+     */
+    private void rehash(int capacity)
+    {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int code = 0; code < size; code++)
+        {
+            int slot = hash(symbols[code]) & mask;
+            while (table[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = code + 1;
+        }
+    }
+    
+    /**
+     * Calculates the hash of a value.
+     * 
+     * @param value The value
+     * @return Hash code
+     */
+    private static int hash(String value)
+    {
+        int h = Objects.hashCode(value);
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Returns the number of hash slots needed for a number of values.
+     * 
+     * @param expected Expected number of values
+     * @return Number of slots (a power of two)
+     */
+    private static int tableSize(int expected)
+    {
+        int n = 16;
+        while (n < expected * 2)
+        {
+            n *= 2;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,1318 @@
+
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * This class parses delimited text (the data section of ARFF files, and CSV
+ * files) directly from bytes. Lines and fields are found by scanning the bytes
+ * for the separator, numbers are parsed without creating strings or throwing
+ * exceptions, and parsed values are written straight into the dataset storage.
+ * Nominal values are looked up in a per-column cache of byte sequences, so
+ * a string is only created the first time a value is seen.
+ * 
+ * Fields can be quoted with ' or ", and quoted fields can contain the
+ * separator. Spaces and tabs around fields are ignored. If the type of each
+ * column is known (for example from an ARFF header), each column is parsed
+ * with its type, otherwise values that are numbers become numerical.
+ * Rows can also be sparse ARFF rows ({index value, ...}), which are added
+ * to sparse datasets without storing the zeros.
+ * 
+ * Large files can be parsed in parallel. The file is then memory mapped and
+ * split into chunks at line breaks, each chunk is parsed into a separate
+ * dataset, and the chunks are appended to the dataset in file order. The
+ * result is the same as for a sequential parse.
+ * 
+ * @author Johan Hagelbäck (johan.hagelback@gmail.com)
+ */
+class TextParser
+{
+    /** Channel to read from (null when reading from a buffer) */
+    private ReadableByteChannel channel;
+    /** Buffer to read from (null when reading from a channel) */
+    private ByteBuffer source;
+    /** Bytes read but not yet parsed */
+    private byte[] buf;
+    /** Position of the next unparsed byte */
+    private int pos;
+    /** Number of valid bytes in the buffer */
+    private int limit;
+    /** Position in the input of the first byte in the buffer */
+    private long base;
+    /** End of input reached */
+    private boolean eof;
+    
+    /** Separator between fields */
+    private byte separator;
+    /** Skip lines starting with % */
+    private boolean skip_comments;
+    
+    /** Start position of each field in the current line */
+    private int[] field_start;
+    /** End position of each field in the current line */
+    private int[] field_end;
+    /** Start and end of the last line found */
+    private int line_start, line_end;
+    /** Cache of nominal values for each column */
+    private ByteSymbols[] symbols;
+    /** The last parsed number */
+    private double number;
+    /** Declared type of each column (null if types are guessed) */
+    private int[] types;
+    /** Date format of each date column */
+    private String[] date_formats;
+    /** Date parsers of each date column */
+    private SimpleDateFormat[] dates;
+    
+    /** Column type is guessed from each value */
+    static final int GUESS = 0;
+    /** Numerical column */
+    static final int NUMERIC = 1;
+    /** Nominal column with declared values */
+    static final int NOMINAL = 2;
+    /** String column */
+    static final int STRING = 3;
+    /** Date column, stored as milliseconds since 1970-01-01 */
+    static final int DATE = 4;
+    /** ARFF default date format */
+    static final String DEFAULT_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+    
+    /** Smallest size of a chunk in parallel parsing */
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+    /** Largest size of a chunk in parallel parsing */
+    private static final long MAX_CHUNK_SIZE = 1 << 30;
+    /** Powers of ten that are exactly representable as doubles */
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    
+    /**
+     * Creates a new parser reading from a channel.
+     * 
+     * @param channel The channel
+     * @param separator Separator between fields
+     * @param skip_comments If true, lines starting with % are skipped
+     */
+    public TextParser(ReadableByteChannel channel, char separator, boolean skip_comments)
+    {
+        this.channel = channel;
+        init(separator, skip_comments);
+    }
+    
+    /**
+     * Creates a new parser reading the remaining bytes of a buffer.
+     * 
+     * @param source The buffer
+     * @param separator Separator between fields
+     * @param skip_comments If true, lines starting with % are skipped
+     */
+    public TextParser(ByteBuffer source, char separator, boolean skip_comments)
+    {
+        this.source = source;
+        init(separator, skip_comments);
+    }
+    
+    /**
+     * Initializes the parser.
+     * 
+     * @param separator Separator between fields
+     * @param skip_comments If true, lines starting with % are skipped
+     */
+    private void init(char separator, boolean skip_comments)
+    {
+        if (separator > 127)
+        {
+            throw new RuntimeException("Separator must be an ASCII character");
+        }
+        this.separator = (byte)separator;
+        this.skip_comments = skip_comments;
+        buf = new byte[1 << 16];
+        pos = 0;
+        limit = 0;
+        base = 0;
+        eof = false;
+        field_start = new int[16];
+        field_end = new int[16];
+    }
+    
+    /**
+     * Returns the separator from a separator string.
+     * 
+     * @param separator Separator string (a single character)
+     * @return Separator char
+     */
+    public static char separatorChar(String separator)
+    {
+        if (separator.length() != 1)
+        {
+            throw new RuntimeException("Separator must be a single character: " + separator);
+        }
+        return separator.charAt(0);
+    }
+    
+    /**
+     * Sets the type of each column. Numerical and date columns are always
+     * parsed as numbers (? is a missing value, stored as NaN), and nominal and
+     * string columns are never parsed as numbers. Without types, each value
+     * is parsed as a number if possible.
+     * 
+     * @param types Type of each column, or null to guess types
+     * @param date_formats Date format (as for SimpleDateFormat) of each date column, may be null
+     */
+    public void setSchema(int[] types, String[] date_formats)
+    {
+        this.types = types;
+        this.date_formats = date_formats;
+        dates = null;
+        if (types != null)
+        {
+            dates = new SimpleDateFormat[types.length];
+            for (int a = 0; a < types.length; a++)
+            {
+                if (types[a] == DATE)
+                {
+                    String format = date_formats != null && date_formats[a] != null ? date_formats[a] : DEFAULT_DATE_FORMAT;
+                    dates[a] = new SimpleDateFormat(format);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks which columns are string columns.
+     * 
+     * @param no_columns Number of columns
+     * @return If the column is a string column, for each column
+     */
+    boolean[] stringColumns(int no_columns)
+    {
+        boolean[] string = new boolean[no_columns];
+        for (int a = 0; types != null && a < Math.min(no_columns, types.length); a++)
+        {
+            string[a] = types[a] == STRING;
+        }
+        return string;
+    }
+    
+    /**
+     * Returns the position in the input of the next unparsed byte, for
+     * example the start of the data section after the header has been read.
+     * 
+     * @return Number of bytes read and parsed
+     */
+    public long position()
+    {
+        return base + pos;
+    }
+    
+    /**
+     * Parses the rows from the current position to the end of a file in parallel
+     * and adds them to the dataset. The file must be the input of this parser.
+     * Small files are parsed on the calling thread.
+     * 
+     * @param file The file
+     * @param data The dataset
+     * @param executor Executor parsing the chunks, for example a fork-join pool
+     * @throws IOException If an error occurs when reading
+     */
+    public void readParallel(FileChannel file, Dataset data, ExecutorService executor) throws IOException
+    {
+        long start = position();
+        long length = file.size() - start;
+        int no_chunks = (int)Math.min(Runtime.getRuntime().availableProcessors() * 4L, length / MIN_CHUNK_SIZE);
+        //Mapped chunks must be smaller than 2 GB
+        no_chunks = (int)Math.max(no_chunks, length / MAX_CHUNK_SIZE + 1);
+        
+        //Split the data at line breaks
+        long[] bounds = new long[no_chunks + 1];
+        bounds[0] = start;
+        for (int c = 1; c < no_chunks; c++)
+        {
+            bounds[c] = nextLineStart(file, Math.max(start + length * c / no_chunks, bounds[c - 1]));
+        }
+        bounds[no_chunks] = start + length;
+        
+        //Parse each chunk to a separate dataset
+        ArrayList<Future<Dataset>> tasks = new ArrayList<>(no_chunks);
+        for (int c = 0; c < no_chunks; c++)
+        {
+            long from = bounds[c];
+            long to = Math.max(bounds[c + 1], from);
+            ByteBuffer chunk = file.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+            Callable<Dataset> task = () -> {
+                Dataset part = data.emptyCopy();
+                TextParser parser = new TextParser(chunk, (char)separator, skip_comments);
+                parser.setSchema(types, date_formats);
+                while (parser.readRow(part))
+                {
+                }
+                return part;
+            };
+            if (no_chunks == 1)
+            {
+                //Not worth the overhead of parallel parsing
+                FutureTask<Dataset> f = new FutureTask<>(task);
+                f.run();
+                tasks.add(f);
+            }
+            else
+            {
+                tasks.add(executor.submit(task));
+            }
+        }
+        
+        //Add the chunks in file order
+        try
+        {
+            for (int c = 0; c < no_chunks; c++)
+            {
+                data.append(tasks.get(c).get());
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Parsing was interrupted", ex);
+        }
+        catch (ExecutionException ex)
+        {
+            throw new RuntimeException(ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+    
+    /**
+     * Finds the start of the first line beginning at or after a position.
+     * 
+     * @param file The file
+     * @param p The position
+     * @return Start of the line, or the file size if there is no more line
+     * @throws IOException If an error occurs when reading
+     */
+    private static long nextLineStart(FileChannel file, long p) throws IOException
+    {
+        if (p == 0)
+        {
+            return 0;
+        }
+        //The line starts at p if the byte before is a line break
+        p--;
+        ByteBuffer block = ByteBuffer.allocate(4096);
+        long size = file.size();
+        while (p < size)
+        {
+            block.clear();
+            int n = file.read(block, p);
+            if (n <= 0)
+            {
+                break;
+            }
+            for (int i = 0; i < n; i++)
+            {
+                if (block.get(i) == '\n')
+                {
+                    return p + i + 1;
+                }
+            }
+            p += n;
+        }
+        return size;
+    }
+    
+    /**
+     * Reads the next line as a string, for example a header line.
+     * 
+     * @return The line, or null at the end of the input
+     * @throws IOException If an error occurs when reading
+     */
+    public String readLine() throws IOException
+    {
+        if (!nextLine())
+        {
+            return null;
+        }
+        int end = line_end;
+        if (end > line_start && buf[end - 1] == '\r') end--;
+        return new String(buf, line_start, end - line_start, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Parses the next non-empty line and adds it as a new row to the dataset.
+     * 
+     * @param data The dataset
+     * @return True if a row was added, false at the end of the input
+     * @throws IOException If an error occurs when reading
+     */
+    public boolean readRow(Dataset data) throws IOException
+    {
+        int no_attr = data.noAttributes();
+        if (symbols == null || symbols.length != no_attr)
+        {
+            symbols = new ByteSymbols[no_attr];
+            for (int a = 0; a < no_attr; a++)
+            {
+                symbols[a] = new ByteSymbols();
+            }
+        }
+        
+        while (nextLine())
+        {
+            //Skip empty lines and comments
+            int s = skipSpaces(line_start, line_end);
+            if (s == line_end || (skip_comments && buf[s] == '%'))
+            {
+                continue;
+            }
+            
+            //Sparse row: {index value, index value, ...}
+            if (buf[s] == '{')
+            {
+                readSparseRow(data, s + 1);
+                data.commitRow();
+                return true;
+            }
+            
+            int no_fields = splitFields();
+            if (no_fields != no_attr)
+            {
+                throw new RuntimeException("Invalid number of attributes: " + no_fields + "/" + no_attr);
+            }
+            
+            //Iterate over each value
+            boolean sparse = data.isSparse();
+            for (int a = 0; a < no_attr; a++)
+            {
+                if (sparse && a < no_attr - 1)
+                {
+                    data.addSparse(a, parseFeature(a, field_start[a], field_end[a]));
+                }
+                else
+                {
+                    addValue(data.column(a), a, field_start[a], field_end[a]);
+                }
+            }
+            data.commitRow();
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Finds the next line that is not empty or a comment. The line is then
+     * available with buffer(), lineStart() and lineEnd(), for readers of
+     * other line based formats.
+     * 
+     * @return True if a line was found, false at the end of the input
+     * @throws IOException If an error occurs when reading
+     */
+    boolean nextDataLine() throws IOException
+    {
+        while (nextLine())
+        {
+            int s = skipSpaces(line_start, line_end);
+            if (s < line_end && !(skip_comments && buf[s] == '%'))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the buffer holding the current line.
+     * 
+     * @return The buffer
+     */
+    byte[] buffer()
+    {
+        return buf;
+    }
+    
+    /**
+     * Returns the start of the current line in the buffer.
+     * 
+     * @return Start position
+     */
+    int lineStart()
+    {
+        return line_start;
+    }
+    
+    /**
+     * Returns the end of the current line in the buffer.
+     * 
+     * @return End position
+     */
+    int lineEnd()
+    {
+        return line_end;
+    }
+    
+    /**
+     * Returns the number parsed by the last successful call to parseNumber().
+     * 
+     * @return The number
+     */
+    double number()
+    {
+        return number;
+    }
+    
+    /**
+     * Checks if the next row is a sparse row, without reading the row.
+     * 
+     * @return True if the next row is sparse
+     * @throws IOException If an error occurs when reading
+     */
+    public boolean peekSparse() throws IOException
+    {
+        while (nextLine())
+        {
+            int s = skipSpaces(line_start, line_end);
+            if (s == line_end || (skip_comments && buf[s] == '%'))
+            {
+                continue;
+            }
+            
+            //Unread the line
+            pos = line_start;
+            return buf[s] == '{';
+        }
+        return false;
+    }
+    
+    /**
+     * Parses a sparse row. Attributes not in the row are zero (or the first
+     * declared value for nominal attributes). In sparse datasets, the values
+     * are added to the sparse rows, and in dense datasets to the columns.
+     * 
+     * @param data The dataset
+     * @param p Position after the {
+     */
+    private void readSparseRow(Dataset data, int p)
+    {
+        int no_attr = data.noAttributes();
+        boolean sparse = data.isSparse();
+        int end = line_end;
+        while (end > p && buf[end - 1] != '}')
+        {
+            end--;
+        }
+        if (end == p)
+        {
+            throw new RuntimeException("Invalid sparse row: missing }");
+        }
+        end--;
+        
+        int next_attr = 0;
+        boolean has_class = false;
+        while (true)
+        {
+            p = skipSpaces(p, end);
+            if (p >= end)
+            {
+                break;
+            }
+            
+            //Attribute index
+            int index = 0;
+            int q = p;
+            while (q < end && buf[q] >= '0' && buf[q] <= '9' && index < no_attr)
+            {
+                index = index * 10 + (buf[q] - '0');
+                q++;
+            }
+            if (q == p || index >= no_attr || index < next_attr)
+            {
+                throw new RuntimeException("Invalid sparse attribute index: " + field(p, Math.max(q, p + 1)));
+            }
+            p = skipSpaces(q, end);
+            
+            //Value, possibly quoted
+            int start;
+            int value_end;
+            byte b = p < end ? buf[p] : 0;
+            if (b == '\'' || b == '"')
+            {
+                q = p + 1;
+                while (q < end && buf[q] != b)
+                {
+                    if (buf[q] == '\\') q++;
+                    q++;
+                }
+                start = -(p + 1) - 1;
+                value_end = Math.min(q, end);
+                p = skipSpaces(Math.min(q + 1, end), end);
+            }
+            else
+            {
+                q = p;
+                while (q < end && buf[q] != ',')
+                {
+                    q++;
+                }
+                value_end = q;
+                while (value_end > p && (buf[value_end - 1] == ' ' || buf[value_end - 1] == '\t'))
+                {
+                    value_end--;
+                }
+                start = p;
+                p = q;
+            }
+            if (p < end)
+            {
+                if (buf[p] != ',')
+                {
+                    throw new RuntimeException("Invalid sparse row: expected ,");
+                }
+                p++;
+            }
+            
+            if (sparse && index < no_attr - 1)
+            {
+                data.addSparse(index, parseFeature(index, start, value_end));
+            }
+            else
+            {
+                //Dense datasets get all attributes that are not in the row
+                while (!sparse && next_attr < index)
+                {
+                    addDefault(data.column(next_attr), next_attr);
+                    next_attr++;
+                }
+                addValue(data.column(index), index, start, value_end);
+                has_class = index == no_attr - 1;
+            }
+            next_attr = index + 1;
+        }
+        
+        //Attributes after the last value in the row
+        for (int a = sparse ? no_attr - 1 : next_attr; a < no_attr && !has_class; a++)
+        {
+            addDefault(data.column(a), a);
+        }
+    }
+    
+    /**
+     * Adds a value to a column, parsed with the type of the column.
+     * 
+     * @param col The column
+     * @param attr_index Attribute index
+     * @param start Start of the value (-start - 1 for quoted values)
+     * @param end End of the value
+     */
+    private void addValue(Column col, int attr_index, int start, int end)
+    {
+        int type = types != null ? types[attr_index] : GUESS;
+        if (type == GUESS)
+        {
+            if (start >= 0 && parseNumber(start, end))
+            {
+                col.add(number);
+            }
+            else
+            {
+                if (start < 0) start = -start - 1;
+                addNominal(col, symbols[attr_index], start, end);
+            }
+            return;
+        }
+        
+        if (start < 0) start = -start - 1;
+        if (type == NOMINAL)
+        {
+            addNominal(col, symbols[attr_index], start, end);
+        }
+        else if (type == STRING)
+        {
+            //String values are mostly unique, so they are not cached
+            col.add(field(start, end));
+        }
+        else if (end - start == 1 && buf[start] == '?')
+        {
+            //Missing value
+            col.add(Double.NaN);
+        }
+        else if (type == NUMERIC)
+        {
+            if (!parseNumber(start, end))
+            {
+                throw new RuntimeException("Invalid numerical value for attribute " + attr_index + ": " + field(start, end));
+            }
+            col.add(number);
+        }
+        else
+        {
+            col.add(parseDate(attr_index, start, end));
+        }
+    }
+    
+    /**
+     * Parses the value of an attribute stored in sparse rows. Such attributes
+     * must be numerical (or dates).
+     * 
+     * @param attr_index Attribute index
+     * @param start Start of the value (-start - 1 for quoted values)
+     * @param end End of the value
+     * @return The value
+     */
+    private double parseFeature(int attr_index, int start, int end)
+    {
+        int type = types != null ? types[attr_index] : GUESS;
+        if (start < 0) start = -start - 1;
+        if (type == NOMINAL || type == STRING)
+        {
+            throw new RuntimeException("Sparse datasets only support numerical attributes: " + attr_index);
+        }
+        if (end - start == 1 && buf[start] == '?')
+        {
+            return Double.NaN;
+        }
+        if (type == DATE)
+        {
+            return parseDate(attr_index, start, end);
+        }
+        if (!parseNumber(start, end))
+        {
+            throw new RuntimeException("Invalid numerical value for attribute " + attr_index + ": " + field(start, end));
+        }
+        return number;
+    }
+    
+    /**
+     * Adds the value of an attribute that is not in a sparse row: zero, or
+     * the first declared value for nominal attributes.
+     * 
+     * @param col The column
+     * @param attr_index Attribute index
+     */
+    private void addDefault(Column col, int attr_index)
+    {
+        int type = types != null ? types[attr_index] : GUESS;
+        if (type == NOMINAL)
+        {
+            col.addCode(0);
+        }
+        else if (type == STRING)
+        {
+            throw new RuntimeException("Missing value for string attribute " + attr_index + " in sparse row");
+        }
+        else
+        {
+            col.add(0.0);
+        }
+    }
+    
+    /**
+     * Adds a nominal value to a column, using the cache to avoid creating
+     * a string for values that have been seen before.
+     * 
+     * @param col The column
+     * @param cache Cache of values for the column
+     * @param start Start of the value
+     * @param end End of the value
+     */
+    private void addNominal(Column col, ByteSymbols cache, int start, int end)
+    {
+        int hash = ByteSymbols.hash(buf, start, end);
+        if (col.isNominal())
+        {
+            int code = cache.lookup(buf, start, end, hash);
+            if (code >= 0)
+            {
+                col.addCode(code);
+                return;
+            }
+        }
+        int code = col.add(field(start, end));
+        cache.put(buf, start, end, hash, code);
+    }
+    
+    /**
+     * Finds the fields in the current line. Quoted fields are stored with
+     * negative start (-start - 1) so they are never parsed as numbers.
+     * 
+     * @return Number of fields
+     */
+    private int splitFields()
+    {
+        int end = line_end;
+        if (end > line_start && buf[end - 1] == '\r') end--;
+        
+        int n = 0;
+        int p = line_start;
+        while (true)
+        {
+            if (n == field_start.length)
+            {
+                field_start = Arrays.copyOf(field_start, n * 2);
+                field_end = Arrays.copyOf(field_end, n * 2);
+            }
+            
+            p = skipSpaces(p, end);
+            byte b = p < end ? buf[p] : 0;
+            if (b == '\'' || b == '"')
+            {
+                //Quoted field, runs to the matching quote
+                int q = p + 1;
+                while (q < end && buf[q] != b)
+                {
+                    if (buf[q] == '\\') q++;
+                    q++;
+                }
+                field_start[n] = -(p + 1) - 1;
+                field_end[n] = Math.min(q, end);
+                p = skipSpaces(Math.min(q + 1, end), end);
+            }
+            else
+            {
+                int q = p;
+                while (q < end && buf[q] != separator)
+                {
+                    q++;
+                }
+                int e = q;
+                while (e > p && (buf[e - 1] == ' ' || buf[e - 1] == '\t'))
+                {
+                    e--;
+                }
+                field_start[n] = p;
+                field_end[n] = e;
+                p = q;
+            }
+            n++;
+            
+            //Continue after the separator
+            if (p < end && buf[p] == separator)
+            {
+                p++;
+            }
+            else
+            {
+                return n;
+            }
+        }
+    }
+    
+    /**
+     * Parses a number. On success the value is stored in the number field.
+     * The result is the same as for Double.parseDouble(), but common decimal
+     * numbers are parsed without creating a string, and fields that are not
+     * numbers are rejected without throwing an exception.
+     * 
+     * @param start Start of the field
+     * @param end End of the field
+     * @return True if the field is a number
+     */
+    boolean parseNumber(int start, int end)
+    {
+        if (start == end)
+        {
+            return false;
+        }
+        
+        int p = start;
+        boolean negative = false;
+        if (buf[p] == '-' || buf[p] == '+')
+        {
+            negative = buf[p] == '-';
+            p++;
+        }
+        
+        long mantissa = 0;
+        int digits = 0;
+        int exp = 0;
+        boolean any_digit = false;
+        
+        //Integer part
+        while (p < end && buf[p] >= '0' && buf[p] <= '9')
+        {
+            if (digits < 18)
+            {
+                mantissa = mantissa * 10 + (buf[p] - '0');
+                if (mantissa > 0) digits++;
+            }
+            else
+            {
+                exp++;
+                digits++;
+            }
+            any_digit = true;
+            p++;
+        }
+        //Fraction part
+        if (p < end && buf[p] == '.')
+        {
+            p++;
+            while (p < end && buf[p] >= '0' && buf[p] <= '9')
+            {
+                if (digits < 18)
+                {
+                    mantissa = mantissa * 10 + (buf[p] - '0');
+                    if (mantissa > 0) digits++;
+                    exp--;
+                }
+                else
+                {
+                    digits++;
+                }
+                any_digit = true;
+                p++;
+            }
+        }
+        //Exponent
+        if (any_digit && p < end && (buf[p] == 'e' || buf[p] == 'E'))
+        {
+            p++;
+            boolean exp_negative = false;
+            if (p < end && (buf[p] == '-' || buf[p] == '+'))
+            {
+                exp_negative = buf[p] == '-';
+                p++;
+            }
+            if (p == end || buf[p] < '0' || buf[p] > '9')
+            {
+                return false;
+            }
+            int e = 0;
+            while (p < end && buf[p] >= '0' && buf[p] <= '9')
+            {
+                if (e < 100000) e = e * 10 + (buf[p] - '0');
+                p++;
+            }
+            exp += exp_negative ? -e : e;
+        }
+        
+        if (!any_digit || p != end)
+        {
+            return parseSpecial(start, end);
+        }
+        
+        //Exact when the mantissa fits in 53 bits and the power of ten is exact
+        if (digits <= 15 && exp >= -22 && exp <= 22)
+        {
+            double v = mantissa;
+            if (exp < 0) v /= POW10[-exp];
+            else v *= POW10[exp];
+            number = negative ? -v : v;
+            return true;
+        }
+        
+        //The field is a valid decimal number, so parseDouble() cannot fail
+        number = Double.parseDouble(new String(buf, start, end - start, StandardCharsets.ISO_8859_1));
+        return true;
+    }
+    
+    /**
+     * Parses the special forms of numbers accepted by Double.parseDouble():
+     * NaN, Infinity, hexadecimal numbers and decimal numbers ending with d or
+     * f. The forms are matched explicitly, so other fields (such as nominal
+     * values) are rejected without calling parseDouble().
+     * 
+     * @param start Start of the field
+     * @param end End of the field
+     * @return True if the field is a number
+     */
+    private boolean parseSpecial(int start, int end)
+    {
+        int p = start;
+        boolean negative = false;
+        if (buf[p] == '-' || buf[p] == '+')
+        {
+            negative = buf[p] == '-';
+            p++;
+        }
+        if (matches(p, end, "NaN"))
+        {
+            number = Double.NaN;
+            return true;
+        }
+        if (matches(p, end, "Infinity"))
+        {
+            number = negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+            return true;
+        }
+        
+        //Decimal number with a d or f suffix, the suffix follows a digit or .
+        byte last = buf[end - 1];
+        if (end - p >= 2 && (last == 'd' || last == 'D' || last == 'f' || last == 'F'))
+        {
+            byte prev = buf[end - 2];
+            if ((prev >= '0' && prev <= '9') || prev == '.')
+            {
+                return parseNumber(start, end - 1);
+            }
+        }
+        
+        //Hexadecimal number: 0x, hex digits with an optional point, and a
+        //binary exponent that Double.parseDouble() requires
+        if (end - p < 4 || buf[p] != '0' || (buf[p + 1] != 'x' && buf[p + 1] != 'X'))
+        {
+            return false;
+        }
+        p += 2;
+        boolean any_digit = false;
+        while (p < end && isHexDigit(buf[p]))
+        {
+            any_digit = true;
+            p++;
+        }
+        if (p < end && buf[p] == '.')
+        {
+            p++;
+            while (p < end && isHexDigit(buf[p]))
+            {
+                any_digit = true;
+                p++;
+            }
+        }
+        if (!any_digit || p == end || (buf[p] != 'p' && buf[p] != 'P'))
+        {
+            return false;
+        }
+        p++;
+        if (p < end && (buf[p] == '-' || buf[p] == '+')) p++;
+        if (p == end || buf[p] < '0' || buf[p] > '9')
+        {
+            return false;
+        }
+        while (p < end && buf[p] >= '0' && buf[p] <= '9') p++;
+        if (p < end && (buf[p] == 'd' || buf[p] == 'D' || buf[p] == 'f' || buf[p] == 'F')) p++;
+        if (p != end)
+        {
+            return false;
+        }
+        number = Double.parseDouble(new String(buf, start, end - start, StandardCharsets.ISO_8859_1));
+        return true;
+    }
+    
+    /**
+     * Checks if a field is equal to a string.
+     * 
+     * @param start Start of the field
+     * @param end End of the field
+     * @param s The string (ASCII)
+     * @return True if equal
+     */
+    private boolean matches(int start, int end, String s)
+    {
+        if (end - start != s.length())
+        {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++)
+        {
+            if (buf[start + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Checks if a byte is a hexadecimal digit.
+     * 
+     * @param b The byte
+     * @return True if 0-9, a-f or A-F
+     */
+    private static boolean isHexDigit(byte b)
+    {
+        return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F');
+    }
+    
+    /**
+     * Parses a date.
+     * 
+     * @param attr_index Attribute index
+     * @param start Start of the field
+     * @param end End of the field
+     * @return Milliseconds since 1970-01-01
+     */
+    private double parseDate(int attr_index, int start, int end)
+    {
+        String value = field(start, end);
+        try
+        {
+            return dates[attr_index].parse(value).getTime();
+        }
+        catch (ParseException ex)
+        {
+            throw new RuntimeException("Invalid date for attribute " + attr_index + ": " + value);
+        }
+    }
+    
+    /**
+     * Returns a field as a string.
+     * 
+     * @param start Start of the field
+     * @param end End of the field
+     * @return The field
+     */
+    String field(int start, int end)
+    {
+        return new String(buf, start, end - start, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Skips spaces and tabs.
+     * 
+     * @param p Start position
+     * @param end End position
+     * @return Position of the first byte that is not a space or tab
+     */
+    int skipSpaces(int p, int end)
+    {
+        while (p < end && (buf[p] == ' ' || buf[p] == '\t' || buf[p] == '\r'))
+        {
+            p++;
+        }
+        return p;
+    }
+    
+    /**
+     * Finds the next line in the input, reading more bytes if needed.
+     * 
+     * @return True if a line was found, false at the end of the input
+     * @throws IOException If an error occurs when reading
+     */
+    private boolean nextLine() throws IOException
+    {
+        int scan = pos;
+        while (true)
+        {
+            //Look for the end of the line
+            while (scan < limit && buf[scan] != '\n')
+            {
+                scan++;
+            }
+            if (scan < limit)
+            {
+                line_start = pos;
+                line_end = scan;
+                pos = scan + 1;
+                return true;
+            }
+            if (eof)
+            {
+                if (pos < limit)
+                {
+                    //Last line without line break
+                    line_start = pos;
+                    line_end = limit;
+                    pos = limit;
+                    return true;
+                }
+                return false;
+            }
+            
+            //Move the partial line to the start of the buffer and read more
+            int partial = limit - pos;
+            if (partial == buf.length)
+            {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            else if (pos > 0)
+            {
+                System.arraycopy(buf, pos, buf, 0, partial);
+            }
+            base += pos;
+            pos = 0;
+            limit = partial;
+            scan = partial;
+            fill();
+        }
+    }
+    
+    /**
+     * Reads more bytes into the buffer.
+     * 
+     * @throws IOException If an error occurs when reading
+     */
+    private void fill() throws IOException
+    {
+        int space = buf.length - limit;
+        if (channel != null)
+        {
+            int n = channel.read(ByteBuffer.wrap(buf, limit, space));
+            if (n < 0) eof = true;
+            else limit += n;
+        }
+        else
+        {
+            int n = Math.min(space, source.remaining());
+            source.get(buf, limit, n);
+            limit += n;
+            if (!source.hasRemaining()) eof = true;
+        }
+    }
+    
+    /**
+     * Cache mapping the bytes of nominal values to their codes in a column.
+     * The bytes of each value are stored in an arena, and values are found
+     * through an open addressing hash table.
+     */
+    private static class ByteSymbols
+    {
+        /** Maximum number of cached values */
+        private static final int MAX_ENTRIES = 1 << 16;
+        
+        /** Hash table holding entry + 1 for each used slot */
+        private int[] table = new int[64];
+        /** Hash of each entry */
+        private int[] hashes = new int[32];
+        /** Code of each entry */
+        private int[] codes = new int[32];
+        /** Start of each entry in the arena */
+        private int[] starts = new int[32];
+        /** Length of each entry */
+        private int[] lengths = new int[32];
+        /** Bytes of all entries */
+        private byte[] arena = new byte[1024];
+        /** Number of used arena bytes */
+        private int arena_used = 0;
+        /** Number of entries */
+        private int size = 0;
+        
+        /**
+         * Calculates the hash of a byte sequence.
+         * 
+         * @param b Bytes
+         * @param start Start position
+         * @param end End position
+         * @return Hash code
+         */
+        static int hash(byte[] b, int start, int end)
+        {
+            int h = 0;
+            for (int i = start; i < end; i++)
+            {
+                h = 31 * h + b[i];
+            }
+            return h ^ (h >>> 16);
+        }
+        
+        /**
+         * Returns the code for a byte sequence, or -1 if not cached.
+         * 
+         * @param b Bytes
+         * @param start Start position
+         * @param end End position
+         * @param hash Hash of the bytes
+         * @return The code
+         */
+        int lookup(byte[] b, int start, int end, int hash)
+        {
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            int len = end - start;
+            while (table[slot] != 0)
+            {
+                int e = table[slot] - 1;
+                if (hashes[e] == hash && lengths[e] == len && equals(e, b, start))
+                {
+                    return codes[e];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+        
+        /**
+         * Checks if an entry holds the same bytes as a byte sequence
+         * of the same length.
+         * 
+         * @param e Entry index
+         * @param b Bytes
+         * @param start Start position
+         * @return True if the bytes are equal
+         */
+        private boolean equals(int e, byte[] b, int start)
+        {
+            int s = starts[e];
+            for (int i = 0; i < lengths[e]; i++)
+            {
+                if (arena[s + i] != b[start + i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Adds a byte sequence to the cache.
+         * 
+         * @param b Bytes
+         * @param start Start position
+         * @param end End position
+         * @param hash Hash of the bytes
+         * @param code Code for the value
+         */
+        void put(byte[] b, int start, int end, int hash, int code)
+        {
+            if (size == MAX_ENTRIES)
+            {
+                return;
+            }
+            int len = end - start;
+            if (size == codes.length)
+            {
+                hashes = Arrays.copyOf(hashes, size * 2);
+                codes = Arrays.copyOf(codes, size * 2);
+                starts = Arrays.copyOf(starts, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            if (arena_used + len > arena.length)
+            {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arena_used + len));
+            }
+            System.arraycopy(b, start, arena, arena_used, len);
+            hashes[size] = hash;
+            codes[size] = code;
+            starts[size] = arena_used;
+            lengths[size] = len;
+            arena_used += len;
+            size++;
+            
+            if (size * 2 > table.length)
+            {
+                table = new int[table.length * 2];
+                for (int e = 0; e < size; e++)
+                {
+                    insert(e);
+                }
+            }
+            else
+            {
+                insert(size - 1);
+            }
+        }
+        
+        /**
+         * Inserts an entry in the hash table.
+         * 
+         * @param e Entry index
+         */
+        private void insert(int e)
+        {
+            int mask = table.length - 1;
+            int slot = hashes[e] & mask;
+            while (table[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = e + 1;
+        }
+    }
+}